@@ -14,6 +14,9 @@ public class BankAccount implements Serializable {
     
     /** Current consolidated amount of money (cents of monetary units). TODO: required more precision than cents? */
     private long balance;
+    
+    /** Number of changes applied on the account, so the most recent of two balances can be told apart. */
+    private long version;
 
     // TODO: add more information about a bank account (owner name, NIF...)
 
@@ -32,4 +35,12 @@ public class BankAccount implements Serializable {
     public void setBalance(long balance) {
         this.balance = balance;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
 }
@@ -0,0 +1,425 @@
+package com.mybank.corebusiness.api.rest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
+import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
+import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+import com.mybank.corebusiness.api.transaction.TransactionSummary;
+
+/**
+ * Compact binary wire format of the API entities, negotiated as {@link #MEDIA_TYPE} alongside JSON.
+ * Every value starts with its type code, so lists need no element type. An object is a sequence of fields ended
+ * by 0: each field is a key (field number, from 1 in declaration order, and wire type) followed by a varint
+ * (numbers and booleans, zigzag encoded) or by a length-prefixed UTF-8 string. Null fields are left out and
+ * unknown fields skipped, so fields can be added. Lists hold no lists.
+ * Stateless, thread-safe.
+ */
+public class BinaryCodec {
+
+    /** Media type of the entities in this format. */
+    public static final String MEDIA_TYPE = "application/x-mybank-binary";
+
+    /**
+     * Indicates whether values of a type can be written.
+     */
+    public static boolean isWriteable(Class<?> type) {
+        return type == String.class || type == Long.class || type == long.class || type == Boolean.class || type == boolean.class ||
+               List.class.isAssignableFrom(type) || typeCodeOf(type) != NULL;
+    }
+
+    /**
+     * Indicates whether values of a type can be read. Lists are read as ArrayList.
+     */
+    public static boolean isReadable(Class<?> type) {
+        return type == String.class || type == Long.class || type == long.class || type == Boolean.class || type == boolean.class ||
+               (type != Object.class && type.isAssignableFrom(ArrayList.class)) || typeCodeOf(type) != NULL;
+    }
+
+    /**
+     * Writes a value. The stream is neither flushed nor closed.
+     * @throws IllegalArgumentException On a value (or list element) of a type not supported.
+     */
+    public static void write(Object value, OutputStream out) throws IOException {
+        write(value, out, false);
+    }
+
+    private static void write(Object value, OutputStream out, boolean inList) throws IOException {
+        if (value == null) {
+            writeVarint(out, NULL);
+        } else if (value instanceof String) {
+            writeVarint(out, STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            writeVarint(out, LONG);
+            writeVarint(out, zigzag((Long) value));
+        } else if (value instanceof Boolean) {
+            writeVarint(out, BOOLEAN);
+            writeVarint(out, (Boolean) value ? 1 : 0);
+        } else if (value instanceof List) {
+            if (inList) throw new IllegalArgumentException("Not supported by the binary format: lists of lists");
+            List<?> list = (List<?>) value;
+            writeVarint(out, LIST);
+            writeVarint(out, list.size());
+            for (Object element : list) write(element, out, true);
+        } else if (value instanceof Transaction) {
+            Transaction transaction = (Transaction) value;
+            writeVarint(out, TRANSACTION);
+            writeField(out, 1, transaction.getReference());
+            writeField(out, 2, transaction.getAccountIban());
+            writeField(out, 3, transaction.getDateEpoch());
+            writeField(out, 4, transaction.getAmount());
+            writeField(out, 5, transaction.getFee());
+            writeField(out, 6, transaction.getDescription());
+            writeVarint(out, END);
+        } else if (value instanceof TransactionQuery) {
+            TransactionQuery query = (TransactionQuery) value;
+            writeVarint(out, TRANSACTION_QUERY);
+            writeField(out, 1, query.getAccountIban());
+            writeField(out, 2, query.isSortByAmount() ? 1L : 0L);
+            writeField(out, 3, query.isSortDescending() ? 1L : 0L);
+            writeField(out, 4, query.getSince());
+            writeField(out, 5, query.getUntil());
+            writeField(out, 6, (long) query.getPageNumber());
+            writeField(out, 7, (long) query.getPageSize());
+            writeField(out, 8, query.getCursor());
+            writeVarint(out, END);
+        } else if (value instanceof TransactionResult) {
+            TransactionResult result = (TransactionResult) value;
+            writeVarint(out, TRANSACTION_RESULT);
+            writeField(out, 1, result.getReference());
+            writeField(out, 2, result.getError());
+            writeVarint(out, END);
+        } else if (value instanceof TransactionStatusRequest) {
+            TransactionStatusRequest request = (TransactionStatusRequest) value;
+            writeVarint(out, TRANSACTION_STATUS_REQUEST);
+            writeField(out, 1, request.getReference());
+            writeField(out, 2, request.getChannel());
+            writeVarint(out, END);
+        } else if (value instanceof TransactionStatusResponse) {
+            TransactionStatusResponse response = (TransactionStatusResponse) value;
+            writeVarint(out, TRANSACTION_STATUS_RESPONSE);
+            writeField(out, 1, response.getReference());
+            writeField(out, 2, response.getStatus());
+            writeField(out, 3, response.getAmount());
+            writeField(out, 4, response.getFee());
+            writeVarint(out, END);
+        } else if (value instanceof TransactionSummary) {
+            TransactionSummary summary = (TransactionSummary) value;
+            writeVarint(out, TRANSACTION_SUMMARY);
+            writeField(out, 1, summary.getAccountIban());
+            writeField(out, 2, summary.getSince());
+            writeField(out, 3, summary.getUntil());
+            writeField(out, 4, summary.getCredits());
+            writeField(out, 5, summary.getDebits());
+            writeField(out, 6, summary.getFees());
+            writeField(out, 7, summary.getCreditCount());
+            writeField(out, 8, summary.getDebitCount());
+            writeVarint(out, END);
+        } else if (value instanceof BankAccount) {
+            BankAccount account = (BankAccount) value;
+            writeVarint(out, BANK_ACCOUNT);
+            writeField(out, 1, account.getAccountIban());
+            writeField(out, 2, account.getBalance());
+            writeField(out, 3, account.getVersion());
+            writeVarint(out, END);
+        } else {
+            throw new IllegalArgumentException("Not supported by the binary format: " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Reads a value of a given type.
+     * @throws EOFException On a value cut short.
+     * @throws StreamCorruptedException On a malformed value or one of another type.
+     */
+    public static Object read(Class<?> type, InputStream in) throws IOException {
+        return read(type, type, in);
+    }
+
+    /**
+     * Reads a value of a given type, checking the type of the elements of lists as well.
+     * @param genericType The type with its type arguments, such as List&lt;Transaction&gt;. Lists of an unknown element type accept any element.
+     * @throws EOFException On a value cut short.
+     * @throws StreamCorruptedException On a malformed value or one of another type, also a list element.
+     */
+    public static Object read(Class<?> type, Type genericType, InputStream in) throws IOException {
+        Object value = read(in, false);
+        Class<?> expected = type == long.class ? Long.class : type == boolean.class ? Boolean.class : type;
+        if (value != null && !expected.isInstance(value)) throw new StreamCorruptedException("Expected " + type.getName() + ", found " + value.getClass().getName());
+        if (value instanceof List) {
+            Class<?> elementType = elementTypeOf(genericType);
+            for (Object element : (List<?>) value) {
+                if (element != null && !elementType.isInstance(element)) {
+                    throw new StreamCorruptedException("Expected list of " + elementType.getName() + ", found " + element.getClass().getName());
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Provides the class of the elements of a list type, Object if not known.
+     */
+    private static Class<?> elementTypeOf(Type listType) {
+        if (!(listType instanceof ParameterizedType)) return Object.class;
+        Type elementType = ((ParameterizedType) listType).getActualTypeArguments()[0];
+        if (elementType instanceof WildcardType) elementType = ((WildcardType) elementType).getUpperBounds()[0];
+        return elementType instanceof Class ? (Class<?>) elementType : Object.class;
+    }
+
+    /**
+     * @param inList Whether the value is an element of a list: lists are not accepted then.
+     */
+    private static Object read(InputStream in, boolean inList) throws IOException {
+        int typeCode = (int) readVarint(in);
+        switch (typeCode) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case LONG:
+                return unzigzag(readVarint(in));
+            case BOOLEAN:
+                return readVarint(in) != 0;
+            case LIST: {
+                if (inList) throw new StreamCorruptedException("Lists of lists are not supported");
+                long size = readVarint(in);
+                if (size < 0 || size > MAX_LENGTH) throw new StreamCorruptedException("Invalid list size: " + size);
+                List<Object> list = new ArrayList<>((int) Math.min(size, 1024));
+                for (long i = 0; i < size; i++) list.add(read(in, true));
+                return list;
+            }
+            case TRANSACTION: {
+                Transaction transaction = new Transaction();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: transaction.setReference(readString(in, key)); break;
+                        case 2: transaction.setAccountIban(readString(in, key)); break;
+                        case 3: transaction.setDateEpoch(readLong(in, key)); break;
+                        case 4: transaction.setAmount(readLong(in, key)); break;
+                        case 5: transaction.setFee(readLong(in, key)); break;
+                        case 6: transaction.setDescription(readString(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return transaction;
+            }
+            case TRANSACTION_QUERY: {
+                TransactionQuery query = new TransactionQuery();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: query.setAccountIban(readString(in, key)); break;
+                        case 2: query.setSortByAmount(readLong(in, key) != 0); break;
+                        case 3: query.setSortDescending(readLong(in, key) != 0); break;
+                        case 4: query.setSince(readLong(in, key)); break;
+                        case 5: query.setUntil(readLong(in, key)); break;
+                        case 6: query.setPageNumber((int) readLong(in, key)); break;
+                        case 7: query.setPageSize((int) readLong(in, key)); break;
+                        case 8: query.setCursor(readString(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return query;
+            }
+            case TRANSACTION_RESULT: {
+                TransactionResult result = new TransactionResult();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: result.setReference(readString(in, key)); break;
+                        case 2: result.setError(readString(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return result;
+            }
+            case TRANSACTION_STATUS_REQUEST: {
+                TransactionStatusRequest request = new TransactionStatusRequest();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: request.setReference(readString(in, key)); break;
+                        case 2: request.setChannel(readString(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return request;
+            }
+            case TRANSACTION_STATUS_RESPONSE: {
+                TransactionStatusResponse response = new TransactionStatusResponse();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: response.setReference(readString(in, key)); break;
+                        case 2: response.setStatus(readString(in, key)); break;
+                        case 3: response.setAmount(readLong(in, key)); break;
+                        case 4: response.setFee(readLong(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return response;
+            }
+            case TRANSACTION_SUMMARY: {
+                TransactionSummary summary = new TransactionSummary();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: summary.setAccountIban(readString(in, key)); break;
+                        case 2: summary.setSince(readLong(in, key)); break;
+                        case 3: summary.setUntil(readLong(in, key)); break;
+                        case 4: summary.setCredits(readLong(in, key)); break;
+                        case 5: summary.setDebits(readLong(in, key)); break;
+                        case 6: summary.setFees(readLong(in, key)); break;
+                        case 7: summary.setCreditCount(readLong(in, key)); break;
+                        case 8: summary.setDebitCount(readLong(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return summary;
+            }
+            case BANK_ACCOUNT: {
+                BankAccount account = new BankAccount();
+                for (int key = (int) readVarint(in); key != END; key = (int) readVarint(in)) {
+                    switch (key >>> 3) {
+                        case 1: account.setAccountIban(readString(in, key)); break;
+                        case 2: account.setBalance(readLong(in, key)); break;
+                        case 3: account.setVersion(readLong(in, key)); break;
+                        default: skip(in, key);
+                    }
+                }
+                return account;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown type code: " + typeCode);
+        }
+    }
+
+    /**
+     * Provides the type code of an entity class, NULL if not an entity.
+     */
+    private static int typeCodeOf(Class<?> type) {
+        if (type == Transaction.class) return TRANSACTION;
+        if (type == TransactionQuery.class) return TRANSACTION_QUERY;
+        if (type == TransactionResult.class) return TRANSACTION_RESULT;
+        if (type == TransactionStatusRequest.class) return TRANSACTION_STATUS_REQUEST;
+        if (type == TransactionStatusResponse.class) return TRANSACTION_STATUS_RESPONSE;
+        if (type == TransactionSummary.class) return TRANSACTION_SUMMARY;
+        if (type == BankAccount.class) return BANK_ACCOUNT;
+        return NULL;
+    }
+
+    /**
+     * Writes a field holding a number, unless null.
+     */
+    private static void writeField(OutputStream out, int number, Long value) throws IOException {
+        if (value == null) return;
+        writeVarint(out, number << 3 | WIRE_VARINT);
+        writeVarint(out, zigzag(value));
+    }
+
+    /**
+     * Writes a field holding text, unless null.
+     */
+    private static void writeField(OutputStream out, int number, String value) throws IOException {
+        if (value == null) return;
+        writeVarint(out, number << 3 | WIRE_LENGTH);
+        writeString(out, value);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes an unsigned number, 7 bits per byte, lowest first, the highest bit set on all bytes but the last one.
+     */
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("Value cut short");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length < 0 || length > MAX_LENGTH) throw new StreamCorruptedException("Invalid string length: " + length);
+        byte[] bytes = new byte[(int) length];
+        for (int read = 0; read < bytes.length; ) {
+            int count = in.read(bytes, read, bytes.length - read);
+            if (count < 0) throw new EOFException("Value cut short");
+            read += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(InputStream in, int key) throws IOException {
+        if ((key & 7) != WIRE_LENGTH) throw new StreamCorruptedException("Field " + (key >>> 3) + " is not text");
+        return readString(in);
+    }
+
+    private static long readLong(InputStream in, int key) throws IOException {
+        if ((key & 7) != WIRE_VARINT) throw new StreamCorruptedException("Field " + (key >>> 3) + " is not a number");
+        return unzigzag(readVarint(in));
+    }
+
+    /**
+     * Skips the value of an unknown field.
+     */
+    private static void skip(InputStream in, int key) throws IOException {
+        if ((key & 7) == WIRE_VARINT) readVarint(in);
+        else if ((key & 7) == WIRE_LENGTH) readString(in);
+        else throw new StreamCorruptedException("Unknown wire type: " + (key & 7));
+    }
+
+    /** Maps signed numbers to unsigned ones, small magnitudes to small numbers: 0, -1, 1, -2... to 0, 1, 2, 3... */
+    private static long zigzag(long value) { return (value << 1) ^ (value >> 63); }
+    private static long unzigzag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+    /** Type codes. */
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int LONG = 2;
+    private static final int BOOLEAN = 3;
+    private static final int LIST = 4;
+    private static final int TRANSACTION = 10;
+    private static final int TRANSACTION_QUERY = 11;
+    private static final int TRANSACTION_RESULT = 12;
+    private static final int TRANSACTION_STATUS_REQUEST = 13;
+    private static final int TRANSACTION_STATUS_RESPONSE = 14;
+    private static final int TRANSACTION_SUMMARY = 15;
+    private static final int BANK_ACCOUNT = 16;
+
+    /** Wire types of the fields: varint or length-prefixed bytes. */
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH = 2;
+
+    /** Key ending the fields of an object. */
+    private static final int END = 0;
+
+    /** Longest string and list accepted, against malformed lengths. */
+    private static final long MAX_LENGTH = 64L * 1024 * 1024;
+}
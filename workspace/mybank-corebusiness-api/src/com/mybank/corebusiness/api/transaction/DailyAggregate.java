@@ -0,0 +1,112 @@
+package com.mybank.corebusiness.api.transaction;
+
+import java.io.Serializable;
+
+/**
+ * Totals of the transactions of an account on one day (UTC), kept up to date as transactions are stored,
+ * so totals over a date range are added up from one row per day rather than from every transaction.
+ */
+@SuppressWarnings("serial")
+public class DailyAggregate implements Serializable {
+
+    /** Number of milliseconds in a day. */
+    public static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /** Unique public identifier of the bank account the transactions applied on. */
+    private String accountIban;
+    
+    /** The day, as days since 1970-01-01 (UTC). */
+    private long dayEpoch;
+    
+    /** Sum of the amounts of the credit transactions (positive or 0 amount), in cents. */
+    private long credits;
+    
+    /** Sum of the amounts of the debit transactions (negative amount), in cents. Negative or 0. */
+    private long debits;
+    
+    /** Sum of the fees of the transactions, in cents. */
+    private long fees;
+    
+    /** Number of credit transactions. */
+    private long creditCount;
+    
+    /** Number of debit transactions. */
+    private long debitCount;
+
+    /**
+     * Provides the day a time-stamp falls into, as days since 1970-01-01 (UTC).
+     */
+    public static long dayOf(long dateEpoch) {
+        return Math.floorDiv(dateEpoch, DAY_MS);
+    }
+
+    /**
+     * Adds a transaction to the totals.
+     */
+    public void add(Transaction transaction) {
+        if (transaction.getAmount() >= 0) {
+            credits += transaction.getAmount();
+            creditCount++;
+        } else {
+            debits += transaction.getAmount();
+            debitCount++;
+        }
+        if (transaction.getFee() != null) fees += transaction.getFee();
+    }
+
+    public String getAccountIban() {
+        return accountIban;
+    }
+
+    public void setAccountIban(String accountIban) {
+        this.accountIban = accountIban;
+    }
+
+    public long getDayEpoch() {
+        return dayEpoch;
+    }
+
+    public void setDayEpoch(long dayEpoch) {
+        this.dayEpoch = dayEpoch;
+    }
+
+    public long getCredits() {
+        return credits;
+    }
+
+    public void setCredits(long credits) {
+        this.credits = credits;
+    }
+
+    public long getDebits() {
+        return debits;
+    }
+
+    public void setDebits(long debits) {
+        this.debits = debits;
+    }
+
+    public long getFees() {
+        return fees;
+    }
+
+    public void setFees(long fees) {
+        this.fees = fees;
+    }
+
+    public long getCreditCount() {
+        return creditCount;
+    }
+
+    public void setCreditCount(long creditCount) {
+        this.creditCount = creditCount;
+    }
+
+    public long getDebitCount() {
+        return debitCount;
+    }
+
+    public void setDebitCount(long debitCount) {
+        this.debitCount = debitCount;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mybank.corebusiness.api.transaction;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Identifier of a {@link DailyAggregate}: the account and the day.
+ */
+@SuppressWarnings("serial")
+public class DailyAggregateKey implements Serializable {
+
+    private String accountIban;
+    
+    private long dayEpoch;
+
+    public DailyAggregateKey() {}
+
+    public DailyAggregateKey(String accountIban, long dayEpoch) {
+        this.accountIban = accountIban;
+        this.dayEpoch = dayEpoch;
+    }
+
+    public String getAccountIban() {
+        return accountIban;
+    }
+
+    public void setAccountIban(String accountIban) {
+        this.accountIban = accountIban;
+    }
+
+    public long getDayEpoch() {
+        return dayEpoch;
+    }
+
+    public void setDayEpoch(long dayEpoch) {
+        this.dayEpoch = dayEpoch;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof DailyAggregateKey)) return false;
+        return Objects.equals(accountIban, ((DailyAggregateKey) other).accountIban) && dayEpoch == ((DailyAggregateKey) other).dayEpoch;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(accountIban, dayEpoch);
+    }
+}
@@ -8,4 +8,5 @@ public enum Statuses {
     STATUS_SETTLED,
     STATUS_FUTURE,
     STATUS_INVALID,
+    STATUS_FAILED, // Accepted, but could not be applied afterwards (journaled postings only).
 }
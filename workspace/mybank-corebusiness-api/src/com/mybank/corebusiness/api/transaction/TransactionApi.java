@@ -1,6 +1,7 @@
 package com.mybank.corebusiness.api.transaction;
 
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 import com.mybank.corebusiness.api.rest.CallException;
 
@@ -23,6 +24,21 @@ public interface TransactionApi {
     
     /** Represents the resources containing the current status of transactions. */
     public static final String RES_STATUS = "status";
+    
+    /** Represents sets of account transactions to be stored together. */
+    public static final String RES_BATCH = "batch";
+    
+    /** Represents the full sets of account transactions meeting some conditions, provided as a stream. */
+    public static final String RES_EXPORT = "export";
+    
+    /** Represents the totals of account transactions within a time range. */
+    public static final String RES_SUMMARY = "summary";
+    
+    /** Media type of streams of transactions: one JSON transaction per line. */
+    public static final String MEDIA_NDJSON = "application/x-ndjson";
+    
+    /** Request header carrying the client key that identifies retries of the same request. */
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
 
     /**
      * Stores a new transaction into the system.
@@ -32,6 +48,25 @@ public interface TransactionApi {
      */
     String createTransaction(Transaction transaction) throws CallException;
     
+    /**
+     * Stores a new transaction into the system, once per idempotency key.
+     * Retries with the same key get the outcome of the first request (reference or error) without storing the transaction again.
+     * @param transaction Information about the transaction. A valid reference will be generated if not provided.
+     * @param idempotencyKey Key chosen by the client, unique per transaction. Not used if null.
+     * @return The eventual reference of the stored transaction.
+     * @throws CallException On invalid transaction, or on key already used for a different transaction.
+     */
+    String createTransaction(Transaction transaction, String idempotencyKey) throws CallException;
+    
+    /**
+     * Stores several new transactions into the system.
+     * Each transaction is accepted or rejected on its own, in the given order, as if created one by one.
+     * @param transactions Information about the transactions. Valid references will be generated if not provided.
+     * @return The outcome of each transaction, in the same order: its eventual reference or the reason it was rejected.
+     * @throws CallException On invalid request as a whole.
+     */
+    ArrayList<TransactionResult> createTransactions(ArrayList<Transaction> transactions) throws CallException;
+    
     /**
      * Provides the information of some transactions in the system.
      * @param query Conditions to meet for those transactions that will be provided.
@@ -40,6 +75,25 @@ public interface TransactionApi {
      */
     ArrayList<Transaction> queryTransactions(TransactionQuery query) throws CallException;
     
+    /**
+     * Provides all the transactions in the system meeting some conditions, one by one, with no page limit.
+     * Memory use does not depend on the number of transactions.
+     * @param query Conditions to meet for those transactions that will be provided. Pagination is ignored.
+     * @param consumer Receives the transactions found, sorted as requested.
+     * @return Number of transactions found.
+     * @throws CallException On invalid query.
+     */
+    long streamTransactions(TransactionQuery query, Consumer<Transaction> consumer) throws CallException;
+    
+    /**
+     * Provides the totals of the transactions of an account within a time range: credits, debits, fees and counts.
+     * Its cost depends on the number of days in the range, not on the number of transactions.
+     * @param query Account and time range of the transactions. Sorting and pagination are ignored.
+     * @return The totals. All of them 0 if no transactions found.
+     * @throws CallException On invalid query.
+     */
+    TransactionSummary summarizeTransactions(TransactionQuery query) throws CallException;
+    
     /**
      * Provides the current status of a transaction previously processed by the system. 
      * @param statusRequest Identification of the transaction and incoming requesting channel.
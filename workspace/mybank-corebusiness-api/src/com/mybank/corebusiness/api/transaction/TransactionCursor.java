@@ -0,0 +1,62 @@
+package com.mybank.corebusiness.api.transaction;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a sorted sequence of transactions, to continue a query right after a given transaction.
+ * Sent as an opaque string, see {@link TransactionQuery#setCursor(String)}.
+ */
+public class TransactionCursor {
+
+    /**
+     * Provides the cursor to continue a query after a transaction, usually the last one of a page.
+     */
+    public static String after(Transaction transaction) {
+        String position = transaction.getDateEpoch() + SEPARATOR + transaction.getAmount() + SEPARATOR + transaction.getReference();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a cursor.
+     * @throws IllegalArgumentException On malformed cursor.
+     */
+    public static TransactionCursor parse(String cursor) {
+        String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(SEPARATOR, 3);
+        if (position.length != 3) throw new IllegalArgumentException("Malformed cursor");
+        try {
+            return new TransactionCursor(Long.parseLong(position[0]), Long.parseLong(position[1]), position[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    private TransactionCursor(long dateEpoch, long amount, String reference) {
+        this.dateEpoch = dateEpoch;
+        this.amount = amount;
+        this.reference = reference;
+    }
+
+    public long getDateEpoch() {
+        return dateEpoch;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    private static final String SEPARATOR = "|";
+
+    /** Applicable date of the transaction the cursor is placed after. */
+    private final long dateEpoch;
+
+    /** Amount of the transaction the cursor is placed after. */
+    private final long amount;
+
+    /** Reference of the transaction the cursor is placed after. Breaks ties between equal dates or amounts. */
+    private final String reference;
+}
@@ -29,6 +29,13 @@ public class TransactionQuery implements Serializable {
     
     /** Pagination in case of too much content: maximum number of transactions to provide per page. */
     private int pageSize;
+    
+    /**
+     * Pagination in case of too much content: continue right after the last transaction of the previous page,
+     * as given by {@link TransactionCursor#after(Transaction)}. Page number is ignored then.
+     * Every page costs the same however deep it is. Null to use page numbers.
+     */
+    private String cursor;
 
     public String getAccountIban() {
         return accountIban;
@@ -85,4 +92,12 @@ public class TransactionQuery implements Serializable {
     public void setPageSize(int pageSize) {
         this.pageSize = pageSize;
     }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
 }
@@ -0,0 +1,32 @@
+package com.mybank.corebusiness.api.transaction;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of the processing of one transaction out of a set of transactions sent together.
+ */
+@SuppressWarnings("serial")
+public class TransactionResult implements Serializable {
+
+    /** The eventual reference of the stored transaction. Null when not stored. */
+    private String reference;
+    
+    /** Message explaining why the transaction was not stored. Null when stored. */
+    private String error;
+
+    public String getReference() {
+        return reference;
+    }
+
+    public void setReference(String reference) {
+        this.reference = reference;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,98 @@
+package com.mybank.corebusiness.api.transaction;
+
+import java.io.Serializable;
+
+/**
+ * Totals of the transactions of an account within a time range.
+ */
+@SuppressWarnings("serial")
+public class TransactionSummary implements Serializable {
+
+    /** Unique identifier of the account the transactions applied on. */
+    private String accountIban;
+    
+    /** Earliest time-stamp of the range, as requested. 0 for unlimited. */
+    private long since;
+    
+    /** Latest time-stamp of the range, as requested. 0 for unlimited. */
+    private long until;
+    
+    /** Sum of the amounts of the credit transactions (positive or 0 amount), in cents. */
+    private long credits;
+    
+    /** Sum of the amounts of the debit transactions (negative amount), in cents. Negative or 0. */
+    private long debits;
+    
+    /** Sum of the fees of the transactions, in cents. */
+    private long fees;
+    
+    /** Number of credit transactions. */
+    private long creditCount;
+    
+    /** Number of debit transactions. */
+    private long debitCount;
+
+    public String getAccountIban() {
+        return accountIban;
+    }
+
+    public void setAccountIban(String accountIban) {
+        this.accountIban = accountIban;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public void setSince(long since) {
+        this.since = since;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+
+    public void setUntil(long until) {
+        this.until = until;
+    }
+
+    public long getCredits() {
+        return credits;
+    }
+
+    public void setCredits(long credits) {
+        this.credits = credits;
+    }
+
+    public long getDebits() {
+        return debits;
+    }
+
+    public void setDebits(long debits) {
+        this.debits = debits;
+    }
+
+    public long getFees() {
+        return fees;
+    }
+
+    public void setFees(long fees) {
+        this.fees = fees;
+    }
+
+    public long getCreditCount() {
+        return creditCount;
+    }
+
+    public void setCreditCount(long creditCount) {
+        this.creditCount = creditCount;
+    }
+
+    public long getDebitCount() {
+        return debitCount;
+    }
+
+    public void setDebitCount(long debitCount) {
+        this.debitCount = debitCount;
+    }
+}
@@ -1,15 +1,35 @@
 package com.mybank.corebusiness.backend;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.mybank.corebusiness.api.account.AccountApi;
 import com.mybank.corebusiness.api.transaction.TransactionApi;
+import com.mybank.corebusiness.backend.account.AccountCache;
+import com.mybank.corebusiness.backend.account.AccountIndex;
+import com.mybank.corebusiness.backend.account.AccountLocalClient;
 import com.mybank.corebusiness.backend.account.AccountService;
 import com.mybank.corebusiness.backend.common.AuthMiddleware;
 import com.mybank.corebusiness.backend.common.AuthMiddlewareApi;
 import com.mybank.corebusiness.backend.persistence.HibernateDatastore;
 import com.mybank.corebusiness.backend.persistence.HibernateDatastore.Stores;
+import com.mybank.corebusiness.backend.persistence.JdbcDatastore;
 import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.ReplicaFeed;
+import com.mybank.corebusiness.backend.rest.AdmissionGate;
+import com.mybank.corebusiness.backend.rest.RequestExecutor;
+import com.mybank.corebusiness.backend.transaction.PostingEngine;
+import com.mybank.corebusiness.backend.transaction.PostingJournal;
+import com.mybank.corebusiness.backend.transaction.PostingLanes;
+import com.mybank.corebusiness.backend.transaction.ReferenceGenerator;
+import com.mybank.corebusiness.backend.transaction.ReferenceIndex;
+import com.mybank.corebusiness.backend.transaction.TransactionArchiver;
 import com.mybank.corebusiness.backend.transaction.TransactionService;
 import com.mybank.corebusiness.sdk.AccountClient;
 
@@ -28,17 +48,97 @@ public class Ctx {
         // Static tools instantiation.
         mAuthMiddleware = new AuthMiddleware();
         
+        // Read replica of the live store, fed from it. Reporting reads go there when fresh enough.
+        if (getConfigBoolean(CFG_REPLICA_ENABLED, false)) {
+            mReplicaFeed = new ReplicaFeed(getPersistenceLive(), getPersistenceReplica(), getConfigLong(CFG_REPLICA_INTERVAL_MS, 50), getConfigInt(CFG_REPLICA_BATCH, 500));
+            mReplicaMaxLagMs = getConfigLong(CFG_REPLICA_MAX_LAG_MS, 1000);
+            mReplicaReadYourWrites = getConfigBoolean(CFG_REPLICA_READ_YOUR_WRITES, true);
+            log.info("Read replica: up to " + mReplicaMaxLagMs + "ms behind" + (mReplicaReadYourWrites ? ", read-your-writes" : ""));
+        }
+        mAccountCache = new AccountCache(getPersistenceLive(), getConfigInt(CFG_ACCOUNTS_CACHE, 100000), getConfigLong(CFG_ACCOUNTS_CACHE_TTL_MS, 1000));
+        mPostingEngine = new PostingEngine(mAccountCache, mReplicaFeed);
+        mReferenceGenerator = new ReferenceGenerator(getConfigInt(CFG_NODE_ID, 0));
+        
         // Service instantiation. Business logic static components.
         mTransactionService = new TransactionService();
         mAccountService = new AccountService();
         
+        // Account service access mode. Co-located by default.
+        mAccountRemote = getConfigBoolean(CFG_ACCOUNT_REMOTE, false);
+        mAccountServiceUrl = getConfig(CFG_ACCOUNT_URL, null);
+        log.info("Account service access: " + (mAccountRemote ? "remote" : "local"));
+        
+        // Index of existing transaction references. It only knows the references stored by this node,
+        // so it is kept only when no other node stores transactions in the same database.
+        if (getConfigBoolean(CFG_REFERENCES_SINGLE_WRITER, false)) {
+            mReferenceIndex = new ReferenceIndex(getConfigLong(CFG_REFERENCES_EXPECTED, 10000000L),
+                                                 Double.parseDouble(getConfig(CFG_REFERENCES_FPP, "0.01")));
+            mReferenceIndex.load(getPersistenceLive());
+            mReferenceIndex.load(getPersistenceArchive());
+        }
+        
+        // Index of existing accounts.
+        mAccountIndex = new AccountIndex(getConfigLong(CFG_ACCOUNTS_EXPECTED, 1000000L));
+        mAccountIndex.load(getPersistenceLive());
+        
+        // Background tasks.
+        mRequestExecutor = new RequestExecutor(getConfigInt(CFG_REQUESTS_THREADS, 200),
+                                               getConfigInt(CFG_REQUESTS_QUEUE, 10000),
+                                               getConfigLong(CFG_REQUESTS_TIMEOUT_MS, 30000),
+                                               getConfigBoolean(CFG_REQUESTS_VIRTUAL, false));
+        addAdmissionGate(GATE_TRANSACTION, "200,2000,2000");
+        addAdmissionGate(GATE_BATCH, "8,32,5000");
+        addAdmissionGate(GATE_QUERY, "32,256,5000");
+        addAdmissionGate(GATE_EXPORT, "4,16,10000");
+        addAdmissionGate(GATE_STATUS_PREFIX + "CLIENT", "64,512,1000");
+        addAdmissionGate(GATE_STATUS_PREFIX + "ATM", "64,512,1000");
+        addAdmissionGate(GATE_STATUS_PREFIX + "INTERNAL", "8,64,5000");
+        mPostingLanes = new PostingLanes(getConfigInt(CFG_LANES_COUNT, Runtime.getRuntime().availableProcessors()),
+                                         getConfigInt(CFG_LANES_QUEUE, 10000));
+        
+        // Tiering of old transactions, started apart once the context is available.
+        mTransactionArchiver = new TransactionArchiver(getPersistenceLive(), getPersistenceArchive(),
+                                                       TimeUnit.DAYS.toMillis(getConfigLong(CFG_ARCHIVE_AGE_DAYS, 90)),
+                                                       getConfigLong(CFG_ARCHIVE_INTERVAL_MS, 60000),
+                                                       getConfigInt(CFG_ARCHIVE_BATCH, 500), mReplicaFeed);
+        
+        // Optional journal of postings, started apart once the context is available.
+        if (getConfigBoolean(CFG_JOURNAL_ENABLED, false)) {
+            if (mAccountRemote) {
+                log.warning("Posting journal not available with remote account service, disabled");
+            } else {
+                try {
+                    mPostingJournal = new PostingJournal(new File(getConfig(CFG_JOURNAL_PATH, new File(System.getProperty("java.io.tmpdir"), "mybank-postings.journal").getPath())),
+                                                         getConfigLong(CFG_JOURNAL_SIZE_MB, 64) * 1024L * 1024L,
+                                                         getConfigLong(CFG_JOURNAL_FLUSH_MS, 2),
+                                                         getConfigInt(CFG_JOURNAL_BATCH, 500),
+                                                         getConfigInt(CFG_JOURNAL_ATTEMPTS, 10),
+                                                         mPostingLanes, mPostingEngine, this::getPersistenceLive);
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Posting journal cannot be opened", e);
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        
         log.info("Ctx started");
     }
     
     /**
-     * Stops the execution of background tasks. None yet.
+     * Stops the execution of background tasks.
      */
     public void shutdown() {
+        mRequestExecutor.shutdown();
+        mTransactionArchiver.shutdown();
+        if (mReplicaFeed != null) mReplicaFeed.shutdown();
+        if (mPostingJournal != null) mPostingJournal.shutdown();
+        mPostingLanes.shutdown();
+        if (mJdbcPersistence) getPersistenceLive().shutdown(); // Connection pools of the JDBC datastores. JPA ones are shut down by the startup.
+        log.info("Account index: " + mAccountIndex.getCount() + " accounts, " + mAccountIndex.getMemoryBytes() / 1024 + "KB off-heap");
+        log.info("Account cache: " + mAccountCache.getSize() + " accounts, " + mAccountCache.getHitCount() + " hits, " + 
+                 mAccountCache.getMissCount() + " misses, " + mAccountCache.getEvictionCount() + " evictions");
+        if (mReferenceIndex != null) log.info("Reference index: " + mReferenceIndex.getCount() + " references, " + mReferenceIndex.getMemoryBytes() / 1024 + "KB, " +
+                 "false positive rate " + mReferenceIndex.getObservedFalsePositiveRate() + " observed, " + mReferenceIndex.getEstimatedFalsePositiveRate() + " estimated");
         log.info("Ctx shutdown");
     }
     
@@ -59,15 +159,115 @@ public class Ctx {
     
     // Tools.
     public AuthMiddlewareApi getAuthMiddleware() { return mAuthMiddleware; }
-    public PersistenceApi getPersistenceLive() { return new HibernateDatastore(Stores.LIVE); } // Per request instantiation.
-    public AccountApi getAccountClient() { 
-        if (mAccountClient == null) mAccountClient = new AccountClient(mServicesBaseUrl);
+    public PostingEngine getPostingEngine() { return mPostingEngine; }
+    public AccountCache getAccountCache() { return mAccountCache; }
+    public AccountIndex getAccountIndex() { return mAccountIndex; }
+    public PostingLanes getPostingLanes() { return mPostingLanes; }
+    public RequestExecutor getRequestExecutor() { return mRequestExecutor; }
+    public AdmissionGate getAdmissionGate(String name) { return mAdmissionGates.get(name); } // Null if unknown.
+    public Collection<AdmissionGate> getAdmissionGates() { return mAdmissionGates.values(); }
+    public PostingJournal getPostingJournal() { return mPostingJournal; } // Null when disabled.
+    public ReferenceGenerator getReferenceGenerator() { return mReferenceGenerator; }
+    public ReferenceIndex getReferenceIndex() { return mReferenceIndex; } // Null when other nodes may store transactions too.
+    public TransactionArchiver getTransactionArchiver() { return mTransactionArchiver; }
+    public ReplicaFeed getReplicaFeed() { return mReplicaFeed; } // Null when disabled.
+    public PersistenceApi getPersistenceLive() { return mJdbcPersistence ? JdbcDatastore.get(Stores.LIVE) : HibernateDatastore.get(Stores.LIVE); } // Shared, thread-safe.
+    public PersistenceApi getPersistenceArchive() { return mJdbcPersistence ? JdbcDatastore.get(Stores.ARCHIVE) : HibernateDatastore.get(Stores.ARCHIVE); } // Shared, thread-safe.
+    public PersistenceApi getPersistenceReplica() { return mJdbcPersistence ? JdbcDatastore.get(Stores.REPLICA) : HibernateDatastore.get(Stores.REPLICA); } // Shared, thread-safe. Written by the replica feed only.
+    
+    /**
+     * Provides the store for reads only displayed or reported, never deciding a write: the read replica when enabled
+     * and not too far behind, the live store otherwise.
+     * With read-your-writes, the live store is also read for an entity with changes not copied to the replica yet.
+     * @param entityClass Type of the entity read, e.g. BankAccount for a balance or the transactions of an account.
+     * @param key Key of the entity read, e.g. the IBAN of the account.
+     */
+    public PersistenceApi getPersistenceRead(Class<?> entityClass, Object key) {
+        if (mReplicaFeed == null || mReplicaFeed.getLagMs() > mReplicaMaxLagMs) return getPersistenceLive();
+        if (mReplicaReadYourWrites && mReplicaFeed.isPending(entityClass, key)) return getPersistenceLive();
+        return getPersistenceReplica();
+    }
+    
+    /**
+     * Provides access to the account service.
+     * When co-located (default) the calls go straight to the account service working on the given persistence context.
+     * Otherwise (split deployments) a remote client is provided.
+     * @param datastore Persistence context of the caller, to be shared by the account service when co-located.
+     */
+    public AccountApi getAccountClient(PersistenceApi datastore) {
+        if (!mAccountRemote) return new AccountLocalClient(mAccountService, datastore);
+        if (mAccountClient == null) mAccountClient = new AccountClient(mAccountServiceUrl != null ? mAccountServiceUrl : mServicesBaseUrl);
         return mAccountClient;
     }
     
+    /** Indicates whether the account service is accessed through its remote REST interface. */
+    public boolean isAccountRemote() { return mAccountRemote; }
+    
     // Services.
     public TransactionApi getTransactionService() { return mTransactionService; }
-    public AccountApi getAccountService() { return mAccountService; }
+    public AccountService getAccountService() { return mAccountService; }
+
+    // Configuration. Taken from JVM system properties, e.g. -Dmybank.account.remote=true
+    public static final String CFG_NODE_ID = "mybank.node.id";
+    public static final String CFG_ACCOUNT_REMOTE = "mybank.account.remote";
+    public static final String CFG_ACCOUNT_URL = "mybank.account.url";
+    public static final String CFG_LANES_COUNT = "mybank.lanes.count";
+    public static final String CFG_LANES_QUEUE = "mybank.lanes.queue";
+    public static final String CFG_BATCH_MAX = "mybank.batch.max";
+    public static final String CFG_REFERENCES_EXPECTED = "mybank.references.expected";
+    public static final String CFG_REFERENCES_FPP = "mybank.references.fpp";
+    public static final String CFG_REFERENCES_SINGLE_WRITER = "mybank.references.singleWriter"; // Only this node stores transactions.
+    public static final String CFG_REQUESTS_THREADS = "mybank.requests.threads";
+    public static final String CFG_REQUESTS_QUEUE = "mybank.requests.queue";
+    public static final String CFG_REQUESTS_TIMEOUT_MS = "mybank.requests.timeoutMs";
+    public static final String CFG_REQUESTS_VIRTUAL = "mybank.requests.virtual";
+    public static final String CFG_ADMISSION_PREFIX = "mybank.admission."; // Followed by gate name. Value: "maxInFlight,maxQueued,maxWaitMs".
+    public static final String CFG_ACCOUNTS_CACHE = "mybank.accounts.cache";
+    public static final String CFG_ACCOUNTS_CACHE_TTL_MS = "mybank.accounts.cacheTtlMs";
+    public static final String CFG_ACCOUNTS_EXPECTED = "mybank.accounts.expected";
+    public static final String CFG_STREAM_CHUNK = "mybank.stream.chunk";
+    public static final String CFG_IDEMPOTENCY_MAX = "mybank.idempotency.max";
+    public static final String CFG_IDEMPOTENCY_TTL_SECONDS = "mybank.idempotency.ttlSeconds";
+    public static final String CFG_ARCHIVE_ENABLED = "mybank.archive.enabled";
+    public static final String CFG_ARCHIVE_AGE_DAYS = "mybank.archive.ageDays";
+    public static final String CFG_ARCHIVE_INTERVAL_MS = "mybank.archive.intervalMs";
+    public static final String CFG_ARCHIVE_BATCH = "mybank.archive.batch";
+    public static final String CFG_ARCHIVE_MERGE_MAX = "mybank.archive.mergeMax";
+    public static final String CFG_JOURNAL_ENABLED = "mybank.journal.enabled";
+    public static final String CFG_JOURNAL_PATH = "mybank.journal.path";
+    public static final String CFG_JOURNAL_SIZE_MB = "mybank.journal.sizeMb";
+    public static final String CFG_JOURNAL_FLUSH_MS = "mybank.journal.flushMs";
+    public static final String CFG_JOURNAL_BATCH = "mybank.journal.batch";
+    public static final String CFG_JOURNAL_ATTEMPTS = "mybank.journal.attempts";
+    public static final String CFG_PERSISTENCE = "mybank.persistence"; // "hibernate" (default) or "jdbc".
+    public static final String CFG_REPLICA_ENABLED = "mybank.replica.enabled";
+    public static final String CFG_REPLICA_MAX_LAG_MS = "mybank.replica.maxLagMs";
+    public static final String CFG_REPLICA_READ_YOUR_WRITES = "mybank.replica.readYourWrites";
+    public static final String CFG_REPLICA_INTERVAL_MS = "mybank.replica.intervalMs";
+    public static final String CFG_REPLICA_BATCH = "mybank.replica.batch";
+    public static final String CFG_COMPRESSION_MIN_BYTES = "mybank.compression.minBytes"; // Negative: no compression.
+    
+    public static String getConfig(String name, String defaultValue) { return System.getProperty(name, defaultValue); }
+    public static boolean getConfigBoolean(String name, boolean defaultValue) { return Boolean.parseBoolean(getConfig(name, String.valueOf(defaultValue))); }
+    public static int getConfigInt(String name, int defaultValue) { return Integer.parseInt(getConfig(name, String.valueOf(defaultValue))); }
+    public static long getConfigLong(String name, long defaultValue) { return Long.parseLong(getConfig(name, String.valueOf(defaultValue))); }
+
+    // Admission gates. Status requests have one gate per channel, e.g. "status.ATM".
+    public static final String GATE_TRANSACTION = "transaction";
+    public static final String GATE_BATCH = "batch";
+    public static final String GATE_QUERY = "query";
+    public static final String GATE_EXPORT = "export";
+    public static final String GATE_STATUS_PREFIX = "status.";
+    
+    /**
+     * Creates an admission gate with the configured limits.
+     * @param defaultLimits Limits if not configured: "maxInFlight,maxQueued,maxWaitMs".
+     */
+    private void addAdmissionGate(String name, String defaultLimits) {
+        String[] limits = getConfig(CFG_ADMISSION_PREFIX + name, defaultLimits).split(",");
+        mAdmissionGates.put(name, new AdmissionGate(name, Integer.parseInt(limits[0].trim()), Integer.parseInt(limits[1].trim()), Long.parseLong(limits[2].trim())));
+        log.info("Admission gate '" + name + "': " + String.join(",", limits));
+    }
 
     // Discover own base URL. TODO: improve this.
     public void setBaseUrl(String baseUrl) {
@@ -80,13 +280,33 @@ public class Ctx {
     
     // Tools.
     private AuthMiddlewareApi mAuthMiddleware;
+    private PostingEngine mPostingEngine;
+    private AccountCache mAccountCache;
+    private ReferenceGenerator mReferenceGenerator;
+    private ReferenceIndex mReferenceIndex;
+    private AccountIndex mAccountIndex;
     private AccountApi mAccountClient;
     
+    // Background tasks.
+    private RequestExecutor mRequestExecutor;
+    private Map<String, AdmissionGate> mAdmissionGates = new LinkedHashMap<>();
+    private PostingLanes mPostingLanes;
+    private PostingJournal mPostingJournal;
+    private TransactionArchiver mTransactionArchiver;
+    private ReplicaFeed mReplicaFeed;
+    private long mReplicaMaxLagMs;
+    private boolean mReplicaReadYourWrites;
+    
     // Services.
     private TransactionApi mTransactionService;
-    private AccountApi mAccountService;
+    private AccountService mAccountService;
 
     private String mServicesBaseUrl;
+    private String mAccountServiceUrl;
+    private boolean mAccountRemote;
+    
+    /** Whether the hot operations run in plain JDBC rather than JPA, see {@link JdbcDatastore}. Set before anything touches the datastores. */
+    private final boolean mJdbcPersistence = "jdbc".equals(getConfig(CFG_PERSISTENCE, "hibernate"));
     
     private static Logger log = Logger.getLogger(Ctx.class.getName());
 }
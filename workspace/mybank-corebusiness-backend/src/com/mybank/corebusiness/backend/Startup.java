@@ -14,11 +14,20 @@ public class Startup implements ServletContextListener {
     @Override
     public final void contextInitialized(final ServletContextEvent sce) {
         // Warm up database.
-        mWarmupDbPublic = new HibernateDatastore(Stores.LIVE);
-        mWarmupDbPrivate = new HibernateDatastore(Stores.ARCHIVE); // TODO: not used so far.
+        mWarmupDbPublic = HibernateDatastore.get(Stores.LIVE);
+        mWarmupDbPrivate = HibernateDatastore.get(Stores.ARCHIVE); // Old transactions, moved by the transaction archiver.
         
         // Starting up context.
-        Ctx.get();
+        Ctx ctx = Ctx.get();
+        
+        // Replaying journaled postings not applied yet, then applying new ones as they come.
+        if (ctx.getPostingJournal() != null) ctx.getPostingJournal().start();
+        
+        // Moving old transactions to the archive store from now on, when enabled.
+        if (Ctx.getConfigBoolean(Ctx.CFG_ARCHIVE_ENABLED, false)) ctx.getTransactionArchiver().start();
+        
+        // Copying the live store to the read replica, then its changes as they come.
+        if (ctx.getReplicaFeed() != null) ctx.getReplicaFeed().start();
     }
 
     @Override
@@ -0,0 +1,209 @@
+package com.mybank.corebusiness.backend.account;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+
+/**
+ * Bounded cache of the balances of the bank accounts in one store, least recently used ones discarded first.
+ * Each balance is kept along with the account version it was read at, and a balance is never replaced by an older
+ * one, so concurrent readers and writers cannot leave a stale balance in place of a newer one.
+ * Balances read before an invalidation are not kept either.
+ * Changes made by other nodes on the same database are not notified: balances are kept for a bounded time only,
+ * and must not be relied upon to accept postings (only to display them, or as the expected balance of a conditional update).
+ * Thread-safe.
+ */
+public class AccountCache {
+
+    /**
+     * @param datastore The store holding the bank accounts. Any change on them made through it other than
+     *                  by named queries discards their balances, see {@link PersistenceApi#addChangeListener(Class, java.util.function.Consumer)}.
+     * @param maxEntries Maximum number of accounts kept. 0 disables the cache.
+     * @param ttlMillis Time a balance is kept since read, bounding how stale it gets when changed by other nodes.
+     */
+    public AccountCache(PersistenceApi datastore, int maxEntries, long ttlMillis) {
+        mDatastore = datastore;
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        datastore.addChangeListener(BankAccount.class, this::invalidate);
+    }
+
+    /**
+     * Provides the balance of an account, reading it from the database if not cached.
+     * @param datastore The store to read from if not cached. Other than the one of the cache (e.g. a read replica),
+     *                  the balance read is not cached: the cached one is never older than the one it has.
+     * @return The balance, or null if the account does not exist.
+     */
+    public Long getBalance(PersistenceApi datastore, String iban) {
+        synchronized (mEntries) {
+            Balance cached = getFresh(iban);
+            if (cached != null) {
+                mHits++;
+                return cached.mBalance;
+            }
+            mMisses++;
+        }
+        return load(datastore, iban);
+    }
+
+    /**
+     * Provides the balance of an account along with the version it belongs to, reading it from the database if not cached.
+     * @param datastore The store to read from if not cached, see {@link #getBalance(PersistenceApi, String)}.
+     * @return The account with its IBAN, balance and version only, or null if it does not exist.
+     */
+    public BankAccount getAccount(PersistenceApi datastore, String iban) {
+        synchronized (mEntries) {
+            Balance cached = getFresh(iban);
+            if (cached != null) {
+                mHits++;
+                return newAccount(iban, cached.mBalance, cached.mVersion);
+            }
+            mMisses++;
+        }
+        return loadAccount(datastore, iban);
+    }
+
+    /**
+     * Provides the balance kept for an account unless expired, discarding it then. Called holding the lock of the entries.
+     */
+    private Balance getFresh(String iban) {
+        Balance cached = mEntries.get(iban);
+        if (cached == null || System.currentTimeMillis() - cached.mRead <= mTtlMillis) return cached;
+        mEntries.remove(iban);
+        return null;
+    }
+
+    /**
+     * Reads the balance of an account from the database and caches it, e.g. once changed by a posting.
+     * @param datastore The store to read from. Other than the one of the cache, nothing is cached.
+     * @return The balance, or null if the account does not exist.
+     */
+    public Long load(PersistenceApi datastore, String iban) {
+        BankAccount account = loadAccount(datastore, iban);
+        return account != null ? account.getBalance() : null;
+    }
+
+    /**
+     * @see #load(PersistenceApi, String)
+     * @return The account with its IBAN, balance and version only, or null if it does not exist.
+     */
+    private BankAccount loadAccount(PersistenceApi datastore, String iban) {
+        long generation = getGeneration();
+        List<Object> rows = datastore.loadNamed(Queries.ACCOUNT_BALANCE, QueryParameters.with("iban", iban), null, null);
+        if (rows == null || rows.isEmpty()) return null;
+        Object[] row = (Object[]) rows.get(0);
+        if (datastore == mDatastore) put(iban, (Long) row[0], (Long) row[1], generation);
+        return newAccount(iban, (Long) row[0], (Long) row[1]);
+    }
+
+    private static BankAccount newAccount(String iban, long balance, long version) {
+        BankAccount account = new BankAccount();
+        account.setAccountIban(iban);
+        account.setBalance(balance);
+        account.setVersion(version);
+        return account;
+    }
+
+    /**
+     * Keeps the balance of an account unless a more recent one is kept already.
+     * @param version The account version the balance belongs to.
+     * @param generation The value of {@link #getGeneration()} before the balance was read or written.
+     *                   The balance is not kept if any invalidation happened since then.
+     */
+    public void put(String iban, long balance, long version, long generation) {
+        if (mMaxEntries == 0) return;
+        synchronized (mEntries) {
+            if (generation != mGeneration) return;
+            Balance cached = mEntries.get(iban);
+            if (cached != null && cached.mVersion > version) return;
+            mEntries.put(iban, new Balance(balance, version, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Discards the balance of an account, changed in a way the cache cannot follow.
+     * @param iban The account, or null for all of them.
+     */
+    public void invalidate(Object iban) {
+        synchronized (mEntries) {
+            mGeneration++;
+            if (iban == null) mEntries.clear();
+            else mEntries.remove(iban);
+        }
+    }
+
+    /** Counter of invalidations, see {@link #put(String, long, long, long)}. */
+    public long getGeneration() {
+        synchronized (mEntries) {
+            return mGeneration;
+        }
+    }
+
+    /** Number of accounts kept. */
+    public int getSize() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /** Number of balances found in the cache. */
+    public long getHitCount() {
+        synchronized (mEntries) {
+            return mHits;
+        }
+    }
+
+    /** Number of balances read from the database because not found in the cache. */
+    public long getMissCount() {
+        synchronized (mEntries) {
+            return mMisses;
+        }
+    }
+
+    /** Number of balances discarded to keep the cache within its size. */
+    public long getEvictionCount() {
+        synchronized (mEntries) {
+            return mEvictions;
+        }
+    }
+
+    /**
+     * Balance of an account at a given version, and when it was read.
+     */
+    private static class Balance {
+        Balance(long balance, long version, long read) {
+            mBalance = balance;
+            mVersion = version;
+            mRead = read;
+        }
+        final long mBalance;
+        final long mVersion;
+        final long mRead;
+    }
+
+    private final PersistenceApi mDatastore;
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    private long mGeneration;
+
+    // Statistics.
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /** Balances by IBAN, least recently used first. */
+    @SuppressWarnings("serial")
+    private final Map<String, Balance> mEntries = new LinkedHashMap<String, Balance>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Balance> eldest) {
+            if (size() <= mMaxEntries) return false;
+            mEvictions++;
+            return true;
+        }
+    };
+}
@@ -0,0 +1,323 @@
+package com.mybank.corebusiness.backend.account;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Logger;
+
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+
+/**
+ * Exact index of the IBANs of the existing bank accounts, so existence checks of known accounts need no database access.
+ * Accounts created through another node on the same database are not notified: they are missing until first found
+ * in the datastore, so only IBANs missing in the index are checked there.
+ * IBANs are packed into 32 bytes (6 bits per character, up to 40 characters out of [0-9A-Za-z]) and kept
+ * in an open addressing hash table out of the Java heap, so tens of millions of accounts take no heap at all.
+ * The few IBANs that cannot be packed are kept apart as strings.
+ * Thread-safe. Lookups take no lock unless a change is in progress.
+ */
+public class AccountIndex {
+
+    /**
+     * Creates an empty index.
+     * @param expectedAccounts Number of accounts the index is sized for. Beyond it the table grows.
+     */
+    public AccountIndex(long expectedAccounts) {
+        long capacity = Long.highestOneBit(Math.max(MIN_CAPACITY, (long) (expectedAccounts / MAX_LOAD)) * 2 - 1);
+        mTable = new Table(capacity);
+    }
+
+    /**
+     * Fills the index in with all the accounts currently in a datastore, and keeps it up to date with the
+     * accounts saved or deleted through it afterwards.
+     * @return The number of accounts loaded.
+     */
+    public long load(PersistenceApi datastore) {
+        mDatastore = datastore;
+        long loaded = 0;
+        String lastIban = "";
+        while (true) {
+            List<Object> page = datastore.loadNamed(Queries.ACCOUNT_IBANS_AFTER, QueryParameters.with("iban", lastIban), 0, LOAD_PAGE_SIZE - 1);
+            if (page == null || page.isEmpty()) break;
+            for (Object iban : page) add((String) iban);
+            loaded += page.size();
+            lastIban = (String) page.get(page.size() - 1);
+            if (page.size() < LOAD_PAGE_SIZE) break;
+        }
+
+        // Accounts saved or deleted by others than the account service: checked against the datastore.
+        datastore.addChangeListener(BankAccount.class, iban -> {
+            if (iban == null) return; // Bulk updates: no account created nor deleted.
+            if (iban.equals(mKnownChange.get())) return; // Already registered by the one changing it.
+            if (0 < datastore.countNamed(Queries.ACCOUNT_EXISTS, QueryParameters.with("iban", iban))) add((String) iban);
+            else remove((String) iban);
+        });
+
+        log.info("Account index loaded with " + loaded + " accounts, " + getMemoryBytes() / 1024 + "KB off-heap, " + mOverflow.size() + " not packed");
+        return loaded;
+    }
+
+    /**
+     * Runs a change of an account already registered or unregistered in the index, so the change is not checked
+     * against the datastore when notified.
+     * @param iban The account changed.
+     * @param change Saves or deletes the account through the datastore of the index.
+     */
+    public void changeKnown(String iban, Runnable change) {
+        mKnownChange.set(iban);
+        try {
+            change.run();
+        } finally {
+            mKnownChange.remove();
+        }
+    }
+
+    /**
+     * Indicates whether the index holds the accounts of a datastore.
+     */
+    public boolean covers(PersistenceApi datastore) {
+        return datastore == mDatastore;
+    }
+
+    /**
+     * Indicates whether an account exists.
+     */
+    public boolean contains(String iban) {
+        long[] key = new long[KEY_LONGS];
+        if (!pack(iban, key)) return mOverflow.contains(iban);
+
+        // Optimistic lookup, repeated under lock if a change happened meanwhile.
+        long stamp = mLock.tryOptimisticRead();
+        boolean found = find(mTable, key) >= 0;
+        if (mLock.validate(stamp)) return found;
+        stamp = mLock.readLock();
+        try {
+            return find(mTable, key) >= 0;
+        } finally {
+            mLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Registers an existing account.
+     * @return False if it was already registered.
+     */
+    public boolean add(String iban) {
+        long[] key = new long[KEY_LONGS];
+        if (!pack(iban, key)) return mOverflow.add(iban);
+
+        long stamp = mLock.writeLock();
+        try {
+            long slot = find(mTable, key);
+            if (slot >= 0) return false;
+            if (mTable.mCount + 1 > mTable.mCapacity * MAX_LOAD) {
+                mTable = grow(mTable);
+                slot = find(mTable, key);
+            }
+            mTable.write(-slot - 1, key);
+            mTable.mCount++;
+            return true;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Unregisters an account.
+     * @return False if it was not registered.
+     */
+    public boolean remove(String iban) {
+        long[] key = new long[KEY_LONGS];
+        if (!pack(iban, key)) return mOverflow.remove(iban);
+
+        long stamp = mLock.writeLock();
+        try {
+            Table table = mTable;
+            long slot = find(table, key);
+            if (slot < 0) return false;
+
+            // Backward shift: move up the following entries that would not be found anymore past the hole.
+            long mask = table.mCapacity - 1;
+            long hole = slot;
+            long next = slot;
+            long[] moved = new long[KEY_LONGS];
+            while (true) {
+                next = (next + 1) & mask;
+                if (table.isEmpty(next)) break;
+                table.read(next, moved);
+                long home = hash(moved) & mask;
+                boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+                if (movable) {
+                    table.write(hole, moved);
+                    hole = next;
+                }
+            }
+            table.clear(hole);
+            table.mCount--;
+            return true;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /** Number of accounts registered. */
+    public long getCount() {
+        long stamp = mLock.readLock();
+        try {
+            return mTable.mCount + mOverflow.size();
+        } finally {
+            mLock.unlockRead(stamp);
+        }
+    }
+
+    /** Memory taken by the table out of the Java heap, in bytes. */
+    public long getMemoryBytes() { return mTable.mCapacity * SLOT_BYTES; }
+
+    /**
+     * Finds the slot of a key (linear probing).
+     * @return The slot holding the key, or -(slot + 1) of the empty slot where it would go.
+     */
+    private static long find(Table table, long[] key) {
+        long mask = table.mCapacity - 1;
+        long slot = hash(key) & mask;
+        for (long probes = 0; probes < table.mCapacity; probes++) {
+            if (table.isEmpty(slot)) return -slot - 1;
+            if (table.matches(slot, key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1; // Only seen by optimistic lookups racing a change, then repeated.
+    }
+
+    /**
+     * Provides a table twice as big with the same keys.
+     */
+    private static Table grow(Table table) {
+        Table bigger = new Table(table.mCapacity * 2);
+        long[] key = new long[KEY_LONGS];
+        for (long slot = 0; slot < table.mCapacity; slot++) {
+            if (table.isEmpty(slot)) continue;
+            table.read(slot, key);
+            bigger.write(-find(bigger, key) - 1, key);
+        }
+        bigger.mCount = table.mCount;
+        log.info("Account index grown to " + bigger.mCapacity + " slots, " + bigger.mCapacity * SLOT_BYTES / 1024 + "KB off-heap");
+        return bigger;
+    }
+
+    /**
+     * Packs an IBAN into a fixed-width key, 10 characters per long. The first long is never 0.
+     * @return False if the IBAN cannot be packed: empty, too long or with unexpected characters.
+     */
+    private static boolean pack(String iban, long[] key) {
+        if (iban.isEmpty() || iban.length() > KEY_LONGS * CHARS_PER_LONG) return false;
+        for (int i = 0; i < iban.length(); i++) {
+            char c = iban.charAt(i);
+            long code;
+            if (c >= '0' && c <= '9') code = 1 + (c - '0');
+            else if (c >= 'A' && c <= 'Z') code = 11 + (c - 'A');
+            else if (c >= 'a' && c <= 'z') code = 37 + (c - 'a');
+            else return false;
+            key[i / CHARS_PER_LONG] |= code << (6 * (i % CHARS_PER_LONG));
+        }
+        return true;
+    }
+
+    /**
+     * 64 bits hash of a packed key.
+     */
+    private static long hash(long[] key) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for (long part : key) {
+            hash ^= part;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+        }
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Hash table of packed keys in direct buffers, split in segments as a buffer cannot exceed 2GB.
+     * Its capacity is a power of 2.
+     */
+    private static class Table {
+        Table(long capacity) {
+            mCapacity = capacity;
+            int segmentCount = (int) ((capacity + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS);
+            mSegments = new ByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) mSegments[i] = ByteBuffer.allocateDirect((int) (Math.min(capacity, SEGMENT_SLOTS) * SLOT_BYTES));
+        }
+        boolean isEmpty(long slot) {
+            return segment(slot).getLong(offset(slot)) == 0;
+        }
+        boolean matches(long slot, long[] key) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < KEY_LONGS; i++) if (segment.getLong(offset + i * 8) != key[i]) return false;
+            return true;
+        }
+        void read(long slot, long[] key) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < KEY_LONGS; i++) key[i] = segment.getLong(offset + i * 8);
+        }
+        void write(long slot, long[] key) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < KEY_LONGS; i++) segment.putLong(offset + i * 8, key[i]);
+        }
+        void clear(long slot) {
+            write(slot, new long[KEY_LONGS]);
+        }
+        private ByteBuffer segment(long slot) { return mSegments[(int) (slot / SEGMENT_SLOTS)]; }
+        private int offset(long slot) { return (int) (slot % SEGMENT_SLOTS) * SLOT_BYTES; }
+
+        final long mCapacity;
+        final ByteBuffer[] mSegments;
+        long mCount;
+    }
+
+    /** Longs per packed key. */
+    private static final int KEY_LONGS = 4;
+
+    /** Characters packed in each long, 6 bits each. */
+    private static final int CHARS_PER_LONG = 10;
+
+    /** Bytes per slot of the table. */
+    private static final int SLOT_BYTES = KEY_LONGS * 8;
+
+    /** Slots per buffer of the table: 1GB buffers. */
+    private static final long SEGMENT_SLOTS = 1L << 25;
+
+    /** Smallest table. */
+    private static final long MIN_CAPACITY = 1024;
+
+    /** Share of occupied slots beyond which the table grows. */
+    private static final double MAX_LOAD = 0.75;
+
+    /** Number of accounts read at once while loading. */
+    private static final int LOAD_PAGE_SIZE = 10000;
+
+    /** The datastore the accounts are loaded from. */
+    private volatile PersistenceApi mDatastore;
+
+    /** Current table, replaced when grown. */
+    private volatile Table mTable;
+
+    /** IBANs that cannot be packed. */
+    private final Set<String> mOverflow = ConcurrentHashMap.newKeySet();
+
+    /** Account changed by the current thread, already reflected in the index. */
+    private final ThreadLocal<String> mKnownChange = new ThreadLocal<>();
+
+    /** Lookups are optimistic, changes exclusive. */
+    private final StampedLock mLock = new StampedLock();
+
+    private static Logger log = Logger.getLogger(AccountIndex.class.getName());
+}
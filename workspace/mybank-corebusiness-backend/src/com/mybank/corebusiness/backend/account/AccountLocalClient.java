@@ -0,0 +1,49 @@
+package com.mybank.corebusiness.backend.account;
+
+import com.mybank.corebusiness.api.account.AccountApi;
+import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+
+/**
+ * Provides access to bank accounts service's features when the account service
+ * runs in the same JVM. Calls go straight to the service, no REST round trip,
+ * working on the persistence context of the caller.
+ * @see com.mybank.corebusiness.sdk.AccountClient For the remote access.
+ */
+public class AccountLocalClient implements AccountApi {
+
+    /**
+     * @param accountService The co-located account service.
+     * @param datastore Persistence context of the caller, shared by every call of this instance.
+     */
+    public AccountLocalClient(AccountService accountService, PersistenceApi datastore) {
+        mAccountService = accountService;
+        mDatastore = datastore;
+    }
+
+    @Override
+    public void createAccount(String iban) throws CallException {
+        mAccountService.createAccount(mDatastore, iban);
+    }
+
+    @Override
+    public boolean checkAccount(String iban) throws CallException {
+        return mAccountService.checkAccount(mDatastore, iban);
+    }
+
+    @Override
+    public Long getBalance(String iban) throws CallException {
+        return mAccountService.getBalance(mDatastore, iban);
+    }
+
+    @Override
+    public void setBalance(String iban, long balance) throws CallException {
+        mAccountService.setBalance(mDatastore, iban, balance);
+    }
+
+    /** The co-located account service all calls are delegated to. */
+    private AccountService mAccountService;
+
+    /** Persistence context shared with the caller. */
+    private PersistenceApi mDatastore;
+}
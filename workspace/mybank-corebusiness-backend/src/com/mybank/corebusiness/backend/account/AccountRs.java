@@ -3,27 +3,38 @@ package com.mybank.corebusiness.backend.account;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.CookieParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
 import com.mybank.corebusiness.api.account.AccountApi;
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.rest.BinaryCodec;
 import com.mybank.corebusiness.api.rest.CallException;
 import com.mybank.corebusiness.backend.Ctx;
 import com.mybank.corebusiness.backend.common.AuthMiddlewareApi;
 
 /**
  * REST web service entry point for bank account management.
+ * Entities in JSON, or in the compact binary format of {@link BinaryCodec} for the clients asking for it.
+ * Balances and account checks carry an ETag, so polling clients revalidate them with If-None-Match
+ * and get a 304 without entity while unchanged.
  * Note: this service is under construction.
  */
 @Path(AccountApi.SERVICE_VERSION + "/" + AccountApi.SERVICE_PATH)
-@Consumes(MediaType.APPLICATION_JSON)
-@Produces(MediaType.APPLICATION_JSON)
+@Consumes({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
+@Produces({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
 public class AccountRs {
 
     /**
@@ -31,7 +42,7 @@ public class AccountRs {
      */
     @POST
     @Path(AccountApi.RES_ACCOUNT)
-    public void createAccount(String iban, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+    public void createAccount(String iban, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
@@ -41,16 +52,21 @@ public class AccountRs {
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        accountService.createAccount(iban);
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, () -> {
+            accountService.createAccount(iban);
+            return null;
+        });
     }
 
     /**
+     * Tagged by the outcome: accounts are not removed, so once found it does not change.
      * @see AccountApi#checkAccount(String)
      */
     @GET
     @Path(AccountApi.RES_ACCOUNT + "/{" + AccountApi.PAR_IBAN + "}")
-    public boolean checkAccount(@PathParam(AccountApi.PAR_IBAN) String iban, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+    public void checkAccount(@PathParam(AccountApi.PAR_IBAN) String iban, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken,
+                             @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
@@ -60,27 +76,37 @@ public class AccountRs {
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        return accountService.checkAccount(iban);
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, () -> {
+            boolean exists = accountService.checkAccount(iban);
+            return conditional(ifNoneMatch, exists ? TAG_EXISTS : TAG_MISSING, exists, exists);
+        });
     }
     
     /**
+     * Tagged by the account version, changed with every change of the balance, and by the balance itself,
+     * ahead of the version while journaled postings are not applied yet. Versions start over along with
+     * an in-memory store, so the tag also holds the node and its start.
      * @see AccountApi#getBalance(String)
      */
     @GET
     @Path(AccountApi.RES_ACCOUNT + "/{" + AccountApi.PAR_IBAN + "}/" + AccountApi.RES_BALANCE)
-    public Long getBalance(@PathParam(AccountApi.PAR_IBAN) String iban, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+    public void getBalance(@PathParam(AccountApi.PAR_IBAN) String iban, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken,
+                           @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
-        AccountApi accountService = Ctx.get().getAccountService();
+        AccountService accountService = Ctx.get().getAccountService();
         Ctx.get().setBaseUrl(uri.getBaseUri().toString());
 
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        return accountService.getBalance(iban);
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, () -> {
+            BankAccount account = accountService.getVersionedBalance(iban);
+            return conditional(ifNoneMatch, new EntityTag(STORE_EPOCH + "-" + account.getVersion() + "-" + account.getBalance(), true), true, account.getBalance());
+        });
     }
 
     /**
@@ -88,7 +114,7 @@ public class AccountRs {
      */
     @PUT
     @Path(AccountApi.RES_ACCOUNT + "/{" + AccountApi.PAR_IBAN + "}/" + AccountApi.RES_BALANCE)
-    public void setBalance(@PathParam(AccountApi.PAR_IBAN) String iban, long balance, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+    public void setBalance(@PathParam(AccountApi.PAR_IBAN) String iban, long balance, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
@@ -98,10 +124,46 @@ public class AccountRs {
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        accountService.setBalance(iban, balance);
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, () -> {
+            accountService.setBalance(iban, balance);
+            return null;
+        });
     }
     
+    /**
+     * Answers with the value and its tag, or with 304 and no entity if the client holds that tag already.
+     * Tags are weak: the same for the JSON and the binary entities of a value.
+     * @param ifNoneMatch The tags held by the client, if any.
+     * @param exists Whether the account exists, as "*" only holds the tags of existing ones.
+     */
+    static Response conditional(String ifNoneMatch, EntityTag tag, boolean exists, Object value) {
+        if (matches(ifNoneMatch, tag, exists)) return Response.notModified(tag).build();
+        return Response.ok(value).tag(tag).build();
+    }
+
+    /**
+     * Whether an If-None-Match header holds a tag, weakly compared.
+     * @param exists Whether the account exists, for "*" to match.
+     */
+    static boolean matches(String ifNoneMatch, EntityTag tag, boolean exists) {
+        if (ifNoneMatch == null) return false;
+        String quoted = "\"" + tag.getValue() + "\"";
+        for (String held : ifNoneMatch.split(",")) {
+            held = held.trim();
+            if (held.startsWith("W/")) held = held.substring(2);
+            if ((exists && held.equals("*")) || held.equals(quoted)) return true;
+        }
+        return false;
+    }
+
+    /** Tags of an account check, by outcome. */
+    private static final EntityTag TAG_EXISTS = new EntityTag("exists", true);
+    private static final EntityTag TAG_MISSING = new EntityTag("missing", true);
+
+    /** Prefix of the balance tags: the node and its start time, so versions of a store started over do not match. */
+    private static final String STORE_EPOCH = Ctx.getConfigInt(Ctx.CFG_NODE_ID, 0) + "." + Long.toString(System.currentTimeMillis(), 36);
+
     @Context
     UriInfo uri;
 }
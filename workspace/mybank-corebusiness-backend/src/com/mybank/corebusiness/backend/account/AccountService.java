@@ -7,6 +7,10 @@ import com.mybank.corebusiness.api.account.BankAccount;
 import com.mybank.corebusiness.api.rest.CallException;
 import com.mybank.corebusiness.backend.Ctx;
 import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+import com.mybank.corebusiness.backend.persistence.ReplicaFeed;
+import com.mybank.corebusiness.backend.transaction.PostingJournal;
 
 /**
  * Business logic for bank account management.
@@ -16,49 +20,129 @@ public class AccountService implements AccountApi {
 
     @Override
     public void createAccount(String iban) throws CallException {
+        createAccount(Ctx.get().getPersistenceLive(), iban);
+    }
+
+    @Override
+    public boolean checkAccount(String iban) throws CallException {
+        // The index of the live store takes no database access. Without it, the read store.
+        PersistenceApi live = Ctx.get().getPersistenceLive();
+        if (Ctx.get().getAccountIndex().covers(live)) return checkAccount(live, iban);
+        return checkAccount(Ctx.get().getPersistenceRead(BankAccount.class, iban.trim()), iban);
+    }
+
+    @Override
+    public Long getBalance(String iban) throws CallException {
+        return getVersionedBalance(iban).getBalance();
+    }
+
+    @Override
+    public void setBalance(String iban, long balance) throws CallException {
+        setBalance(Ctx.get().getPersistenceLive(), iban, balance);
+    }
+
+    /**
+     * Balance of an account along with the version it belongs to, so readers can tell whether it changed.
+     * Journaled postings not applied yet are included, so a balance read right after a posting reflects it.
+     * The version then lags behind the balance: it only changes once they are applied.
+     * @see AccountApi#getBalance(String)
+     * @return The account with its IBAN, balance and version only.
+     */
+    public BankAccount getVersionedBalance(String iban) throws CallException {
+        // Journaled postings not applied yet: read along with the balance in the lane of the account, where they are applied,
+        // so none is applied in between.
+        PostingJournal journal = Ctx.get().getPostingJournal();
+        if (journal != null && journal.hasPending(iban)) {
+            return Ctx.get().getPostingLanes().run(iban.trim(), () -> {
+                BankAccount account = getVersionedBalance(Ctx.get().getPersistenceLive(), iban);
+                account.setBalance(account.getBalance() + journal.getPendingNetAmount(iban));
+                return account;
+            });
+        }
+        return getVersionedBalance(Ctx.get().getPersistenceRead(BankAccount.class, iban.trim()), iban); // For display.
+    }
+
+    //
+    // Operations on a given persistence context, shared with co-located callers.
+    //
+
+    /**
+     * @see AccountApi#createAccount(String)
+     * @param datastore Persistence context to work on.
+     */
+    public void createAccount(PersistenceApi datastore, String iban) throws CallException {
         // Context.
-        PersistenceApi datastore = Ctx.get().getPersistenceLive();
+        AccountIndex accountIndex = Ctx.get().getAccountIndex();
         
-        // Check the IBAN already exists.
-        if (0 < datastore.count(BankAccount.class, "accountIban = '" + iban.trim() + "'")) throw new CallException("Bank account NOT created. Provided IBAN is not available");
+        // Check the IBAN already exists. Registered at once in the index, so concurrent creations of the same account cannot both succeed.
+        // Also checked in the datastore, as another node on the same database may have created it.
+        if (accountIndex.covers(datastore) && !accountIndex.add(iban.trim())) throw new CallException("Bank account NOT created. Provided IBAN is not available");
+        if (0 < datastore.countNamed(Queries.ACCOUNT_EXISTS, QueryParameters.with("iban", iban.trim()))) {
+            throw new CallException("Bank account NOT created. Provided IBAN is not available"); // Kept in the index: it exists.
+        }
 
         // Process bank account creation.
         BankAccount newAccount = new BankAccount();
         newAccount.setAccountIban(iban.trim());
         newAccount.setBalance(0); // Initially with empty amount.
-        datastore.save(newAccount.getAccountIban(), newAccount);
+        try {
+            if (accountIndex.covers(datastore)) accountIndex.changeKnown(newAccount.getAccountIban(), () -> datastore.save(newAccount.getAccountIban(), newAccount));
+            else datastore.save(newAccount.getAccountIban(), newAccount);
+        } catch (RuntimeException e) {
+            if (accountIndex.covers(datastore)) accountIndex.remove(newAccount.getAccountIban());
+            throw e;
+        }
         
         log.info("Bank account created '" + newAccount.getAccountIban() + "'");
     }
 
-    @Override
-    public boolean checkAccount(String iban) throws CallException {
-        // Context.
-        PersistenceApi datastore = Ctx.get().getPersistenceLive();
-        
-        // Check the IBAN exists.
-        return 0 < datastore.count(BankAccount.class, "accountIban = '" + iban.trim() + "'");
+    /**
+     * @see AccountApi#checkAccount(String)
+     * @param datastore Persistence context to work on.
+     */
+    public boolean checkAccount(PersistenceApi datastore, String iban) throws CallException {
+        // Check the IBAN exists, from the index if it holds the accounts of the datastore. Accounts missing in it may have
+        // been created through another node on the same database: checked there, and registered if found.
+        AccountIndex accountIndex = Ctx.get().getAccountIndex();
+        if (accountIndex.covers(datastore) && accountIndex.contains(iban.trim())) return true;
+        boolean exists = 0 < datastore.countNamed(Queries.ACCOUNT_EXISTS, QueryParameters.with("iban", iban.trim()));
+        if (exists && accountIndex.covers(datastore)) accountIndex.add(iban.trim());
+        return exists;
     }
 
-    @Override
-    public Long getBalance(String iban) throws CallException {
-        // Context.
-        PersistenceApi datastore = Ctx.get().getPersistenceLive();
-        
+    /**
+     * @see AccountApi#getBalance(String)
+     * @param datastore Persistence context to work on.
+     */
+    public Long getBalance(PersistenceApi datastore, String iban) throws CallException {
         // Check the IBAN exists.
-        BankAccount account = (BankAccount) datastore.load(BankAccount.class, iban.trim());
+        Long balance = Ctx.get().getAccountCache().getBalance(datastore, iban.trim());
         
         // Case of missing IBAN.
-        if (account == null) throw new CallException("Bank account '" + iban + "' does not exist");
+        if (balance == null) throw new CallException("Bank account '" + iban + "' does not exist");
         
         // Provide balance.
-        return account.getBalance();
+        return balance;
     }
 
-    @Override
-    public void setBalance(String iban, long balance) throws CallException {
+    /**
+     * @see #getVersionedBalance(String)
+     * @param datastore Persistence context to work on.
+     */
+    public BankAccount getVersionedBalance(PersistenceApi datastore, String iban) throws CallException {
+        BankAccount account = Ctx.get().getAccountCache().getAccount(datastore, iban.trim());
+        if (account == null) throw new CallException("Bank account '" + iban + "' does not exist");
+        return account;
+    }
+
+    /**
+     * @see AccountApi#setBalance(String, long)
+     * @param datastore Persistence context to work on.
+     */
+    public void setBalance(PersistenceApi datastore, String iban, long balance) throws CallException {
         // Context.
-        PersistenceApi datastore = Ctx.get().getPersistenceLive();
+        AccountCache accountCache = Ctx.get().getAccountCache();
+        long generation = accountCache.getGeneration();
         
         // Check the IBAN exists.
         BankAccount account = (BankAccount) datastore.load(BankAccount.class, iban.trim());
@@ -69,10 +153,14 @@ public class AccountService implements AccountApi {
         // Case of negative balance.
         if (balance < 0) throw new CallException("Balance not updated. Its value cannot be negative. Received value " + balance);
         
-        // Process balance change.
+        // Process balance change, only on the account version read: a balance changed meanwhile is not overwritten.
         long prevBalance = account.getBalance();
-        account.setBalance(balance);
-        datastore.save(account.getAccountIban(), account);
+        long updated = datastore.updateNamed(Queries.ACCOUNT_SET_BALANCE_IF_VERSION,
+                                             QueryParameters.with("iban", account.getAccountIban()).and("balance", balance).and("version", account.getVersion()));
+        if (updated == 0) throw new CallException("Balance not updated. Account '" + iban + "' changed meanwhile, try again");
+        accountCache.put(account.getAccountIban(), balance, account.getVersion() + 1, generation);
+        ReplicaFeed replicaFeed = Ctx.get().getReplicaFeed();
+        if (replicaFeed != null) replicaFeed.changed(BankAccount.class, account.getAccountIban());
         
         log.info("Balance of account '" + account.getAccountIban() + "' changed from " + prevBalance + " to " + balance);
     }
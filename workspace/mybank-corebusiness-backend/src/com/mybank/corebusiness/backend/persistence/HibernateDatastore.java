@@ -1,14 +1,22 @@
 package com.mybank.corebusiness.backend.persistence;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
 
+/**
+ * Datastore on JPA (Hibernate). One shared instance per store, see {@link #get(Stores)}. Thread-safe.
+ */
 public class HibernateDatastore implements PersistenceApi {
 
     /**
@@ -19,19 +27,27 @@ public class HibernateDatastore implements PersistenceApi {
         LIVE,
         /** The store for historical information. */
         ARCHIVE,
+        /** Read-only copy of the live store, fed asynchronously. */
+        REPLICA,
     };
 
+    /**
+     * Provides the shared datastore of one of the available stores, connecting to it the first time.
+     */
+    public static HibernateDatastore get(Stores store) {
+        return mInstances.computeIfAbsent(store, HibernateDatastore::new);
+    }
+
     /**
      * Creates a connection to the root datastore.
      */
     public HibernateDatastore() {
-        mStore = Stores.LIVE;
-        if (mEmf.containsKey(Stores.LIVE) && mEmf.get(Stores.LIVE).isOpen()) return;
-        mEmf.put(Stores.LIVE, Persistence.createEntityManagerFactory("persistence-unit-live"));
+        this(Stores.LIVE);
     }
 
     /**
      * Creates a connection to one of the available datastores.
+     * Prefer the shared instances provided by {@link #get(Stores)}.
      */
     public HibernateDatastore(Stores store) {
         mStore = store;
@@ -39,10 +55,11 @@ public class HibernateDatastore implements PersistenceApi {
         switch (store) {
         case LIVE: unit = "persistence-unit-live"; break;
         case ARCHIVE: unit = "persistence-unit-archive"; break;
+        case REPLICA: unit = "persistence-unit-replica"; break;
         }
         
-        if (mEmf.containsKey(store) && mEmf.get(store).isOpen()) return;
-        mEmf.put(store, Persistence.createEntityManagerFactory(unit));
+        String persistenceUnit = unit;
+        mEmf.compute(store, (key, emf) -> emf != null && emf.isOpen() ? emf : Persistence.createEntityManagerFactory(persistenceUnit));
     }
 
     @Override
@@ -50,6 +67,14 @@ public class HibernateDatastore implements PersistenceApi {
         for (EntityManagerFactory emf : mEmf.values()) if (emf.isOpen()) emf.close();
     }
 
+    /**
+     * Provides the settings of the persistence unit of this datastore, e.g. javax.persistence.jdbc.url,
+     * for other means of access to the same database.
+     */
+    public Map<String, Object> getConnectionProperties() {
+        return mEmf.get(mStore).getProperties();
+    }
+
     @Override
     public boolean isUnitTestSchema() {
         if (mTestModeFlag != null) return mTestModeFlag;
@@ -59,17 +84,31 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             Query q = em.createNativeQuery("SELECT * FROM UNITTESTSCHEMA"); // Create this table in database to set it as a testing database. Data may be completely lost by running this mode. 
             q.getResultList();
             return mTestModeFlag = true;
         } catch (Exception e) {
             return mTestModeFlag = false;
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
     
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+        // Nested: the outer unit of work keeps the context.
+        if (mBoundEm.get() != null) return () -> {};
+        
+        mBoundEm.set(mEmf.get(mStore).createEntityManager());
+        return () -> {
+            EntityManager em = mBoundEm.get();
+            mBoundEm.remove();
+            if (em.getTransaction().isActive()) em.getTransaction().rollback();
+            em.close();
+        };
+    }
+    
     @Override
     public void save(Object key, Object entity) {
         // Shutting down. Ignore call.
@@ -77,12 +116,30 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             em.getTransaction().begin();
             em.merge(entity);
             em.getTransaction().commit();
+            notifyChanged(em, Arrays.asList(entity));
+        } finally {
+            release(em);
+        }
+    }
+
+    @Override
+    public void saveAll(List<?> entities) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            em.getTransaction().begin();
+            persistAll(em, entities);
+            em.getTransaction().commit();
+            notifyChanged(em, entities);
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
 
@@ -93,10 +150,10 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             return em.find(entityClass, key);
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
 
@@ -108,11 +165,11 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             Query query = em.createQuery("SELECT e FROM " + entityClass.getSimpleName() + " e WHERE " + where);
             return query.getResultList();
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
 
@@ -124,7 +181,7 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             Query query = em.createQuery("SELECT e FROM " + entityClass.getSimpleName() + " e " +
                                          " WHERE " + where +
                                          " ORDER BY " + orderBy);
@@ -132,7 +189,7 @@ public class HibernateDatastore implements PersistenceApi {
             if (last != null) query.setMaxResults(last - first + 1);
             return query.getResultList();
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
     
@@ -143,14 +200,15 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             em.getTransaction().begin();
             Object toRemove = em.find(entityClass, key);
             if (toRemove != null) em.remove(toRemove);
             em.getTransaction().commit();
+            if (toRemove != null) notifyChanged(entityClass, key);
             return toRemove != null;
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
 
@@ -161,12 +219,12 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             Query query = em.createQuery("SELECT COUNT(*) FROM " + entityClass.getSimpleName() + " e " +
                                          " WHERE " + where);
             return (long) query.getSingleResult();
         } finally {
-            if (em != null) em.close();
+            release(em);
         }
     }
 
@@ -177,25 +235,279 @@ public class HibernateDatastore implements PersistenceApi {
         
         EntityManager em = null;
         try {
-            em = mEmf.get(mStore).createEntityManager();
+            em = acquire();
             em.getTransaction().begin();
             Query query = em.createQuery("UPDATE " + entityClass.getSimpleName() + 
                                          " SET " + set +
                                          " WHERE " + where);
             long count = query.executeUpdate();
             em.getTransaction().commit();
+            if (count > 0) notifyChanged(entityClass, null);
             return count;
         } finally {
-            if (em != null) em.close();
+            release(em);
+        }
+    }
+
+    @Override
+    public long updateAndSave(Class<?> entityClass, String set, String where, Object... entities) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return 0;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            em.getTransaction().begin();
+            Query query = em.createQuery("UPDATE " + entityClass.getSimpleName() + 
+                                         " SET " + set +
+                                         " WHERE " + where);
+            long count = query.executeUpdate();
+            if (count == 0) {
+                em.getTransaction().rollback();
+                return 0;
+            }
+            persistAll(em, Arrays.asList(entities));
+            em.getTransaction().commit();
+            notifyChanged(entityClass, null);
+            notifyChanged(em, Arrays.asList(entities));
+            return count;
+        } finally {
+            release(em);
         }
     }
     
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Object> loadNamed(String queryName, QueryParameters parameters, Integer first, Integer last) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return null;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            Query query = createNamedQuery(em, queryName, parameters);
+            if (first != null) query.setFirstResult(first);
+            if (last != null) query.setMaxResults(last - (first != null ? first : 0) + 1);
+            return query.getResultList();
+        } finally {
+            release(em);
+        }
+    }
+
+    @Override
+    public long forEachNamed(String queryName, String continuedQueryName, QueryParameters parameters,
+                             BiConsumer<Object, QueryParameters> continuation, int chunkSize, Consumer<Object> consumer) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return 0;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            long count = 0;
+            String chunkQueryName = queryName;
+            while (true) {
+                // Read chunk.
+                Query query = createNamedQuery(em, chunkQueryName, parameters);
+                query.setHint("org.hibernate.fetchSize", chunkSize);
+                query.setHint("org.hibernate.readOnly", true);
+                query.setMaxResults(chunkSize);
+                List<?> chunk = query.getResultList();
+                
+                // Provide results, then release them.
+                for (Object result : chunk) consumer.accept(result);
+                count += chunk.size();
+                if (chunk.size() < chunkSize) return count;
+                em.clear();
+                
+                // Continue after the last one.
+                continuation.accept(chunk.get(chunk.size() - 1), parameters);
+                chunkQueryName = continuedQueryName;
+            }
+        } finally {
+            release(em);
+        }
+    }
+
+    @Override
+    public void addChangeListener(Class<?> entityClass, Consumer<Object> listener) {
+        mChangeListeners.computeIfAbsent(entityClass, type -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public long countNamed(String queryName, QueryParameters parameters) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return 0;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            return (long) createNamedQuery(em, queryName, parameters).getSingleResult();
+        } finally {
+            release(em);
+        }
+    }
+
+    @Override
+    public long updateNamed(String queryName, QueryParameters parameters) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return 0;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            em.getTransaction().begin();
+            long count = createNamedQuery(em, queryName, parameters).executeUpdate();
+            em.getTransaction().commit();
+            return count;
+        } finally {
+            release(em);
+        }
+    }
+
+    @Override
+    public long updateNamedAndSave(String queryName, QueryParameters parameters, Object... entities) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return 0;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            em.getTransaction().begin();
+            long count = createNamedQuery(em, queryName, parameters).executeUpdate();
+            if (count == 0) {
+                em.getTransaction().rollback();
+                return 0;
+            }
+            persistAll(em, Arrays.asList(entities));
+            em.getTransaction().commit();
+            return count;
+        } finally {
+            release(em);
+        }
+    }
+
+    @Override
+    public long updateNamedAndUpsert(String queryName, QueryParameters parameters, List<Upsert> upserts, Object... entities) {
+        // Shutting down. Ignore call.
+        if (!mEmf.get(mStore).isOpen()) return 0;
+        
+        EntityManager em = null;
+        try {
+            em = acquire();
+            em.getTransaction().begin();
+            long count = queryName != null ? createNamedQuery(em, queryName, parameters).executeUpdate() : 1;
+            if (count == 0) {
+                em.getTransaction().rollback();
+                return 0;
+            }
+            List<Object> toPersist = new ArrayList<>();
+            for (Upsert upsert : upserts) {
+                if (0 == createNamedQuery(em, upsert.getQueryName(), upsert.getParameters()).executeUpdate()) toPersist.add(upsert.getEntity());
+            }
+            toPersist.addAll(Arrays.asList(entities));
+            persistAll(em, toPersist);
+            em.getTransaction().commit();
+            return count;
+        } finally {
+            release(em);
+        }
+    }
+    
+    /**
+     * Provides the entity manager for an operation: the one of the current unit of work, or a new one.
+     */
+    private EntityManager acquire() {
+        EntityManager em = mBoundEm.get();
+        return em != null ? em : mEmf.get(mStore).createEntityManager();
+    }
+    
+    /**
+     * Ends the use of an entity manager by an operation, rolling back any transaction left open.
+     * Within a unit of work the manager is kept but its persistence context is cleared, so reads see the
+     * database and not entities cached by previous operations. Otherwise it is closed.
+     * A transaction left open means the operation failed: the manager may not be usable anymore, so it is closed
+     * also within a unit of work, which goes on with a new one.
+     */
+    private void release(EntityManager em) {
+        if (em == null) return;
+        boolean bound = em == mBoundEm.get();
+        boolean failed = false;
+        try {
+            if (em.getTransaction().isActive()) {
+                failed = true;
+                em.getTransaction().rollback();
+            }
+        } finally {
+            if (bound && !failed) {
+                em.clear();
+            } else {
+                if (bound) mBoundEm.set(mEmf.get(mStore).createEntityManager());
+                em.close();
+            }
+        }
+    }
+    
+    /**
+     * Notifies the listeners of changes on some entities.
+     */
+    private void notifyChanged(EntityManager em, List<?> entities) {
+        if (mChangeListeners.isEmpty()) return;
+        for (Object entity : entities) {
+            if (mChangeListeners.containsKey(entity.getClass())) notifyChanged(entity.getClass(), em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity));
+        }
+    }
+    
+    /**
+     * Notifies the listeners of changes on one entity, or on several ones if no key is given.
+     */
+    private void notifyChanged(Class<?> entityClass, Object key) {
+        List<Consumer<Object>> listeners = mChangeListeners.get(entityClass);
+        if (listeners != null) for (Consumer<Object> listener : listeners) listener.accept(key);
+    }
+    
+    /**
+     * Provides a named query with its parameters bound.
+     */
+    private Query createNamedQuery(EntityManager em, String queryName, QueryParameters parameters) {
+        Query query = em.createNamedQuery(queryName);
+        if (parameters != null) for (Map.Entry<String, Object> parameter : parameters.getValues().entrySet()) query.setParameter(parameter.getKey(), parameter.getValue());
+        return query;
+    }
+    
+    /**
+     * Inserts new entities within the current transaction, flushing them in JDBC batches
+     * and releasing them from the persistence context after each batch.
+     */
+    private void persistAll(EntityManager em, List<?> entities) {
+        int pending = 0;
+        for (Object entity : entities) {
+            em.persist(entity);
+            if (++pending == BATCH_SIZE) {
+                em.flush();
+                em.clear();
+                pending = 0;
+            }
+        }
+    }
+    
+    /** Number of inserts sent together to the database. Same as hibernate.jdbc.batch_size in persistence.xml. */
+    private static final int BATCH_SIZE = 50;
+    
     /** The database schema this datastore is connected to. */
     private Stores mStore;
     
     /** Unique factory for JPA access to database engine, one for each available store in this datastore. */
-    private static Map<Stores, EntityManagerFactory> mEmf = new HashMap<>();
+    private static Map<Stores, EntityManagerFactory> mEmf = new ConcurrentHashMap<>();
+    
+    /** Listeners of changes by type of entity. */
+    private Map<Class<?>, List<Consumer<Object>>> mChangeListeners = new ConcurrentHashMap<>();
+    
+    /** Shared datastores, one for each available store. */
+    private static Map<Stores, HibernateDatastore> mInstances = new ConcurrentHashMap<>();
+    
+    /** Entity manager of the unit of work in progress in each thread, if any. */
+    private final ThreadLocal<EntityManager> mBoundEm = new ThreadLocal<>();
     
     /** Indicates that this datastore is running on a testing database. */
-    private Boolean mTestModeFlag;
+    private volatile Boolean mTestModeFlag;
 }
@@ -0,0 +1,537 @@
+package com.mybank.corebusiness.backend.persistence;
+
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.PersistenceException;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.transaction.DailyAggregate;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.backend.persistence.HibernateDatastore.Stores;
+
+/**
+ * Datastore running the hot operations in plain JDBC: pooled connections and cached prepared statements,
+ * no persistence context, no dirty checking, rows mapped by hand. Those are loading bank accounts and
+ * transactions, the balance updates, inserting transactions along with their daily aggregates, checking references and the paged transaction queries.
+ * Everything else goes to the JPA datastore of the same store, which also keeps the schema.
+ * A unit of work binds one JDBC connection: operations going to the JPA datastore, on connections of their own, are refused within it.
+ * One shared instance per store, see {@link #get(Stores)}. Thread-safe.
+ */
+public class JdbcDatastore implements PersistenceApi {
+
+    /**
+     * Provides the shared datastore of one of the available stores, connecting to it the first time.
+     */
+    public static JdbcDatastore get(Stores store) {
+        return mInstances.computeIfAbsent(store, key -> {
+            HibernateDatastore fallback = HibernateDatastore.get(key);
+            Map<String, Object> properties = fallback.getConnectionProperties();
+            return new JdbcDatastore(fallback,
+                                     (String) properties.get("javax.persistence.jdbc.driver"),
+                                     (String) properties.get("javax.persistence.jdbc.url"),
+                                     (String) properties.get("javax.persistence.jdbc.user"),
+                                     (String) properties.get("javax.persistence.jdbc.password"),
+                                     Integer.parseInt(String.valueOf(properties.getOrDefault("hibernate.c3p0.max_size", "20"))),
+                                     Integer.parseInt(String.valueOf(properties.getOrDefault("hibernate.c3p0.max_statements", "500"))));
+        });
+    }
+
+    /**
+     * Connects to a database. Prefer the shared instances provided by {@link #get(Stores)}.
+     * @param fallback Datastore on the same database for the operations not run in plain JDBC.
+     * @param maxConnections Size of the connection pool.
+     * @param maxStatements Number of prepared statements cached, among all the connections.
+     */
+    public JdbcDatastore(PersistenceApi fallback, String driver, String url, String user, String password, int maxConnections, int maxStatements) {
+        mFallback = fallback;
+        mDataSource = new ComboPooledDataSource();
+        try {
+            mDataSource.setDriverClass(driver);
+        } catch (PropertyVetoException e) {
+            throw new IllegalArgumentException("JDBC driver not available: " + driver, e);
+        }
+        mDataSource.setJdbcUrl(url);
+        mDataSource.setUser(user);
+        mDataSource.setPassword(password);
+        mDataSource.setMaxPoolSize(maxConnections);
+        mDataSource.setMaxStatements(maxStatements);
+        log.info("JDBC datastore connected to " + url + ", " + maxConnections + " connections, " + maxStatements + " cached statements");
+    }
+
+    @Override
+    public void shutdown() {
+        // Connection pools only. The JPA datastores are shut down on their own.
+        for (JdbcDatastore instance : mInstances.values()) instance.close();
+        close();
+    }
+
+    @Override
+    public boolean isUnitTestSchema() {
+        return mFallback.isUnitTestSchema();
+    }
+
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+        // Nested: the outer unit of work keeps the connection.
+        if (mBoundConnection.get() != null) return () -> {};
+
+        mBoundConnection.set(connect());
+        return () -> {
+            Connection connection = mBoundConnection.get();
+            mBoundConnection.remove();
+            try {
+                connection.rollback();
+                connection.close();
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        };
+    }
+
+    @Override
+    public void save(Object key, Object entity) {
+        fallback().save(key, entity); // Insert or update: left to JPA.
+    }
+
+    @Override
+    public void saveAll(List<?> entities) {
+        if (!areTransactions(entities)) {
+            fallback().saveAll(entities);
+            return;
+        }
+
+        // Shutting down. Ignore call.
+        if (mDataSource == null) return;
+
+        Connection connection = null;
+        try {
+            connection = acquire();
+            insertTransactions(connection, entities);
+            connection.commit();
+            notifyChanged(entities);
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(connection);
+        }
+    }
+
+    @Override
+    public Object load(Class<?> entityClass, Object key) {
+        String sql;
+        if (entityClass == Transaction.class) sql = "SELECT " + TRANSACTION_COLUMNS + " FROM Transaction WHERE reference = ?";
+        else if (entityClass == BankAccount.class) sql = "SELECT accountIban, balance, version FROM BankAccount WHERE accountIban = ?";
+        else return fallback().load(entityClass, key);
+
+        // Shutting down. Ignore call.
+        if (mDataSource == null) return null;
+
+        Connection connection = null;
+        try {
+            connection = acquire();
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setObject(1, key);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next()) return null;
+                    if (entityClass == Transaction.class) return readTransaction(rs);
+                    BankAccount account = new BankAccount();
+                    account.setAccountIban(rs.getString(1));
+                    account.setBalance(rs.getLong(2));
+                    account.setVersion(rs.getLong(3));
+                    return account;
+                }
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(connection);
+        }
+    }
+
+    @Override
+    public List<Object> loadIf(Class<?> entityClass, String where) {
+        return fallback().loadIf(entityClass, where);
+    }
+
+    @Override
+    public List<Object> loadSome(Class<?> entityClass, Integer first, Integer last, String orderBy, String where) {
+        return fallback().loadSome(entityClass, first, last, orderBy, where);
+    }
+
+    @Override
+    public boolean delete(Class<?> entityClass, Object key) {
+        return fallback().delete(entityClass, key);
+    }
+
+    @Override
+    public long count(Class<?> entityClass, String where) {
+        return fallback().count(entityClass, where);
+    }
+
+    @Override
+    public long update(Class<?> entityClass, String set, String where) {
+        return fallback().update(entityClass, set, where);
+    }
+
+    @Override
+    public long updateAndSave(Class<?> entityClass, String set, String where, Object... entities) {
+        return fallback().updateAndSave(entityClass, set, where, entities);
+    }
+
+    @Override
+    public List<Object> loadNamed(String queryName, QueryParameters parameters, Integer first, Integer last) {
+        NativeQuery query = NATIVE_QUERIES.get(queryName);
+        if (query == null) return fallback().loadNamed(queryName, parameters, first, last);
+
+        // Shutting down. Ignore call.
+        if (mDataSource == null) return null;
+
+        Connection connection = null;
+        try {
+            connection = acquire();
+            String sql = query.mSql;
+            if (last != null) sql += " LIMIT " + (last - (first != null ? first : 0) + 1);
+            if (first != null) sql += (last != null ? "" : " LIMIT -1") + " OFFSET " + first;
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                query.bind(statement, parameters);
+                try (ResultSet rs = statement.executeQuery()) {
+                    List<Object> results = new ArrayList<>();
+                    int columnCount = rs.getMetaData().getColumnCount();
+                    while (rs.next()) {
+                        if (query.mTransactions) {
+                            results.add(readTransaction(rs));
+                        } else if (columnCount == 1) {
+                            results.add(rs.getObject(1));
+                        } else {
+                            Object[] row = new Object[columnCount];
+                            for (int i = 0; i < columnCount; i++) row[i] = rs.getObject(i + 1);
+                            results.add(row);
+                        }
+                    }
+                    return results;
+                }
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(connection);
+        }
+    }
+
+    @Override
+    public long forEachNamed(String queryName, String continuedQueryName, QueryParameters parameters,
+                             BiConsumer<Object, QueryParameters> continuation, int chunkSize, Consumer<Object> consumer) {
+        if (!NATIVE_QUERIES.containsKey(queryName) || !NATIVE_QUERIES.containsKey(continuedQueryName)) {
+            return fallback().forEachNamed(queryName, continuedQueryName, parameters, continuation, chunkSize, consumer);
+        }
+
+        // Chunk by chunk, each one after the last result of the previous one. No persistence context to clear.
+        long count = 0;
+        String chunkQueryName = queryName;
+        while (true) {
+            List<Object> chunk = loadNamed(chunkQueryName, parameters, 0, chunkSize - 1);
+            if (chunk == null) return count;
+            for (Object result : chunk) consumer.accept(result);
+            count += chunk.size();
+            if (chunk.size() < chunkSize) return count;
+            continuation.accept(chunk.get(chunk.size() - 1), parameters);
+            chunkQueryName = continuedQueryName;
+        }
+    }
+
+    @Override
+    public void addChangeListener(Class<?> entityClass, Consumer<Object> listener) {
+        mFallback.addChangeListener(entityClass, listener);
+        mChangeListeners.computeIfAbsent(entityClass, type -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public long countNamed(String queryName, QueryParameters parameters) {
+        if (!NATIVE_QUERIES.containsKey(queryName)) return fallback().countNamed(queryName, parameters);
+        List<Object> results = loadNamed(queryName, parameters, null, null);
+        return results == null || results.isEmpty() ? 0 : ((Number) results.get(0)).longValue();
+    }
+
+    @Override
+    public long updateNamed(String queryName, QueryParameters parameters) {
+        if (!NATIVE_QUERIES.containsKey(queryName)) return fallback().updateNamed(queryName, parameters);
+        return updateNamedAndSave(queryName, parameters);
+    }
+
+    @Override
+    public long updateNamedAndSave(String queryName, QueryParameters parameters, Object... entities) {
+        return updateNamedAndUpsert(queryName, parameters, Collections.<Upsert>emptyList(), entities);
+    }
+
+    @Override
+    public long updateNamedAndUpsert(String queryName, QueryParameters parameters, List<Upsert> upserts, Object... entities) {
+        NativeQuery query = queryName != null ? NATIVE_QUERIES.get(queryName) : null;
+        List<Object> toInsert = Arrays.asList(entities);
+        boolean nativeUpserts = true;
+        for (Upsert upsert : upserts) nativeUpserts &= NATIVE_QUERIES.containsKey(upsert.getQueryName()) && upsert.getEntity() instanceof DailyAggregate;
+        if ((queryName != null && query == null) || !nativeUpserts || !areTransactions(toInsert)) return fallback().updateNamedAndUpsert(queryName, parameters, upserts, entities);
+
+        // Shutting down. Ignore call.
+        if (mDataSource == null) return 0;
+
+        Connection connection = null;
+        try {
+            connection = acquire();
+            long count = 1;
+            if (query != null) {
+                try (PreparedStatement statement = connection.prepareStatement(query.mSql)) {
+                    query.bind(statement, parameters);
+                    count = statement.executeUpdate();
+                }
+            }
+            if (count == 0) {
+                connection.rollback();
+                return 0;
+            }
+            List<DailyAggregate> aggregates = new ArrayList<>();
+            for (Upsert upsert : upserts) {
+                NativeQuery upsertQuery = NATIVE_QUERIES.get(upsert.getQueryName());
+                try (PreparedStatement statement = connection.prepareStatement(upsertQuery.mSql)) {
+                    upsertQuery.bind(statement, upsert.getParameters());
+                    if (statement.executeUpdate() == 0) aggregates.add((DailyAggregate) upsert.getEntity());
+                }
+            }
+            insertAggregates(connection, aggregates);
+            insertTransactions(connection, toInsert);
+            connection.commit();
+            notifyChanged(toInsert);
+            return count;
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * Inserts daily aggregates within the current database transaction, in one JDBC batch.
+     */
+    private void insertAggregates(Connection connection, List<DailyAggregate> aggregates) throws SQLException {
+        if (aggregates.isEmpty()) return;
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO DailyAggregate (accountIban, dayEpoch, credits, debits, fees, creditCount, debitCount) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            for (DailyAggregate aggregate : aggregates) {
+                statement.setString(1, aggregate.getAccountIban());
+                statement.setLong(2, aggregate.getDayEpoch());
+                statement.setLong(3, aggregate.getCredits());
+                statement.setLong(4, aggregate.getDebits());
+                statement.setLong(5, aggregate.getFees());
+                statement.setLong(6, aggregate.getCreditCount());
+                statement.setLong(7, aggregate.getDebitCount());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Inserts transactions within the current database transaction, in JDBC batches.
+     */
+    private void insertTransactions(Connection connection, List<?> transactions) throws SQLException {
+        if (transactions.isEmpty()) return;
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO Transaction (" + TRANSACTION_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?)")) {
+            int pending = 0;
+            for (Object entity : transactions) {
+                Transaction transaction = (Transaction) entity;
+                statement.setString(1, transaction.getReference());
+                statement.setString(2, transaction.getAccountIban());
+                if (transaction.getDateEpoch() != null) statement.setLong(3, transaction.getDateEpoch());
+                else statement.setNull(3, Types.BIGINT);
+                statement.setLong(4, transaction.getAmount());
+                if (transaction.getFee() != null) statement.setLong(5, transaction.getFee());
+                else statement.setNull(5, Types.BIGINT);
+                statement.setString(6, transaction.getDescription());
+                statement.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    statement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) statement.executeBatch();
+        }
+    }
+
+    /**
+     * Maps the current row of a result set made of {@link #TRANSACTION_COLUMNS}.
+     */
+    private static Transaction readTransaction(ResultSet rs) throws SQLException {
+        Transaction transaction = new Transaction();
+        transaction.setReference(rs.getString(1));
+        transaction.setAccountIban(rs.getString(2));
+        long dateEpoch = rs.getLong(3);
+        transaction.setDateEpoch(rs.wasNull() ? null : dateEpoch);
+        transaction.setAmount(rs.getLong(4));
+        long fee = rs.getLong(5);
+        transaction.setFee(rs.wasNull() ? null : fee);
+        transaction.setDescription(rs.getString(6));
+        return transaction;
+    }
+
+    /**
+     * Indicates whether all the given entities are transactions, so they can be inserted in plain JDBC.
+     */
+    private static boolean areTransactions(List<?> entities) {
+        for (Object entity : entities) if (!(entity instanceof Transaction)) return false;
+        return true;
+    }
+
+    /**
+     * Notifies the listeners of changes on some transactions.
+     */
+    private void notifyChanged(List<?> transactions) {
+        List<Consumer<Object>> listeners = mChangeListeners.get(Transaction.class);
+        if (listeners == null) return;
+        for (Object transaction : transactions) for (Consumer<Object> listener : listeners) listener.accept(((Transaction) transaction).getReference());
+    }
+
+    /**
+     * Provides the JPA datastore for an operation not run in plain JDBC. Refused within a unit of work,
+     * as it would run on another connection than the operations of the unit.
+     */
+    private PersistenceApi fallback() {
+        if (mBoundConnection.get() != null) throw new IllegalStateException("Operation not run in plain JDBC: not available within a unit of work");
+        return mFallback;
+    }
+
+    /**
+     * Provides the connection for an operation: the one of the current unit of work, or one from the pool.
+     */
+    private Connection acquire() throws SQLException {
+        Connection connection = mBoundConnection.get();
+        return connection != null ? connection : connect();
+    }
+
+    /**
+     * Takes a connection from the pool, with its transactions committed explicitly.
+     */
+    private Connection connect() {
+        try {
+            Connection connection = mDataSource.getConnection();
+            connection.setAutoCommit(false);
+            return connection;
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Ends the use of a connection by an operation, rolling back anything not committed.
+     * Within a unit of work the connection is kept. Otherwise it goes back to the pool.
+     */
+    private void release(Connection connection) {
+        if (connection == null) return;
+        try {
+            connection.rollback();
+            if (connection != mBoundConnection.get()) connection.close();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Closes the connection pool of this datastore.
+     */
+    private synchronized void close() {
+        if (mDataSource == null) return;
+        mDataSource.close();
+        mDataSource = null;
+    }
+
+    /**
+     * A named query translated to SQL, with its parameters in order of appearance.
+     */
+    private static class NativeQuery {
+        NativeQuery(String sql, boolean transactions) {
+            List<String> parameters = new ArrayList<>();
+            Matcher matcher = PARAMETER.matcher(sql);
+            while (matcher.find()) parameters.add(matcher.group(1));
+            mSql = matcher.replaceAll("?");
+            mParameters = Collections.unmodifiableList(parameters);
+            mTransactions = transactions;
+        }
+        void bind(PreparedStatement statement, QueryParameters parameters) throws SQLException {
+            Map<String, Object> values = parameters != null ? parameters.getValues() : Collections.<String, Object>emptyMap();
+            for (int i = 0; i < mParameters.size(); i++) statement.setObject(i + 1, values.get(mParameters.get(i)));
+        }
+        final String mSql;
+        final List<String> mParameters;
+        /** Whether each row is a transaction made of {@link JdbcDatastore#TRANSACTION_COLUMNS}. */
+        final boolean mTransactions;
+        private static final Pattern PARAMETER = Pattern.compile(":(\\w+)");
+    }
+
+    /** Columns of a transaction, in the order read by {@link #readTransaction(ResultSet)}. Same names as the entity fields. */
+    private static final String TRANSACTION_COLUMNS = "reference, accountIban, dateEpoch, amount, fee, description";
+
+    /** The named queries of META-INF/orm.xml run in plain JDBC. Others go to the JPA datastore. */
+    private static final Map<String, NativeQuery> NATIVE_QUERIES = new HashMap<>();
+    static {
+        String byAccountInRange = "SELECT " + TRANSACTION_COLUMNS + " FROM Transaction WHERE accountIban = :iban AND dateEpoch >= :since AND dateEpoch <= :until";
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_DATE_ASC, new NativeQuery(byAccountInRange + " ORDER BY dateEpoch ASC, reference ASC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_DATE_DESC, new NativeQuery(byAccountInRange + " ORDER BY dateEpoch DESC, reference DESC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_AMOUNT_ASC, new NativeQuery(byAccountInRange + " ORDER BY amount ASC, reference ASC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_AMOUNT_DESC, new NativeQuery(byAccountInRange + " ORDER BY amount DESC, reference DESC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_ASC, new NativeQuery(byAccountInRange + " AND (dateEpoch > :key OR (dateEpoch = :key AND reference > :reference)) ORDER BY dateEpoch ASC, reference ASC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_DESC, new NativeQuery(byAccountInRange + " AND (dateEpoch < :key OR (dateEpoch = :key AND reference < :reference)) ORDER BY dateEpoch DESC, reference DESC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_ASC, new NativeQuery(byAccountInRange + " AND (amount > :key OR (amount = :key AND reference > :reference)) ORDER BY amount ASC, reference ASC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_DESC, new NativeQuery(byAccountInRange + " AND (amount < :key OR (amount = :key AND reference < :reference)) ORDER BY amount DESC, reference DESC", true));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_COUNT_BY_REFERENCE, new NativeQuery("SELECT COUNT(*) FROM Transaction WHERE reference = :reference", false));
+        NATIVE_QUERIES.put(Queries.TRANSACTION_REFERENCES_AFTER, new NativeQuery("SELECT reference FROM Transaction WHERE reference > :reference ORDER BY reference", false));
+        NATIVE_QUERIES.put(Queries.TRANSACTIONS_AFTER_REFERENCE, new NativeQuery("SELECT " + TRANSACTION_COLUMNS + " FROM Transaction WHERE reference > :reference ORDER BY reference", true));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_EXISTS, new NativeQuery("SELECT COUNT(*) FROM BankAccount WHERE accountIban = :iban", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_BALANCE, new NativeQuery("SELECT balance, version FROM BankAccount WHERE accountIban = :iban", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_IBANS_AFTER, new NativeQuery("SELECT accountIban FROM BankAccount WHERE accountIban > :iban ORDER BY accountIban", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_ADD_BALANCE_IF_COVERED, new NativeQuery("UPDATE BankAccount SET balance = balance + :net, version = version + 1 WHERE accountIban = :iban AND balance + :net >= 0", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_ADD_BALANCE_IF_UNCHANGED, new NativeQuery("UPDATE BankAccount SET balance = balance + :net, version = version + 1 WHERE accountIban = :iban AND balance = :expected", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_ADD_BALANCE, new NativeQuery("UPDATE BankAccount SET balance = balance + :net, version = version + 1 WHERE accountIban = :iban", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_REPLICATE, new NativeQuery("UPDATE BankAccount SET balance = :balance, version = :version WHERE accountIban = :iban AND version < :version", false));
+        NATIVE_QUERIES.put(Queries.ACCOUNT_SET_BALANCE_IF_VERSION, new NativeQuery("UPDATE BankAccount SET balance = :balance, version = version + 1 WHERE accountIban = :iban AND version = :version", false));
+        NATIVE_QUERIES.put(Queries.DAILY_AGGREGATE_ADD, new NativeQuery("UPDATE DailyAggregate SET credits = credits + :credits, debits = debits + :debits, fees = fees + :fees, " +
+                                                                        "creditCount = creditCount + :creditCount, debitCount = debitCount + :debitCount WHERE accountIban = :iban AND dayEpoch = :day", false));
+        NATIVE_QUERIES.put(Queries.DAILY_AGGREGATE_TOTALS, new NativeQuery("SELECT SUM(credits), SUM(debits), SUM(fees), SUM(creditCount), SUM(debitCount) FROM DailyAggregate " +
+                                                                           "WHERE accountIban = :iban AND dayEpoch >= :since AND dayEpoch <= :until", false));
+    }
+
+    /** Number of inserts sent together to the database. */
+    private static final int BATCH_SIZE = 50;
+
+    /** Datastore for everything not run in plain JDBC. */
+    private final PersistenceApi mFallback;
+
+    /** Connection pool, with prepared statement cache. Null once closed. */
+    private volatile ComboPooledDataSource mDataSource;
+
+    /** Connection of the unit of work of the current thread, if any. */
+    private final ThreadLocal<Connection> mBoundConnection = new ThreadLocal<>();
+
+    /** Listeners of changes by type of entity, for the changes made in plain JDBC. */
+    private final Map<Class<?>, List<Consumer<Object>>> mChangeListeners = new ConcurrentHashMap<>();
+
+    /** Shared datastores, one for each available store. */
+    private static Map<Stores, JdbcDatastore> mInstances = new ConcurrentHashMap<>();
+
+    private static Logger log = Logger.getLogger(JdbcDatastore.class.getName());
+}
@@ -1,6 +1,8 @@
 package com.mybank.corebusiness.backend.persistence;
 
 import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Persistence features.
@@ -12,6 +14,13 @@ public interface PersistenceApi {
      */
     boolean isUnitTestSchema();
     
+    /**
+     * Starts a unit of work on the current thread: the following operations of the thread on this datastore
+     * share one connection context until it is closed. Units of work do not nest: an inner one does nothing.
+     * @return The unit of work, to be closed when done.
+     */
+    UnitOfWork beginUnitOfWork();
+    
     /**
      * Stores a new or existing entity into the datastore.
      * @param key Unique identifier of the entity.
@@ -19,6 +28,13 @@ public interface PersistenceApi {
      */
     void save(Object key, Object entity);
     
+    /**
+     * Stores several new entities into the datastore, all of them within one single transaction.
+     * Writes are sent to the database in batches.
+     * @param entities The new entities to save.
+     */
+    void saveAll(List<?> entities);
+    
     /**
      * Retrieves from datastore an entity given its key.
      * @param entityClass The kind of entity asking for.
@@ -70,6 +86,92 @@ public interface PersistenceApi {
      * @return Number of entities modified.
      */
     long update(Class<?> entityClass, String set, String where);
+
+    /**
+     * Modifies some entities and stores some new entities, all of it within one single transaction.
+     * The new entities are stored only when the update modified some entity, otherwise nothing changes.
+     * @param entityClass The kind of entity to modify.
+     * @param set The new values to be set to entities' fields.
+     * @param where Condition expression for entities to be affected by the update.
+     * @param entities The new entities to store.
+     * @return Number of entities modified. On 0 no entity was stored.
+     */
+    long updateAndSave(Class<?> entityClass, String set, String where, Object... entities);
+    
+    //
+    // Named queries, declared in META-INF/orm.xml (see Queries). Values are bound as parameters,
+    // so every call runs the same precompiled query and prepared statement.
+    //
+    
+    /**
+     * Retrieves from datastore the entities (or values) selected by a named query.
+     * @param queryName The name of the query.
+     * @param parameters Values of the query parameters.
+     * @param first The row order number (base 0) to be the first to provide. Null for the first row.
+     * @param last The row order number (base 0) to be the last to provide. Null for no limit.
+     * @return Sequence of entities (or values) loaded from storage.
+     */
+    List<Object> loadNamed(String queryName, QueryParameters parameters, Integer first, Integer last);
+    
+    /**
+     * Goes through the results of a named query chunk by chunk, so memory use does not depend on the number of results.
+     * Each chunk is read with a fixed fetch size and released before reading the next one, which continues
+     * right after the last result read (keyset), so no chunk gets slower however far the iteration goes.
+     * @param queryName The name of the query. Its results must be sorted by a key that can be continued after.
+     * @param continuedQueryName The name of the query providing the results after a given position.
+     * @param parameters Values of the query parameters.
+     * @param continuation Sets the parameters for the continued query to start right after a given result.
+     * @param chunkSize Number of results read at once.
+     * @param consumer Receives every result, in order.
+     * @return Number of results.
+     */
+    long forEachNamed(String queryName, String continuedQueryName, QueryParameters parameters,
+                      BiConsumer<Object, QueryParameters> continuation, int chunkSize, Consumer<Object> consumer);
+    
+    /**
+     * Registers a listener of the changes made through this datastore on entities of a type: saves, deletes and updates.
+     * Updates by named query are not notified: their callers know what they change.
+     * @param entityClass The type of entities listened to.
+     * @param listener Receives the key of each entity changed once committed, or null when it is not known which ones.
+     */
+    void addChangeListener(Class<?> entityClass, Consumer<Object> listener);
+    
+    /**
+     * Counts by a named query.
+     * @param queryName The name of the query, selecting a count.
+     * @param parameters Values of the query parameters.
+     * @return Number of entities counted.
+     */
+    long countNamed(String queryName, QueryParameters parameters);
+    
+    /**
+     * Modifies some entities by a named query.
+     * @param queryName The name of the update query.
+     * @param parameters Values of the query parameters.
+     * @return Number of entities modified.
+     */
+    long updateNamed(String queryName, QueryParameters parameters);
+    
+    /**
+     * Modifies some entities by a named query and stores some new entities, all of it within one single transaction.
+     * The new entities are stored only when the update modified some entity, otherwise nothing changes.
+     * @param queryName The name of the update query.
+     * @param parameters Values of the query parameters.
+     * @param entities The new entities to store.
+     * @return Number of entities modified. On 0 no entity was stored.
+     */
+    long updateNamedAndSave(String queryName, QueryParameters parameters, Object... entities);
+    
+    /**
+     * Modifies some entities by a named query, then runs some upserts and stores some new entities, all of it within one single transaction.
+     * The upserts and the new entities go only when the update modified some entity, otherwise nothing changes.
+     * @param queryName The name of the update query. Null for none: the upserts and the new entities always go.
+     * @param parameters Values of the query parameters.
+     * @param upserts Further updates, in order, each storing its new entity instead when it modifies nothing.
+     * @param entities The new entities to store.
+     * @return Number of entities modified by the update query (1 without it). On 0 nothing was stored.
+     */
+    long updateNamedAndUpsert(String queryName, QueryParameters parameters, List<Upsert> upserts, Object... entities);
     
     /**
      * The datastore is notified that the system is about to be shutdown.
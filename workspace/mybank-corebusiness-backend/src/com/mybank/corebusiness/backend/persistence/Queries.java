@@ -0,0 +1,100 @@
+package com.mybank.corebusiness.backend.persistence;
+
+/**
+ * Names of the queries declared once in META-INF/orm.xml, compiled when the datastore starts.
+ * Their parameters are listed along with each of them.
+ */
+public final class Queries {
+
+    private Queries() {}
+
+    //
+    // Transactions.
+    //
+
+    /** Transactions of an account within a time range, by date ascending. Parameters: iban, since, until. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_DATE_ASC = "Transaction.byAccountInRange.dateAsc";
+
+    /** Transactions of an account within a time range, by date descending. Parameters: iban, since, until. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_DATE_DESC = "Transaction.byAccountInRange.dateDesc";
+
+    /** Transactions of an account within a time range, by amount ascending. Parameters: iban, since, until. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_AMOUNT_ASC = "Transaction.byAccountInRange.amountAsc";
+
+    /** Transactions of an account within a time range, by amount descending. Parameters: iban, since, until. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_AMOUNT_DESC = "Transaction.byAccountInRange.amountDesc";
+
+    /** Transactions of an account within a time range after a given position, by date ascending. Parameters: iban, since, until, key (date), reference. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_ASC = "Transaction.byAccountInRangeAfter.dateAsc";
+
+    /** Transactions of an account within a time range after a given position, by date descending. Parameters: iban, since, until, key (date), reference. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_DESC = "Transaction.byAccountInRangeAfter.dateDesc";
+
+    /** Transactions of an account within a time range after a given position, by amount ascending. Parameters: iban, since, until, key (amount), reference. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_ASC = "Transaction.byAccountInRangeAfter.amountAsc";
+
+    /** Transactions of an account within a time range after a given position, by amount descending. Parameters: iban, since, until, key (amount), reference. */
+    public static final String TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_DESC = "Transaction.byAccountInRangeAfter.amountDesc";
+
+    /** Number of transactions with a reference (0 or 1). Parameters: reference. */
+    public static final String TRANSACTIONS_COUNT_BY_REFERENCE = "Transaction.countByReference";
+
+    /** References after a given one, sorted. Parameters: reference. */
+    public static final String TRANSACTION_REFERENCES_AFTER = "Transaction.referencesAfter";
+
+    /** Transactions after a given reference, sorted by reference. Parameters: reference. */
+    public static final String TRANSACTIONS_AFTER_REFERENCE = "Transaction.afterReference";
+
+    /** References found among some given ones. Parameters: references (collection). */
+    public static final String TRANSACTION_REFERENCES_IN = "Transaction.referencesIn";
+
+    /** Transactions dated before a given time, oldest first. Parameters: cutoff. */
+    public static final String TRANSACTIONS_BEFORE = "Transaction.before";
+
+    /** Latest transaction date, null if no transactions. No parameters. */
+    public static final String TRANSACTIONS_LATEST_DATE = "Transaction.latestDate";
+
+    /** Deletes transactions by reference. Parameters: references (collection). */
+    public static final String TRANSACTIONS_DELETE_BY_REFERENCES = "Transaction.deleteByReferences";
+
+    //
+    // Bank accounts.
+    //
+
+    /** Number of accounts with an IBAN (0 or 1). Parameters: iban. */
+    public static final String ACCOUNT_EXISTS = "BankAccount.exists";
+
+    /** IBANs after a given one, sorted. Parameters: iban. */
+    public static final String ACCOUNT_IBANS_AFTER = "BankAccount.ibansAfter";
+
+    /** Accounts after a given IBAN, sorted by IBAN. Parameters: iban. */
+    public static final String ACCOUNTS_AFTER = "BankAccount.after";
+
+    /** Balance and version of an account, as one row. Parameters: iban. */
+    public static final String ACCOUNT_BALANCE = "BankAccount.balance";
+
+    /** Replaces the balance of an account only if it is still at a given version. Parameters: iban, balance, version. */
+    public static final String ACCOUNT_SET_BALANCE_IF_VERSION = "BankAccount.setBalanceIfVersion";
+
+    /** Adds to the balance of an account unless it gets negative. Parameters: iban, net. */
+    public static final String ACCOUNT_ADD_BALANCE_IF_COVERED = "BankAccount.addBalanceIfCovered";
+
+    /** Adds to the balance of an account only if it has a given balance. Parameters: iban, net, expected. */
+    public static final String ACCOUNT_ADD_BALANCE_IF_UNCHANGED = "BankAccount.addBalanceIfUnchanged";
+
+    /** Adds to the balance of an account. Parameters: iban, net. */
+    public static final String ACCOUNT_ADD_BALANCE = "BankAccount.addBalance";
+
+    /** Copies the balance and version of an account from another store, unless already at that version or a later one. Parameters: iban, balance, version. */
+    public static final String ACCOUNT_REPLICATE = "BankAccount.replicate";
+
+    //
+    // Daily aggregates.
+    //
+
+    /** Adds to the totals of an account on a day. Parameters: iban, day, credits, debits, fees, creditCount, debitCount. */
+    public static final String DAILY_AGGREGATE_ADD = "DailyAggregate.add";
+
+    /** Totals of an account over a range of days, as one row: credits, debits, fees, creditCount, debitCount (null if no days). Parameters: iban, since, until (days). */
+    public static final String DAILY_AGGREGATE_TOTALS = "DailyAggregate.totals";
+}
@@ -0,0 +1,36 @@
+package com.mybank.corebusiness.backend.persistence;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values bound to the named parameters of a query.
+ * Usage: {@code QueryParameters.with("iban", iban).and("net", netAmount)}
+ */
+public class QueryParameters {
+
+    /**
+     * Creates the parameters with a first value.
+     */
+    public static QueryParameters with(String name, Object value) {
+        return new QueryParameters().and(name, value);
+    }
+
+    /**
+     * Adds a value.
+     */
+    public QueryParameters and(String name, Object value) {
+        mValues.put(name, value);
+        return this;
+    }
+
+    /**
+     * Provides the values by parameter name.
+     */
+    public Map<String, Object> getValues() {
+        return Collections.unmodifiableMap(mValues);
+    }
+
+    private final Map<String, Object> mValues = new LinkedHashMap<>();
+}
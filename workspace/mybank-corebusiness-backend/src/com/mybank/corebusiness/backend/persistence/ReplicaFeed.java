@@ -0,0 +1,306 @@
+package com.mybank.corebusiness.backend.persistence;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.transaction.Transaction;
+
+/**
+ * Keeps a read replica of the live store up to date with the changes committed on it, in background.
+ * Committed postings are handed over along with their transactions, so only the balance of their account is read
+ * back from the live store. Other changes are learnt from the change notifications of the live store, or told
+ * explicitly, and read back by key. Several changes of one account before the replica is fed take one single read.
+ * The replica starts with a full copy of the live store.
+ * Readers learn from {@link #getLagMs()} how far behind the replica is, and from {@link #isPending(Class, Object)}
+ * whether an account or a transaction has changes not copied yet.
+ * Thread-safe.
+ */
+public class ReplicaFeed {
+
+    /**
+     * Prepares the feed. Nothing is copied until {@link #start()}.
+     * @param primary The store changes are copied from.
+     * @param replica The store changes are copied to. Nothing else writes on it.
+     * @param intervalMs Time between runs.
+     * @param batchSize Maximum number of entities copied at once.
+     */
+    public ReplicaFeed(PersistenceApi primary, PersistenceApi replica, long intervalMs, int batchSize) {
+        mPrimary = primary;
+        mReplica = replica;
+        mIntervalMs = intervalMs;
+        mBatchSize = batchSize;
+        primary.addChangeListener(BankAccount.class, iban -> changed(BankAccount.class, iban));
+        primary.addChangeListener(Transaction.class, reference -> changed(Transaction.class, reference));
+        log.info("Replica feed ready: every " + intervalMs + "ms, batches of " + batchSize);
+    }
+
+    /**
+     * Copies the whole live store, then its changes periodically.
+     */
+    public void start() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replica-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                feed();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Replica not fed, next run retries", e); // E.g. database not available.
+            }
+        }, 0, mIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers committed postings, to be copied.
+     * @param iban The bank account the transactions applied on.
+     * @param transactions The transactions stored, as stored.
+     */
+    public void posted(String iban, List<Transaction> transactions) {
+        synchronized (mLock) {
+            for (Transaction transaction : transactions) enqueue(mPendingTransactions, transaction.getReference(), transaction);
+            enqueue(mPendingAccounts, iban, null);
+        }
+    }
+
+    /**
+     * Registers a change on an account or a transaction, to be read back from the live store and copied.
+     * @param key The IBAN or the reference, or null for changes on any of them: everything is copied again.
+     */
+    public void changed(Class<?> entityClass, Object key) {
+        if (entityClass != BankAccount.class && entityClass != Transaction.class) return;
+        if (key == null) {
+            mCopyRequested = true;
+            return;
+        }
+        synchronized (mLock) {
+            enqueue(entityClass == BankAccount.class ? mPendingAccounts : mPendingTransactions, (String) key, null);
+        }
+    }
+
+    /**
+     * Indicates whether an account or a transaction has changes not copied yet.
+     * The changes of an account include those of its transactions.
+     */
+    public boolean isPending(Class<?> entityClass, Object key) {
+        synchronized (mLock) {
+            if (entityClass == BankAccount.class) return mPendingAccounts.containsKey(key);
+            if (entityClass == Transaction.class) return mPendingTransactions.containsKey(key);
+            return false;
+        }
+    }
+
+    /**
+     * Provides how long the oldest change not copied yet has been waiting.
+     * @return 0 if up to date, Long.MAX_VALUE while (fully) copying the live store.
+     */
+    public long getLagMs() {
+        if (mCopyRequested || mCopying) return Long.MAX_VALUE;
+        synchronized (mLock) {
+            long oldest = Long.MAX_VALUE;
+            if (!mPendingAccounts.isEmpty()) oldest = mPendingAccounts.values().iterator().next().mSinceMs;
+            if (!mPendingTransactions.isEmpty()) oldest = Math.min(oldest, mPendingTransactions.values().iterator().next().mSinceMs);
+            return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+        }
+    }
+
+    /** Number of accounts and transactions with changes not copied yet. */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingAccounts.size() + mPendingTransactions.size();
+        }
+    }
+
+    /** Number of accounts and transactions copied since started. */
+    public long getCopiedCount() { return mCopiedCount.get(); }
+
+    /**
+     * Copies the changes registered so far, after a full copy if requested.
+     * @return Number of accounts and transactions copied.
+     */
+    public long feed() {
+        long copied = 0;
+        if (mCopyRequested) {
+            mCopying = true;
+            mCopyRequested = false;
+            try {
+                copied += copyAll();
+            } catch (RuntimeException e) {
+                mCopyRequested = true;
+                throw e;
+            } finally {
+                mCopying = false;
+            }
+        }
+
+        while (true) {
+            // Everything pending at once: the transactions of an account are copied before the account, so the
+            // account is not reported up to date before its transactions.
+            Map<String, Change> accounts;
+            Map<String, Change> transactions;
+            synchronized (mLock) {
+                if (mPendingAccounts.isEmpty() && mPendingTransactions.isEmpty()) break;
+                accounts = new LinkedHashMap<>(mPendingAccounts);
+                transactions = new LinkedHashMap<>(mPendingTransactions);
+            }
+
+            // Transactions: as posted, or read back. Those not found anymore were deleted (archived).
+            List<Object> toInsert = new ArrayList<>();
+            List<String> toDelete = new ArrayList<>();
+            for (Map.Entry<String, Change> entry : transactions.entrySet()) {
+                Object transaction = entry.getValue().mTransaction != null ? entry.getValue().mTransaction : mPrimary.load(Transaction.class, entry.getKey());
+                if (transaction != null) toInsert.add(transaction);
+                else toDelete.add(entry.getKey());
+            }
+            insertTransactions(toInsert);
+            for (int i = 0; i < toDelete.size(); i += mBatchSize) {
+                mReplica.updateNamed(Queries.TRANSACTIONS_DELETE_BY_REFERENCES, QueryParameters.with("references", toDelete.subList(i, Math.min(i + mBatchSize, toDelete.size()))));
+            }
+
+            // Accounts, read back.
+            List<Object> toReplicate = new ArrayList<>();
+            for (String iban : accounts.keySet()) {
+                Object account = mPrimary.load(BankAccount.class, iban);
+                if (account != null) toReplicate.add(account);
+                else mReplica.delete(BankAccount.class, iban);
+            }
+            replicateAccounts(toReplicate);
+
+            // Done, unless changed again meanwhile.
+            synchronized (mLock) {
+                for (Map.Entry<String, Change> entry : transactions.entrySet()) mPendingTransactions.remove(entry.getKey(), entry.getValue());
+                for (Map.Entry<String, Change> entry : accounts.entrySet()) mPendingAccounts.remove(entry.getKey(), entry.getValue());
+            }
+            copied += accounts.size() + transactions.size();
+        }
+        mCopiedCount.addAndGet(copied);
+        return copied;
+    }
+
+    /**
+     * Stops copying once the run in progress is done.
+     */
+    public void shutdown() {
+        if (mExecutor == null) return;
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Replica feed stopped after " + mCopiedCount.get() + " copies, " + getPendingCount() + " changes not copied");
+    }
+
+    /**
+     * Copies all the accounts and transactions of the live store, page by page.
+     * Changes made meanwhile are registered as usual and copied afterwards.
+     * @return Number of accounts and transactions copied.
+     */
+    private long copyAll() {
+        long copied = 0;
+        String lastIban = "";
+        while (true) {
+            List<Object> page = mPrimary.loadNamed(Queries.ACCOUNTS_AFTER, QueryParameters.with("iban", lastIban), 0, mBatchSize - 1);
+            if (page == null || page.isEmpty()) break;
+            replicateAccounts(page);
+            copied += page.size();
+            lastIban = ((BankAccount) page.get(page.size() - 1)).getAccountIban();
+            if (page.size() < mBatchSize) break;
+        }
+        String lastReference = "";
+        while (true) {
+            List<Object> page = mPrimary.loadNamed(Queries.TRANSACTIONS_AFTER_REFERENCE, QueryParameters.with("reference", lastReference), 0, mBatchSize - 1);
+            if (page == null || page.isEmpty()) break;
+            insertTransactions(page);
+            copied += page.size();
+            lastReference = ((Transaction) page.get(page.size() - 1)).getReference();
+            if (page.size() < mBatchSize) break;
+        }
+        log.info("Replica fully copied: " + copied + " accounts and transactions");
+        return copied;
+    }
+
+    /**
+     * Inserts in the replica the transactions not there yet. Transactions do not change once stored.
+     */
+    private void insertTransactions(List<Object> transactions) {
+        for (int i = 0; i < transactions.size(); i += mBatchSize) {
+            List<Object> batch = transactions.subList(i, Math.min(i + mBatchSize, transactions.size()));
+            List<String> references = new ArrayList<>();
+            for (Object transaction : batch) references.add(((Transaction) transaction).getReference());
+            Set<Object> copied = new HashSet<>(mReplica.loadNamed(Queries.TRANSACTION_REFERENCES_IN, QueryParameters.with("references", references), null, null));
+            List<Object> toCopy = new ArrayList<>();
+            for (Object transaction : batch) if (!copied.contains(((Transaction) transaction).getReference())) toCopy.add(transaction);
+            mReplica.saveAll(toCopy);
+        }
+    }
+
+    /**
+     * Brings the accounts of the replica to the balance and version of the given ones, inserting the missing ones.
+     * An account already at that version, or a later one, is left as is.
+     */
+    private void replicateAccounts(List<Object> accounts) {
+        List<Object> toInsert = new ArrayList<>();
+        for (Object accountObj : accounts) {
+            BankAccount account = (BankAccount) accountObj;
+            long updated = mReplica.updateNamed(Queries.ACCOUNT_REPLICATE, QueryParameters.with("iban", account.getAccountIban())
+                                                                                         .and("balance", account.getBalance())
+                                                                                         .and("version", account.getVersion()));
+            if (updated == 0 && mReplica.countNamed(Queries.ACCOUNT_EXISTS, QueryParameters.with("iban", account.getAccountIban())) == 0) toInsert.add(account);
+        }
+        mReplica.saveAll(toInsert);
+    }
+
+    /**
+     * Registers a change, keeping the time of the oldest change not copied yet.
+     * @param transaction The transaction as stored, or null to read it back (the one already registered is kept).
+     */
+    private void enqueue(Map<String, Change> pending, String key, Transaction transaction) {
+        Change previous = pending.get(key);
+        pending.put(key, previous == null ? new Change(System.currentTimeMillis(), transaction)
+                                          : new Change(previous.mSinceMs, transaction != null ? transaction : previous.mTransaction));
+    }
+
+    /**
+     * A change not copied yet. A new one replaces it on every change, so a change made while copying is not missed.
+     */
+    private static class Change {
+        Change(long sinceMs, Transaction transaction) {
+            mSinceMs = sinceMs;
+            mTransaction = transaction;
+        }
+        final long mSinceMs;
+        final Transaction mTransaction;
+    }
+
+    private final PersistenceApi mPrimary;
+    private final PersistenceApi mReplica;
+    private final long mIntervalMs;
+    private final int mBatchSize;
+    private ScheduledExecutorService mExecutor;
+
+    /** Changes not copied yet, by IBAN and by reference, oldest first. */
+    private final Map<String, Change> mPendingAccounts = new LinkedHashMap<>();
+    private final Map<String, Change> mPendingTransactions = new LinkedHashMap<>();
+    private final Object mLock = new Object();
+
+    /** A full copy is requested or in progress: the replica cannot be read meanwhile. */
+    private volatile boolean mCopyRequested = true;
+    private volatile boolean mCopying;
+
+    private final AtomicLong mCopiedCount = new AtomicLong();
+
+    private static Logger log = Logger.getLogger(ReplicaFeed.class.getName());
+}
@@ -0,0 +1,14 @@
+package com.mybank.corebusiness.backend.persistence;
+
+/**
+ * Scope where the datastore operations of the current thread share one single connection context
+ * (entity manager) instead of opening one per operation. To be closed when done, e.g. by try-with-resources.
+ */
+public interface UnitOfWork extends AutoCloseable {
+
+    /**
+     * Ends the unit of work, releasing its connection context.
+     */
+    @Override
+    void close();
+}
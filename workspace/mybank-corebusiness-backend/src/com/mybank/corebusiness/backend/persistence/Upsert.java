@@ -0,0 +1,27 @@
+package com.mybank.corebusiness.backend.persistence;
+
+/**
+ * A named update that stores a new entity instead when it modifies nothing, e.g. a counter created on first use.
+ * See {@link PersistenceApi#updateNamedAndUpsert(String, QueryParameters, java.util.List, Object...)}.
+ */
+public class Upsert {
+
+    /**
+     * @param queryName The name of the update query.
+     * @param parameters Values of the query parameters.
+     * @param entity The new entity to store when the update modifies nothing.
+     */
+    public Upsert(String queryName, QueryParameters parameters, Object entity) {
+        mQueryName = queryName;
+        mParameters = parameters;
+        mEntity = entity;
+    }
+
+    public String getQueryName() { return mQueryName; }
+    public QueryParameters getParameters() { return mParameters; }
+    public Object getEntity() { return mEntity; }
+
+    private final String mQueryName;
+    private final QueryParameters mParameters;
+    private final Object mEntity;
+}
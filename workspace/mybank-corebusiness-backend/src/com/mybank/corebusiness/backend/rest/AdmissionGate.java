@@ -0,0 +1,140 @@
+package com.mybank.corebusiness.backend.rest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Admission control for one kind of request: a limit of requests in progress plus a bounded queue
+ * of requests waiting for their turn. Requests beyond the queue are rejected straight away, and
+ * requests waiting longer than allowed are dropped when their turn comes.
+ * Limits can be changed at any time. Non-blocking and thread-safe.
+ */
+public class AdmissionGate {
+
+    /**
+     * @param name Identifier of the gate.
+     * @param maxInFlight Maximum number of requests in progress.
+     * @param maxQueued Maximum number of requests waiting for their turn.
+     * @param maxWaitMs Maximum time a request waits for its turn.
+     */
+    public AdmissionGate(String name, int maxInFlight, int maxQueued, long maxWaitMs) {
+        mName = name;
+        setLimits(maxInFlight, maxQueued, maxWaitMs);
+    }
+
+    /**
+     * Asks for admission of a request.
+     * @param onAdmitted Run when the request is admitted, straight away or once its turn comes. {@link #exit()} must be called when it is done.
+     * @param onExpired Run when the request waited for its turn longer than allowed. Not admitted.
+     * @return False when the request is rejected because too many requests are waiting. Neither callback is run then.
+     */
+    public boolean enter(Runnable onAdmitted, Runnable onExpired) {
+        synchronized (this) {
+            if (mInFlight >= mMaxInFlight) {
+                if (mQueue.size() >= mMaxQueued) {
+                    mRejected++;
+                    return false;
+                }
+                mQueue.add(new Waiting(onAdmitted, onExpired));
+                return true;
+            }
+            mInFlight++;
+            mAdmitted++;
+        }
+        onAdmitted.run();
+        return true;
+    }
+
+    /**
+     * Notifies an admitted request is done, so the next waiting one is admitted.
+     */
+    public void exit() {
+        while (true) {
+            Waiting next;
+            boolean expired;
+            synchronized (this) {
+                next = mInFlight <= mMaxInFlight ? mQueue.poll() : null; // Limit lowered: let requests in progress drain.
+                if (next == null) {
+                    mInFlight--;
+                    return;
+                }
+                expired = System.currentTimeMillis() - next.mQueuedAt > mMaxWaitMs;
+                if (expired) mExpired++;
+                else mAdmitted++;
+            }
+            if (!expired) {
+                next.mOnAdmitted.run();
+                return;
+            }
+            next.mOnExpired.run();
+        }
+    }
+
+    /**
+     * Changes the limits of the gate. Requests already admitted or waiting are kept.
+     */
+    public void setLimits(int maxInFlight, int maxQueued, long maxWaitMs) {
+        if (maxInFlight <= 0 || maxQueued < 0 || maxWaitMs < 0) throw new IllegalArgumentException("Invalid admission limits for '" + mName + "'");
+        List<Waiting> admitted = new ArrayList<>();
+        synchronized (this) {
+            mMaxInFlight = maxInFlight;
+            mMaxQueued = maxQueued;
+            mMaxWaitMs = maxWaitMs;
+
+            // Raised limit: admit waiting requests right away.
+            while (mInFlight < mMaxInFlight && !mQueue.isEmpty()) {
+                mInFlight++;
+                mAdmitted++;
+                admitted.add(mQueue.poll());
+            }
+        }
+        for (Waiting next : admitted) next.mOnAdmitted.run();
+    }
+
+    public String getName() { return mName; }
+    public synchronized int getMaxInFlight() { return mMaxInFlight; }
+    public synchronized int getMaxQueued() { return mMaxQueued; }
+    public synchronized long getMaxWaitMs() { return mMaxWaitMs; }
+
+    /** Number of requests in progress. */
+    public synchronized int getInFlight() { return mInFlight; }
+
+    /** Number of requests waiting for their turn. */
+    public synchronized int getQueued() { return mQueue.size(); }
+
+    /** Number of requests admitted so far. */
+    public synchronized long getAdmittedCount() { return mAdmitted; }
+
+    /** Number of requests rejected so far because too many requests were waiting. */
+    public synchronized long getRejectedCount() { return mRejected; }
+
+    /** Number of requests dropped so far because they waited too long. */
+    public synchronized long getExpiredCount() { return mExpired; }
+
+    /**
+     * A request waiting for its turn.
+     */
+    private static class Waiting {
+        Waiting(Runnable onAdmitted, Runnable onExpired) {
+            mOnAdmitted = onAdmitted;
+            mOnExpired = onExpired;
+        }
+        final Runnable mOnAdmitted;
+        final Runnable mOnExpired;
+        final long mQueuedAt = System.currentTimeMillis();
+    }
+
+    private final String mName;
+    private final Deque<Waiting> mQueue = new ArrayDeque<>();
+    private int mMaxInFlight;
+    private int mMaxQueued;
+    private long mMaxWaitMs;
+    private int mInFlight;
+
+    // Statistics.
+    private long mAdmitted;
+    private long mRejected;
+    private long mExpired;
+}
@@ -0,0 +1,84 @@
+package com.mybank.corebusiness.backend.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.CookieParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.backend.Ctx;
+import com.mybank.corebusiness.backend.common.AuthMiddlewareApi;
+
+/**
+ * REST web service entry point for operators: observation and tuning of the admission gates.
+ */
+@Path("1.0/admission")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class AdmissionRs {
+
+    /**
+     * Provides the limits and figures of all the admission gates.
+     */
+    @GET
+    public ArrayList<LinkedHashMap<String, Object>> getGates(@CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+
+        // Authorize request.
+        Ctx.get().getAuthMiddleware().checkAuthToken(jwttoken);
+
+        // Process request.
+        ArrayList<LinkedHashMap<String, Object>> gates = new ArrayList<>();
+        for (AdmissionGate gate : Ctx.get().getAdmissionGates()) gates.add(describe(gate));
+        return gates;
+    }
+
+    /**
+     * Changes the limits of an admission gate. Limits not provided are kept.
+     * @return The limits and figures of the gate.
+     */
+    @PUT
+    @Path("{gate}")
+    public LinkedHashMap<String, Object> setLimits(@PathParam("gate") String name, @QueryParam("maxInFlight") Integer maxInFlight,
+                                                   @QueryParam("maxQueued") Integer maxQueued, @QueryParam("maxWaitMs") Long maxWaitMs,
+                                                   @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+
+        // Authorize request.
+        Ctx.get().getAuthMiddleware().checkAuthToken(jwttoken);
+
+        // Check incoming content.
+        AdmissionGate gate = Ctx.get().getAdmissionGate(name);
+        if (gate == null) throw new CallException("Invalid request: unknown admission gate '" + name + "'");
+
+        // Process request.
+        try {
+            gate.setLimits(maxInFlight != null ? maxInFlight : gate.getMaxInFlight(),
+                           maxQueued != null ? maxQueued : gate.getMaxQueued(),
+                           maxWaitMs != null ? maxWaitMs : gate.getMaxWaitMs());
+        } catch (IllegalArgumentException e) {
+            throw new CallException("Invalid request: " + e.getMessage());
+        }
+        return describe(gate);
+    }
+
+    private LinkedHashMap<String, Object> describe(AdmissionGate gate) {
+        LinkedHashMap<String, Object> description = new LinkedHashMap<>();
+        description.put("name", gate.getName());
+        description.put("maxInFlight", gate.getMaxInFlight());
+        description.put("maxQueued", gate.getMaxQueued());
+        description.put("maxWaitMs", gate.getMaxWaitMs());
+        description.put("inFlight", gate.getInFlight());
+        description.put("queued", gate.getQueued());
+        description.put("admitted", gate.getAdmittedCount());
+        description.put("rejected", gate.getRejectedCount());
+        description.put("expired", gate.getExpiredCount());
+        return description;
+    }
+}
@@ -0,0 +1,16 @@
+package com.mybank.corebusiness.backend.rest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ext.Provider;
+
+import com.mybank.corebusiness.api.rest.BinaryCodec;
+
+/**
+ * Entities in the compact binary format of {@link BinaryCodec}, for the clients asking for it. Same as the clients do.
+ */
+@Provider
+@Produces(BinaryCodec.MEDIA_TYPE)
+@Consumes(BinaryCodec.MEDIA_TYPE)
+public class BinaryJerseyProvider extends com.mybank.corebusiness.sdk.BinaryJerseyProvider {
+}
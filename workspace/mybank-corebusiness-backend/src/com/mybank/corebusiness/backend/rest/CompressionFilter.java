@@ -0,0 +1,155 @@
+package com.mybank.corebusiness.backend.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.mybank.corebusiness.backend.Ctx;
+
+/**
+ * Compresses response entities (gzip or deflate, as accepted by the client) once they exceed a size threshold,
+ * so small responses (statuses, balances) are sent as they are. Entities are buffered up to the threshold:
+ * those ending before it are written as they are, larger ones are compressed while written.
+ */
+@Provider
+public class CompressionFilter implements ContainerRequestFilter, WriterInterceptor {
+
+    /**
+     * Takes note of the encoding the client accepts, if any.
+     */
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        if (mMinBytes < 0) return;
+        String encoding = chooseEncoding(requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding != null) requestContext.setProperty(PROP_ENCODING, encoding);
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        String encoding = (String) context.getProperty(PROP_ENCODING);
+        if (encoding == null || context.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        ThresholdOutputStream out = new ThresholdOutputStream(context.getOutputStream(), mMinBytes, encoding, context.getHeaders());
+        context.setOutputStream(out);
+        context.proceed();
+        out.finish();
+    }
+
+    /**
+     * Picks gzip, or else deflate, out of an Accept-Encoding header.
+     * @return Null if none is accepted.
+     */
+    static String chooseEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        boolean deflate = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?")) continue; // Refused.
+            if (name.equals(GZIP) || name.equals("x-gzip")) return GZIP;
+            if (name.equals(DEFLATE)) deflate = true;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Holds an entity until it exceeds the threshold, then compresses it while written.
+     * The encoding headers are set before anything reaches the container, so they are sent.
+     */
+    private static class ThresholdOutputStream extends OutputStream {
+
+        ThresholdOutputStream(OutputStream out, int threshold, String encoding, MultivaluedMap<String, Object> headers) {
+            mOut = out;
+            mBuffer = new byte[threshold];
+            mEncoding = encoding;
+            mHeaders = headers;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCompressed == null && mCount == mBuffer.length) compress();
+            if (mCompressed != null) mCompressed.write(b);
+            else mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (mCompressed == null && mCount + length > mBuffer.length) compress();
+            if (mCompressed != null) {
+                mCompressed.write(bytes, offset, length);
+            } else {
+                System.arraycopy(bytes, offset, mBuffer, mCount, length);
+                mCount += length;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mCompressed != null) mCompressed.flush();
+            // Otherwise held until known to be below the threshold or not.
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        /**
+         * Writes what is held as it is, or ends the compressed entity.
+         */
+        void finish() throws IOException {
+            if (mFinished) return;
+            mFinished = true;
+            if (mCompressed != null) {
+                mCompressed.close();
+            } else {
+                mOut.write(mBuffer, 0, mCount);
+            }
+        }
+
+        /**
+         * Switches to compression: the length is not known anymore. Flushes compress all that was written
+         * so far, so streamed lines reach the client as they are produced.
+         */
+        private void compress() throws IOException {
+            mHeaders.remove(HttpHeaders.CONTENT_LENGTH);
+            mHeaders.putSingle(HttpHeaders.CONTENT_ENCODING, mEncoding);
+            mCompressed = mEncoding.equals(GZIP) ? new GZIPOutputStream(mOut, BUFFER_SIZE, true) : new DeflaterOutputStream(mOut, true);
+            mCompressed.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+
+        private final OutputStream mOut;
+        private final byte[] mBuffer;
+        private final String mEncoding;
+        private final MultivaluedMap<String, Object> mHeaders;
+        private int mCount;
+        private OutputStream mCompressed;
+        private boolean mFinished;
+    }
+
+    /** Size from which entities are compressed: larger than it, in bytes. Negative: none. */
+    private final int mMinBytes = Ctx.getConfigInt(Ctx.CFG_COMPRESSION_MIN_BYTES, 2048);
+
+    /** Request property holding the encoding accepted by the client. */
+    private static final String PROP_ENCODING = CompressionFilter.class.getName() + ".encoding";
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    /** Bytes compressed at once. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+}
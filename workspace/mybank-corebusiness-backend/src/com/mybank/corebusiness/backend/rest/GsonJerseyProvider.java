@@ -1,76 +1,19 @@
 package com.mybank.corebusiness.backend.rest;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Type;
-
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
-import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.MultivaluedMap;
-import javax.ws.rs.ext.MessageBodyReader;
-import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
+/**
+ * JSON entities through Gson, as the clients do, with the Content-Length of the entities written at once.
+ */
 @Provider
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
-public class GsonJerseyProvider implements MessageBodyWriter<Object>,
-        MessageBodyReader<Object> {
-
-    private static final String UTF_8 = "UTF-8";
-
-    @Override
-    public boolean isReadable(Class<?> type, Type genericType,
-            java.lang.annotation.Annotation[] annotations, MediaType mediaType) {
-        return true;
-    }
-
-    @Override
-    public Object readFrom(Class<Object> type, Type genericType,
-            Annotation[] annotations, MediaType mediaType,
-            MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
-            throws IOException {
-        InputStreamReader streamReader = new InputStreamReader(entityStream,
-                UTF_8);
-        try {
-            return GsonUtil.getInstance().fromJson(streamReader, genericType);
-        } catch (com.google.gson.JsonSyntaxException e) {
-            // Log exception
-        } finally {
-            streamReader.close();
-        }
-        return null;
-    }
-
-    @Override
-    public boolean isWriteable(Class<?> type, Type genericType,
-            Annotation[] annotations, MediaType mediaType) {
-        return true;
-    }
-
-    @Override
-    public long getSize(Object object, Class<?> type, Type genericType,
-            Annotation[] annotations, MediaType mediaType) {
-        return -1;
-    }
+public class GsonJerseyProvider extends com.mybank.corebusiness.sdk.GsonJerseyProvider {
 
-    @Override
-    public void writeTo(Object object, Class<?> type, Type genericType,
-            Annotation[] annotations, MediaType mediaType,
-            MultivaluedMap<String, Object> httpHeaders,
-            OutputStream entityStream) throws IOException,
-            WebApplicationException {
-        OutputStreamWriter writer = new OutputStreamWriter(entityStream, UTF_8);
-        try {
-            GsonUtil.getInstance().toJson(object, genericType, writer);
-        } finally {
-            writer.close();
-        }
+    public GsonJerseyProvider() {
+        super(true);
     }
-}
\ No newline at end of file
+}
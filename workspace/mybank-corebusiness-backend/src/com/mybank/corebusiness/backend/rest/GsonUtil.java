@@ -1,87 +1,71 @@
 package com.mybank.corebusiness.backend.rest;
 
-import java.lang.reflect.Type;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mybank.corebusiness.sdk.DtoTypeAdapters;
 
+/**
+ * Gson instances shared by all threads, built once when the class is loaded and immutable afterwards.
+ * The API DTOs go through the streaming adapters of {@link DtoTypeAdapters}, no reflection, the same ones as the clients.
+ */
 public class GsonUtil {
     public static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXX";
 
-    private static Gson gson;
-    private static Gson gsonExpose;
-    private static SimpleDateFormat sdf;
+    /** Formatter of dates, in the default time zone. Immutable, so thread-safe unlike SimpleDateFormat. */
+    public static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(PATTERN).withZone(ZoneId.systemDefault());
+
+    private static final Gson gson = getGsonBuilderInstance(false).create();
+    private static final Gson gsonExpose = getGsonBuilderInstance(true).create();
 
     public static Gson getInstance() {
-        if (gson == null) {
-            gson = getGsonBuilderInstance(false).create();
-        }
         return gson;
     }
 
     public static Gson getExposeInstance() {
-        if (gsonExpose == null) {
-            gsonExpose = getGsonBuilderInstance(true).create();
-        }
         return gsonExpose;
     }
 
     public static Gson getInstance(boolean onlyExpose) {
-        if (!onlyExpose) {
-            if (gson == null) {
-                gson = getGsonBuilderInstance(false).create();
-            }
-            return gson;
-        } else {
-            if (gsonExpose == null) {
-                gsonExpose = getGsonBuilderInstance(true).create();
-            }
-            return gsonExpose;
-        }
-    }
-
-    public static SimpleDateFormat getSDFInstance() {
-        if (sdf == null) {
-            sdf = new SimpleDateFormat(PATTERN);
-        }
-        return sdf;
+        return onlyExpose ? gsonExpose : gson;
     }
 
     private static GsonBuilder getGsonBuilderInstance(boolean onlyExpose) {
         GsonBuilder gsonBuilder = new GsonBuilder();
         if (onlyExpose) {
+            // Fields picked by annotation: reflection only.
             gsonBuilder.excludeFieldsWithoutExposeAnnotation();
+        } else {
+            DtoTypeAdapters.register(gsonBuilder);
         }
-        gsonBuilder.registerTypeAdapter(Date.class,
-                new JsonDeserializer<Date>() {
-                    @Override
-                    public Date deserialize(JsonElement json, Type type,
-                            JsonDeserializationContext arg2)
-                            throws JsonParseException {
-                        try {
-                            return getSDFInstance().parse(json.getAsString());
-                        } catch (ParseException e) {
-                            return null;
-                        }
-                    }
+        gsonBuilder.registerTypeAdapter(Date.class, new TypeAdapter<Date>() {
+            @Override
+            public void write(JsonWriter out, Date value) throws IOException {
+                if (value == null) out.nullValue();
+                else out.value(DATE_FORMATTER.format(value.toInstant()));
+            }
 
-                });
-        gsonBuilder.registerTypeAdapter(Date.class, new JsonSerializer<Date>() {
             @Override
-            public JsonElement serialize(Date src, Type typeOfSrc,
-                    JsonSerializationContext context) {
-                return src == null ? null : new JsonPrimitive(getSDFInstance()
-                        .format(src));
+            public Date read(JsonReader in) throws IOException {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    return null;
+                }
+                try {
+                    return Date.from(Instant.from(DATE_FORMATTER.parse(in.nextString())));
+                } catch (DateTimeException e) {
+                    return null;
+                }
             }
         });
         return gsonBuilder;
@@ -96,4 +80,4 @@ public class GsonUtil {
             return null;
         }
     }
-}
\ No newline at end of file
+}
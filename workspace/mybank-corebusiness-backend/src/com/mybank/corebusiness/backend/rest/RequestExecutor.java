@@ -0,0 +1,157 @@
+package com.mybank.corebusiness.backend.rest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.mybank.corebusiness.api.rest.CallException;
+
+/**
+ * Bounded executor of suspended REST requests, so the servlet threads are released while
+ * requests wait on the database. Each request gets a time limit.
+ * Runs on virtual threads when enabled and available (Java 21 onwards), platform threads otherwise.
+ */
+public class RequestExecutor {
+
+    /**
+     * Starts the executor.
+     * @param threadCount Maximum number of requests processed at the same time.
+     * @param queueCapacity Maximum number of requests waiting to be processed. Beyond it requests are rejected.
+     * @param timeoutMs Time limit of each request, from its arrival.
+     * @param virtualThreads Whether to use virtual threads, if available.
+     */
+    public RequestExecutor(int threadCount, int queueCapacity, long timeoutMs, boolean virtualThreads) {
+        ThreadFactory threadFactory = virtualThreads ? newVirtualThreadFactory() : null;
+        boolean virtual = threadFactory != null;
+        if (!virtual) {
+            AtomicInteger count = new AtomicInteger();
+            threadFactory = r -> {
+                Thread thread = new Thread(r, "request-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mTimeoutMs = timeoutMs;
+        log.info("Request executor started: " + threadCount + (virtual ? " virtual" : "") + " threads, " + queueCapacity + " queued requests, " + timeoutMs + "ms timeout");
+    }
+
+    /**
+     * Processes a suspended request in background and resumes it with the outcome.
+     * A CallException is answered as the error message in plain text, as understood by the SDK clients.
+     * @param response The suspended request.
+     * @param task The request processing. Its result is the response entity (no content if null).
+     */
+    public <T> void execute(AsyncResponse response, Callable<T> task) {
+        setTimeout(response);
+        dispatch(response, task, () -> {});
+    }
+
+    /**
+     * Processes a suspended request in background once admitted by a gate, and resumes it with the outcome.
+     * Requests not admitted are answered with 429 (too many waiting) or 503 (waited too long).
+     * @param response The suspended request.
+     * @param gate The admission control the request goes through.
+     * @param task The request processing. Its result is the response entity (no content if null).
+     */
+    public <T> void execute(AsyncResponse response, AdmissionGate gate, Callable<T> task) {
+        setTimeout(response);
+        boolean accepted = gate.enter(() -> dispatch(response, task, gate::exit),
+                                      () -> response.resume(error(Status.SERVICE_UNAVAILABLE, "Too many requests waiting, try again later")));
+        if (!accepted) response.resume(error(TOO_MANY_REQUESTS, "Too many requests, try again later"));
+    }
+
+    /**
+     * Sets the time limit of a request.
+     */
+    private void setTimeout(AsyncResponse response) {
+        response.setTimeoutHandler(r -> r.resume(error(Status.SERVICE_UNAVAILABLE, "Request timed out, its outcome is unknown")));
+        response.setTimeout(mTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a request in the executor.
+     * @param done Run once the request is done, whatever the outcome.
+     */
+    private <T> void dispatch(AsyncResponse response, Callable<T> task, Runnable done) {
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    if (!response.isDone()) response.resume(task.call()); // Not timed out while waiting.
+                } catch (CallException e) {
+                    response.resume(error(Status.INTERNAL_SERVER_ERROR, e.getMessage()));
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Request failed", e);
+                    response.resume(e);
+                } finally {
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done.run();
+            response.resume(error(Status.SERVICE_UNAVAILABLE, "Too many requests in progress, try again later"));
+        }
+    }
+
+    /** Number of requests waiting to be processed. */
+    public int getQueueDepth() { return mExecutor.getQueue().size(); }
+
+    /** Number of requests being processed. */
+    public int getActiveCount() { return mExecutor.getActiveCount(); }
+
+    /**
+     * Stops the executor once the requests in progress are done.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(mTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Request executor stopped after " + mExecutor.getCompletedTaskCount() + " requests");
+    }
+
+    private static Response error(Response.StatusType status, String message) {
+        return Response.status(status).type(MediaType.TEXT_PLAIN).entity(message).build();
+    }
+
+    /**
+     * Provides a factory of virtual threads, or null if not supported by the running JVM.
+     */
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "request-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.warning("Virtual threads not available in this JVM, using platform threads");
+            return null;
+        }
+    }
+
+    /** HTTP status 429, not available in JAX-RS 2.0. */
+    private static final Response.StatusType TOO_MANY_REQUESTS = new Response.StatusType() {
+        @Override public int getStatusCode() { return 429; }
+        @Override public Status.Family getFamily() { return Status.Family.CLIENT_ERROR; }
+        @Override public String getReasonPhrase() { return "Too Many Requests"; }
+    };
+
+    private final ThreadPoolExecutor mExecutor;
+    private final long mTimeoutMs;
+
+    private static Logger log = Logger.getLogger(RequestExecutor.class.getName());
+}
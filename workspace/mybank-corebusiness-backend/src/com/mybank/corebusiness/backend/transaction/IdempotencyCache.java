@@ -0,0 +1,129 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mybank.corebusiness.api.rest.CallException;
+
+/**
+ * Bounded, time-expiring cache of the outcomes of requests sent with an idempotency key.
+ * The first request with a key runs; the ones repeating the key get the same outcome (result or
+ * CallException message) without running again, waiting for the first one if still in progress.
+ * Unexpected failures are not kept, so the request can be retried. Requests still in progress are never
+ * discarded, even beyond the maximum number of outcomes or their time, so a repetition never runs them again.
+ * Thread-safe.
+ */
+public class IdempotencyCache {
+
+    /**
+     * @param maxEntries Maximum number of outcomes kept. The least recently used ones are discarded beyond it,
+     *                   once their requests end.
+     * @param ttlMillis Time an outcome is kept since its request arrived, or until it ends if longer.
+     */
+    public IdempotencyCache(int maxEntries, long ttlMillis) {
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Runs a request unless its key was already used, in which case the outcome of that first request is provided.
+     * @param key The idempotency key sent by the client.
+     * @param fingerprint Summary of the request content, so a key cannot be reused for a different request.
+     * @param task The request processing.
+     * @return The result of the request.
+     * @throws CallException The exception raised by the request, or on key reused for a different request.
+     */
+    public String execute(String key, String fingerprint, Callable<String> task) throws CallException {
+        // Find the outcome, registering this request as the first one if none.
+        long now = System.currentTimeMillis();
+        Outcome entry;
+        boolean first = false;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+            if (entry == null || (now - entry.mCreated > mTtlMillis && entry.mOutcome.isDone())) {
+                entry = new Outcome(fingerprint, now);
+                mEntries.put(key, entry);
+                first = true;
+                discardOutcomes(now);
+            }
+        }
+        if (!entry.mFingerprint.equals(fingerprint)) throw new CallException("Invalid request: idempotency key already used for a different transaction");
+
+        // First request: run it and keep its outcome.
+        if (first) {
+            try {
+                entry.mOutcome.complete(task.call());
+            } catch (CallException e) {
+                entry.mOutcome.completeExceptionally(e);
+            } catch (Exception e) {
+                synchronized (mEntries) {
+                    mEntries.remove(key, entry);
+                }
+                entry.mOutcome.completeExceptionally(e);
+            }
+        } else {
+            mReplays.incrementAndGet();
+        }
+
+        // Provide the outcome.
+        try {
+            return entry.mOutcome.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CallException("Transaction interrupted, its outcome is unknown");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CallException) throw new CallException(cause.getMessage());
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Discards the outcomes beyond the maximum number, least recently used first, and those expired.
+     * Requests in progress are skipped. Called holding the lock of the entries.
+     */
+    private void discardOutcomes(long now) {
+        Iterator<Outcome> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Outcome entry = entries.next();
+            if (mEntries.size() <= mMaxEntries && now - entry.mCreated <= mTtlMillis) return;
+            if (entry.mOutcome.isDone()) entries.remove();
+        }
+    }
+
+    /** Number of outcomes kept. */
+    public int getSize() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /** Number of requests answered with the outcome of a previous one. */
+    public long getReplayCount() { return mReplays.get(); }
+
+    /**
+     * Outcome of the first request with a key.
+     */
+    private static class Outcome {
+        Outcome(String fingerprint, long created) {
+            mFingerprint = fingerprint;
+            mCreated = created;
+        }
+        final String mFingerprint;
+        final long mCreated;
+        final CompletableFuture<String> mOutcome = new CompletableFuture<>();
+    }
+
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    private final AtomicLong mReplays = new AtomicLong();
+
+    /** Outcomes by key, least recently used first. */
+    private final Map<String, Outcome> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+}
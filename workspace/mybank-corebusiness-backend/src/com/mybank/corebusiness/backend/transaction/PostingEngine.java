@@ -0,0 +1,172 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.api.transaction.DailyAggregate;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.backend.account.AccountCache;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+import com.mybank.corebusiness.backend.persistence.ReplicaFeed;
+import com.mybank.corebusiness.backend.persistence.Upsert;
+
+/**
+ * Applies transactions on the balance of bank accounts.
+ * Each posting takes one single database transaction: a conditional balance update,
+ * that only succeeds when the balance is kept non-negative, plus the transaction insertion
+ * and the addition to the daily aggregate of the account.
+ * The outcome is decided by the number of accounts updated, so no balance is read beforehand
+ * and concurrent postings cannot lose updates.
+ * The cached balance of the account is refreshed once a posting is applied, and the posting handed over to the read replica.
+ */
+public class PostingEngine {
+
+    /**
+     * @param accountCache The cache of account balances to keep up to date.
+     * @param replicaFeed The feed of the read replica to hand applied postings over to. Null if no replica.
+     */
+    public PostingEngine(AccountCache accountCache, ReplicaFeed replicaFeed) {
+        mAccountCache = accountCache;
+        mReplicaFeed = replicaFeed;
+    }
+
+    /**
+     * Applies a transaction on its bank account and stores it.
+     * @param datastore The store holding both the bank account and the transactions.
+     * @param transaction The transaction to store, with its reference and date already assigned.
+     * @param netAmount The amount to add to the balance (negative to subtract), fee already applied.
+     * @throws CallException On balance below 0 or transaction that cannot be stored.
+     */
+    public void post(PersistenceApi datastore, Transaction transaction, long netAmount) throws CallException {
+        long updated;
+        try {
+            updated = datastore.updateNamedAndUpsert(Queries.ACCOUNT_ADD_BALANCE_IF_COVERED,
+                                                     QueryParameters.with("iban", transaction.getAccountIban().trim()).and("net", netAmount),
+                                                     aggregate(transaction.getAccountIban().trim(), Collections.singletonList(transaction)), transaction);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Transaction '" + transaction.getReference() + "' not stored", e);
+            throw notStored(datastore, Collections.singletonList(transaction));
+        }
+
+        // No account updated: the account is missing or its balance would be negative.
+        if (updated == 0) throw new CallException("Transaction not accepted: account would reach balance below 0");
+        mAccountCache.load(datastore, transaction.getAccountIban().trim());
+        if (mReplicaFeed != null) mReplicaFeed.posted(transaction.getAccountIban().trim(), Collections.singletonList(transaction));
+    }
+
+    /**
+     * Applies several transactions on one bank account and stores them, all of them at once.
+     * The caller has already checked each transaction keeps the balance non-negative, starting from a known balance.
+     * @param datastore The store holding both the bank account and the transactions.
+     * @param iban The bank account all the transactions apply on.
+     * @param expectedBalance The balance the account must have for the transactions to be applied.
+     * @param totalNetAmount The sum of the amounts to add to the balance, fees already applied.
+     * @param transactions The transactions to store, with their references and dates already assigned.
+     * @return Whether the transactions were applied. Not when the account balance is not the expected one anymore.
+     * @throws CallException On transactions that cannot be stored.
+     */
+    public boolean postAll(PersistenceApi datastore, String iban, long expectedBalance, long totalNetAmount, List<Transaction> transactions) throws CallException {
+        boolean applied;
+        try {
+            applied = 0 < datastore.updateNamedAndUpsert(Queries.ACCOUNT_ADD_BALANCE_IF_UNCHANGED,
+                                                         QueryParameters.with("iban", iban.trim()).and("net", totalNetAmount).and("expected", expectedBalance),
+                                                         aggregate(iban.trim(), transactions), transactions.toArray());
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, transactions.size() + " transactions for account '" + iban + "' not stored", e);
+            throw notStored(datastore, transactions);
+        }
+        mAccountCache.load(datastore, iban.trim()); // Also when not applied: the cached balance was not the current one.
+        if (applied && mReplicaFeed != null) mReplicaFeed.posted(iban.trim(), transactions);
+        return applied;
+    }
+
+    /**
+     * Applies several transactions already accepted on one bank account and stores them, all of them at once.
+     * They were accepted against the balance beforehand, and are still only applied if the balance is kept non-negative:
+     * it may have been changed meanwhile from another node.
+     * @param datastore The store holding both the bank account and the transactions.
+     * @param iban The bank account all the transactions apply on.
+     * @param totalNetAmount The sum of the amounts to add to the balance, fees already applied.
+     * @param transactions The transactions to store, with their references and dates already assigned.
+     * @return Whether the transactions were applied. Not when the account does not exist or its balance would be negative.
+     */
+    public boolean applyAll(PersistenceApi datastore, String iban, long totalNetAmount, List<Transaction> transactions) {
+        boolean applied = 0 < datastore.updateNamedAndUpsert(Queries.ACCOUNT_ADD_BALANCE_IF_COVERED,
+                                                             QueryParameters.with("iban", iban.trim()).and("net", totalNetAmount),
+                                                             aggregate(iban.trim(), transactions), transactions.toArray());
+        mAccountCache.load(datastore, iban.trim()); // Also when not applied: the cached balance was not the current one.
+        if (applied && mReplicaFeed != null) mReplicaFeed.posted(iban.trim(), transactions);
+        return applied;
+    }
+
+    /**
+     * Stores transactions whose balance is applied elsewhere (remote account service), along with their daily aggregates.
+     * @param datastore The store holding the transactions.
+     * @param iban The bank account all the transactions apply on.
+     * @param transactions The transactions to store, with their references and dates already assigned.
+     * @throws CallException On transactions that cannot be stored.
+     */
+    public void store(PersistenceApi datastore, String iban, List<Transaction> transactions) throws CallException {
+        try {
+            datastore.updateNamedAndUpsert(null, null, aggregate(iban.trim(), transactions), transactions.toArray());
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, transactions.size() + " transactions for account '" + iban + "' not stored", e);
+            throw notStored(datastore, transactions);
+        }
+        if (mReplicaFeed != null) for (Transaction transaction : transactions) mReplicaFeed.changed(Transaction.class, transaction.getReference());
+    }
+
+    /**
+     * Provides the error for transactions that could not be stored. The database refuses a reference already used,
+     * also when taken by another node after it was checked: this is told apart from other failures by looking it up.
+     */
+    private static CallException notStored(PersistenceApi datastore, List<Transaction> transactions) {
+        try {
+            for (Transaction transaction : transactions) {
+                if (0 < datastore.countNamed(Queries.TRANSACTIONS_COUNT_BY_REFERENCE, QueryParameters.with("reference", transaction.getReference()))) {
+                    return new CallException("Invalid transaction: provided reference is not available");
+                }
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "References of transactions not stored cannot be checked", e); // E.g. database not available.
+        }
+        return new CallException("Transaction not accepted: it could not be stored");
+    }
+
+    /**
+     * Provides the additions of some transactions to the daily aggregates of their account, one per day.
+     */
+    private static List<Upsert> aggregate(String iban, List<Transaction> transactions) {
+        Map<Long, DailyAggregate> days = new TreeMap<>();
+        for (Transaction transaction : transactions) {
+            days.computeIfAbsent(DailyAggregate.dayOf(transaction.getDateEpoch()), day -> {
+                DailyAggregate aggregate = new DailyAggregate();
+                aggregate.setAccountIban(iban);
+                aggregate.setDayEpoch(day);
+                return aggregate;
+            }).add(transaction);
+        }
+        List<Upsert> upserts = new ArrayList<>();
+        for (DailyAggregate aggregate : days.values()) {
+            upserts.add(new Upsert(Queries.DAILY_AGGREGATE_ADD, QueryParameters.with("iban", iban).and("day", aggregate.getDayEpoch())
+                                                                               .and("credits", aggregate.getCredits()).and("debits", aggregate.getDebits())
+                                                                               .and("fees", aggregate.getFees())
+                                                                               .and("creditCount", aggregate.getCreditCount()).and("debitCount", aggregate.getDebitCount()),
+                                   aggregate));
+        }
+        return upserts;
+    }
+
+    private final AccountCache mAccountCache;
+    private final ReplicaFeed mReplicaFeed;
+
+    private static Logger log = Logger.getLogger(PostingEngine.class.getName());
+}
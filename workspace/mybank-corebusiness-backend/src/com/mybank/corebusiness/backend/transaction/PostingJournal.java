@@ -0,0 +1,591 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+import com.mybank.corebusiness.backend.persistence.UnitOfWork;
+
+/**
+ * Durable journal of accepted postings, on a memory-mapped file.
+ * Postings are appended as checksummed records and acknowledged once a group of them
+ * is forced to disk (group commit). Then they are applied on the datastore asynchronously,
+ * in batches, through the posting lane of each account.
+ * Postings not applied yet are replayed on start.
+ * <p>
+ * Datastore failures applying postings are retried a bounded number of times. Postings that cannot be applied
+ * (e.g. reference already used, account missing, balance changed by another node so it would get negative), or still failing after the last retry, are recorded as failed
+ * in a file next to the journal and skipped, so they do not hold back the ones after them.
+ * <p>
+ * File layout: a header holding the offset up to which records are applied, followed by
+ * records made of payload length, CRC32 of the payload and payload. A zero length ends the records.
+ */
+public class PostingJournal {
+
+    /**
+     * Opens (or creates) the journal file. Nothing runs until {@link #start()}.
+     * @param file The journal file.
+     * @param capacityBytes Size of the journal file. No more than a memory-mapped buffer can hold: 2GB minus one byte.
+     * @param flushIntervalMs Time between forces of appended postings to disk.
+     * @param batchSize Maximum number of postings applied on the datastore at once.
+     * @param maxAttempts Maximum number of times a posting is tried to be applied while the datastore fails.
+     * @param lanes Lanes postings are applied through, so they do not interleave with new postings on the same account.
+     * @param postingEngine Engine applying postings on the datastore.
+     * @param datastore Provider of the datastore postings are applied on.
+     */
+    public PostingJournal(File file, long capacityBytes, long flushIntervalMs, int batchSize, int maxAttempts,
+                          PostingLanes lanes, PostingEngine postingEngine, Supplier<PersistenceApi> datastore) throws IOException {
+        mFlushIntervalMs = flushIntervalMs;
+        mBatchSize = batchSize;
+        mMaxAttempts = maxAttempts;
+        mLanes = lanes;
+        mPostingEngine = postingEngine;
+        mDatastore = datastore;
+        if (capacityBytes < MIN_CAPACITY || capacityBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Posting journal size must be between " + MIN_CAPACITY + " bytes and " + Integer.MAX_VALUE + " bytes (2047MB), not " + capacityBytes);
+        }
+        mCapacity = (int) capacityBytes;
+
+        // Map the file, initializing its header if new.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            boolean isNew = raf.length() < HEADER_SIZE;
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+            if (isNew || mBuffer.getInt(0) != MAGIC) {
+                mBuffer.putInt(0, MAGIC);
+                mBuffer.putLong(CHECKPOINT_POSITION, HEADER_SIZE);
+                mBuffer.putInt(HEADER_SIZE, 0);
+                mBuffer.force();
+            }
+        }
+        mWritePosition = HEADER_SIZE;
+        mAppliedPosition = HEADER_SIZE;
+
+        // Postings failed so far: one per line, reference and reason separated by a tab.
+        mFailedFile = new File(file.getPath() + ".failed");
+        if (mFailedFile.exists()) {
+            for (String line : Files.readAllLines(mFailedFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] failure = line.split("\t", 2);
+                if (failure.length == 2) mFailed.put(failure[0], failure[1]);
+            }
+        }
+        log.info("Posting journal opened: " + file + ", " + capacityBytes / 1024 + "KB, flush every " + flushIntervalMs + "ms, batches of " + batchSize +
+                 (mFailed.isEmpty() ? "" : ", " + mFailed.size() + " failed postings"));
+    }
+
+    /**
+     * Replays the postings not applied yet and starts the background flushing and application of postings.
+     */
+    public void start() {
+        // Replay records after the checkpoint, up to the first missing or corrupt one.
+        int position;
+        int replayed = 0;
+        synchronized (this) {
+            position = (int) mBuffer.getLong(CHECKPOINT_POSITION);
+            mAppliedPosition = position;
+            while (position + RECORD_HEADER_SIZE <= mCapacity) {
+                int length = mBuffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length + 4 > mCapacity) break;
+                byte[] payload = new byte[length];
+                ByteBuffer reader = mBuffer.duplicate();
+                reader.position(position + RECORD_HEADER_SIZE);
+                reader.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != mBuffer.getInt(position + 4)) break;
+
+                Posting posting = decode(payload);
+                position += RECORD_HEADER_SIZE + length;
+                if (mFailed.containsKey(posting.mTransaction.getReference())) continue; // Failed before the checkpoint moved past it.
+                posting.mEndPosition = position;
+                posting.mReplayed = true;
+                posting.mDurable.complete(posting.mTransaction.getReference());
+                track(posting);
+                mToApply.add(posting);
+                replayed++;
+            }
+            mWritePosition = position;
+            mBuffer.putInt(position, 0); // Discard any torn record.
+        }
+        if (replayed > 0) log.warning("Posting journal: " + replayed + " postings not applied yet, replaying them");
+
+        // Background tasks.
+        mFlusher = new Thread(this::flushLoop, "posting-journal-flusher");
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+        mApplier = new Thread(this::applyLoop, "posting-journal-applier");
+        mApplier.setDaemon(true);
+        mApplier.start();
+    }
+
+    /**
+     * Appends an accepted posting. To be called from the posting lane of its account.
+     * @param transaction The transaction, with its reference and date already assigned.
+     * @param netAmount The amount to add to the balance, fee already applied.
+     * @return Pending acknowledgment, completed with the transaction reference once the posting is on disk.
+     * @throws CallException When the journal is full or stopped.
+     */
+    public Future<String> append(Transaction transaction, long netAmount) throws CallException {
+        Posting posting = new Posting(transaction, netAmount);
+        byte[] payload = encode(posting);
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        synchronized (this) {
+            if (mStopped) throw new CallException("Transaction not accepted: service stopping");
+
+            // Room for the record plus the end marker. Start over when everything is applied.
+            if (mWritePosition + recordSize + 4 > mCapacity) {
+                if (mAppliedPosition != mWritePosition) throw new CallException("Transaction not accepted: too many postings pending, try again later");
+                mWritePosition = HEADER_SIZE;
+                mAppliedPosition = HEADER_SIZE;
+                mBuffer.putLong(CHECKPOINT_POSITION, HEADER_SIZE);
+                if (mWritePosition + recordSize + 4 > mCapacity) throw new CallException("Transaction not accepted: too big");
+            }
+
+            // Write record, then the end marker.
+            ByteBuffer writer = mBuffer.duplicate();
+            writer.position(mWritePosition + RECORD_HEADER_SIZE);
+            writer.put(payload);
+            mBuffer.putInt(mWritePosition + recordSize, 0);
+            mBuffer.putInt(mWritePosition + 4, (int) crc.getValue());
+            mBuffer.putInt(mWritePosition, payload.length);
+            mWritePosition += recordSize;
+
+            posting.mEndPosition = mWritePosition;
+            track(posting);
+            mUnflushed.add(posting);
+        }
+        return posting.mDurable;
+    }
+
+    /**
+     * Provides the sum of the net amounts of the postings on an account not applied on the datastore yet.
+     * To be called from the posting lane of the account for a consistent value.
+     */
+    public long getPendingNetAmount(String iban) {
+        long[] net = new long[1];
+        mPending.computeIfPresent(iban.trim(), (key, pending) -> {
+            net[0] = pending.mNet;
+            return pending;
+        });
+        return net[0];
+    }
+
+    /**
+     * Indicates whether an account has postings not applied on the datastore yet.
+     */
+    public boolean hasPending(String iban) {
+        return mPending.containsKey(iban.trim());
+    }
+
+    /**
+     * Provides the transactions on an account not applied on the datastore yet, in the order they were accepted.
+     */
+    public List<Transaction> getPendingTransactions(String iban) {
+        List<Transaction> transactions = new ArrayList<>();
+        mPending.computeIfPresent(iban.trim(), (key, pending) -> {
+            transactions.addAll(pending.mTransactions);
+            return pending;
+        });
+        return transactions;
+    }
+
+    /**
+     * Provides a transaction accepted but not applied on the datastore yet. Null if not pending.
+     */
+    public Transaction getPendingTransaction(String reference) {
+        return mPendingTransactions.get(reference);
+    }
+
+    /**
+     * Provides the reason why a posting accepted in the journal could not be applied. Null if not failed.
+     */
+    public String getFailure(String reference) {
+        return mFailed.get(reference);
+    }
+
+    /**
+     * Stops accepting postings, forces the appended ones to disk and waits for all of them to be applied.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mStopped = true;
+        }
+        try {
+            if (mFlusher != null) mFlusher.join(TimeUnit.SECONDS.toMillis(10));
+            if (mApplier != null) mApplier.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Posting journal stopped, " + mPendingTransactions.size() + " postings left to be replayed");
+    }
+
+    /**
+     * Forces appended postings to disk every flush interval and acknowledges them.
+     */
+    private void flushLoop() {
+        while (true) {
+            boolean stopped;
+            List<Posting> flushed;
+            synchronized (this) {
+                stopped = mStopped;
+                flushed = mUnflushed;
+                mUnflushed = new ArrayList<>();
+            }
+            if (!flushed.isEmpty()) {
+                try {
+                    mBuffer.force();
+                    for (Posting posting : flushed) posting.mDurable.complete(posting.mTransaction.getReference());
+                    mToApply.addAll(flushed);
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Posting journal not written, " + flushed.size() + " postings failed", e);
+                    for (Posting posting : flushed) {
+                        untrack(posting);
+                        posting.mDurable.completeExceptionally(new CallException("Transaction outcome unknown: it could not be written"));
+                    }
+                }
+            }
+            if (stopped) {
+                mToApply.add(END_OF_POSTINGS);
+                return;
+            }
+            try {
+                Thread.sleep(mFlushIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies durable postings on the datastore in batches, moving the checkpoint forward after each batch.
+     */
+    private void applyLoop() {
+        List<Posting> batch = new ArrayList<>();
+        while (true) {
+            // Wait for postings.
+            batch.clear();
+            try {
+                batch.add(mToApply.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            mToApply.drainTo(batch, mBatchSize - 1);
+            boolean end = batch.remove(END_OF_POSTINGS);
+
+            // Group by account, keeping the order.
+            Map<String, List<Posting>> byAccount = new LinkedHashMap<>();
+            for (Posting posting : batch) byAccount.computeIfAbsent(posting.mTransaction.getAccountIban().trim(), iban -> new ArrayList<>()).add(posting);
+
+            // Apply each account in its lane.
+            for (Map.Entry<String, List<Posting>> accountPostings : byAccount.entrySet()) {
+                if (!applyAccount(accountPostings.getKey(), accountPostings.getValue())) return; // Interrupted.
+            }
+
+            // Checkpoint.
+            if (!batch.isEmpty()) {
+                synchronized (this) {
+                    mAppliedPosition = batch.get(batch.size() - 1).mEndPosition;
+                    mBuffer.putLong(CHECKPOINT_POSITION, mAppliedPosition);
+                }
+            }
+            if (end) return;
+        }
+    }
+
+    /**
+     * Applies the postings of one account: all of them at once, or one by one if that fails, so a posting
+     * that cannot be applied does not hold back the others. Datastore failures are retried up to the maximum
+     * number of attempts, then the posting is recorded as failed.
+     * @return False if interrupted, postings left unapplied.
+     */
+    private boolean applyAccount(String iban, List<Posting> postings) {
+        // All at once.
+        try {
+            mLanes.run(iban, () -> apply(iban, postings, false));
+            return true;
+        } catch (CallException | RuntimeException e) {
+            log.log(Level.WARNING, postings.size() + " postings for account '" + iban + "' not applied at once, applying them one by one", e);
+        }
+
+        // One by one.
+        for (Posting posting : postings) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    mLanes.run(iban, () -> apply(iban, Collections.singletonList(posting), true));
+                    break;
+                } catch (CallException | RuntimeException e) { // Datastore failure or lane overload, may succeed later.
+                    if (attempt >= mMaxAttempts) {
+                        fail(posting, "not applied after " + attempt + " attempts: " + e.getMessage());
+                        break;
+                    }
+                    log.log(Level.WARNING, "Posting '" + posting.mTransaction.getReference() + "' not applied, attempt " + attempt + " of " + mMaxAttempts + ", retrying", e);
+                    try {
+                        Thread.sleep(Math.min(RETRY_DELAY_MS << (attempt - 1), RETRY_DELAY_MAX_MS));
+                    } catch (InterruptedException ie) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies postings of one account at once. Runs in the posting lane of the account.
+     * Postings that cannot be applied are recorded as failed; failures that may not happen again are thrown.
+     * @param single Whether there is one posting only, checked to be applicable beforehand rather than failing.
+     */
+    private Void apply(String iban, List<Posting> postings, boolean single) {
+        PersistenceApi datastore = mDatastore.get();
+        List<Posting> applied = new ArrayList<>();
+        try {
+            UnitOfWork work = datastore.beginUnitOfWork();
+            try {
+                // Replayed postings may be applied already. A single posting is checked not to reuse a reference.
+                List<Transaction> transactions = new ArrayList<>();
+                long totalNetAmount = 0;
+                for (Posting posting : postings) {
+                    if ((single || posting.mReplayed) && datastore.load(Transaction.class, posting.mTransaction.getReference()) != null) {
+                        if (posting.mReplayed) applied.add(posting);
+                        else fail(posting, "reference already used");
+                        continue;
+                    }
+                    transactions.add(posting.mTransaction);
+                    totalNetAmount += posting.mNetAmount;
+                }
+
+                // Not applied: account missing or balance below 0, e.g. changed by another node since accepted. Several postings
+                // are then applied one by one, so those still covered go. A single one is failed.
+                if (!transactions.isEmpty() && !mPostingEngine.applyAll(datastore, iban, totalNetAmount, transactions)) {
+                    if (!single) throw new IllegalStateException("Postings not covered by the balance of the account, or account missing");
+                    boolean exists = 0 < datastore.countNamed(Queries.ACCOUNT_EXISTS, QueryParameters.with("iban", iban));
+                    for (Posting posting : postings) if (!applied.contains(posting)) fail(posting, exists ? "account would reach balance below 0" : "account does not exist");
+                    return null;
+                }
+            } finally {
+                work.close();
+            }
+        } catch (RuntimeException e) {
+            if (!single || !isPermanent(e)) throw e;
+            fail(postings.get(0), "not accepted by the datastore: " + e.getMessage());
+            return null;
+        }
+        for (Posting posting : postings) if (!mFailed.containsKey(posting.mTransaction.getReference())) untrack(posting);
+        return null;
+    }
+
+    /**
+     * Indicates whether a failure applying postings would happen again however many times retried:
+     * the datastore refuses the data (e.g. duplicated key, value out of range), rather than failing.
+     */
+    static boolean isPermanent(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() != cause ? cause.getCause() : null) {
+            if (!(cause instanceof SQLException)) continue;
+            String state = ((SQLException) cause).getSQLState();
+            if (state != null && (state.startsWith("22") || state.startsWith("23"))) return true; // Data exception, integrity constraint violation.
+        }
+        return false;
+    }
+
+    /**
+     * Records a posting as failed: not applied, never to be. Runs in the posting lane of the account.
+     */
+    private void fail(Posting posting, String reason) {
+        String reference = posting.mTransaction.getReference();
+        log.severe("Journaled posting '" + reference + "' for account '" + posting.mTransaction.getAccountIban() + "' failed: " + reason);
+        String line = reference + "\t" + reason.replace('\n', ' ').replace('\t', ' ') + "\n";
+        synchronized (mFailedFile) {
+            try (FileOutputStream out = new FileOutputStream(mFailedFile, true)) {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Failed posting '" + reference + "' not recorded on disk", e);
+            }
+        }
+        mFailed.put(reference, reason);
+        untrack(posting);
+    }
+
+    /**
+     * Registers a posting as pending to be applied.
+     */
+    private void track(Posting posting) {
+        mPending.compute(posting.mTransaction.getAccountIban().trim(), (iban, pending) -> {
+            if (pending == null) pending = new AccountPending();
+            pending.mNet += posting.mNetAmount;
+            pending.mTransactions.add(posting.mTransaction);
+            return pending;
+        });
+        mPendingTransactions.put(posting.mTransaction.getReference(), posting.mTransaction);
+    }
+
+    /**
+     * Registers a posting as not pending anymore.
+     */
+    private void untrack(Posting posting) {
+        mPending.computeIfPresent(posting.mTransaction.getAccountIban().trim(), (iban, pending) -> {
+            pending.mNet -= posting.mNetAmount;
+            pending.mTransactions.remove(posting.mTransaction);
+            return pending.mTransactions.isEmpty() ? null : pending;
+        });
+        mPendingTransactions.remove(posting.mTransaction.getReference());
+    }
+
+    private static byte[] encode(Posting posting) {
+        try {
+            Transaction transaction = posting.mTransaction;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, transaction.getReference());
+            writeString(out, transaction.getAccountIban());
+            out.writeLong(transaction.getDateEpoch());
+            out.writeLong(transaction.getAmount());
+            out.writeBoolean(transaction.getFee() != null);
+            if (transaction.getFee() != null) out.writeLong(transaction.getFee());
+            writeString(out, transaction.getDescription());
+            out.writeLong(posting.mNetAmount);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not expected in memory.
+        }
+    }
+
+    private static Posting decode(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+            Transaction transaction = new Transaction();
+            transaction.setReference(readString(in));
+            transaction.setAccountIban(readString(in));
+            transaction.setDateEpoch(in.readLong());
+            transaction.setAmount(in.readLong());
+            if (in.readBoolean()) transaction.setFee(in.readLong());
+            transaction.setDescription(readString(in));
+            return new Posting(transaction, in.readLong());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Checksum already verified.
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A posting in the journal.
+     */
+    private static class Posting {
+        Posting(Transaction transaction, long netAmount) {
+            mTransaction = transaction;
+            mNetAmount = netAmount;
+        }
+        final Transaction mTransaction;
+        final long mNetAmount;
+        final CompletableFuture<String> mDurable = new CompletableFuture<>();
+        int mEndPosition;
+        boolean mReplayed;
+    }
+
+    /**
+     * Postings of an account not applied yet. Only accessed through the compute methods of the map holding it, so atomically.
+     */
+    private static class AccountPending {
+        long mNet;
+        final List<Transaction> mTransactions = new ArrayList<>();
+    }
+
+    private static final int MAGIC = 0x4D424A31; // "MBJ1"
+    private static final int CHECKPOINT_POSITION = 8;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_CAPACITY = 64 * 1024;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long RETRY_DELAY_MAX_MS = 30000;
+
+    /** Marker to stop the applier once everything is applied. */
+    private static final Posting END_OF_POSTINGS = new Posting(null, 0);
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final long mFlushIntervalMs;
+    private final int mBatchSize;
+    private final int mMaxAttempts;
+    private final PostingLanes mLanes;
+    private final PostingEngine mPostingEngine;
+    private final Supplier<PersistenceApi> mDatastore;
+
+    /** Where the next record is written. */
+    private int mWritePosition;
+
+    /** Up to where records are applied on the datastore. */
+    private int mAppliedPosition;
+
+    /** Appended postings waiting to be forced to disk. */
+    private List<Posting> mUnflushed = new ArrayList<>();
+
+    /** Durable postings waiting to be applied. */
+    private final BlockingQueue<Posting> mToApply = new LinkedBlockingQueue<>();
+
+    /** Postings not applied yet, by account. */
+    private final Map<String, AccountPending> mPending = new ConcurrentHashMap<>();
+
+    /** Transactions not applied yet, by reference. */
+    private final Map<String, Transaction> mPendingTransactions = new ConcurrentHashMap<>();
+
+    /** Postings that could not be applied, see {@link #fail(Posting, String)}. */
+    private final File mFailedFile;
+
+    /** Reasons why postings could not be applied, by reference. */
+    private final Map<String, String> mFailed = new ConcurrentHashMap<>();
+
+    private boolean mStopped;
+    private Thread mFlusher;
+    private Thread mApplier;
+
+    private static Logger log = Logger.getLogger(PostingJournal.class.getName());
+}
@@ -0,0 +1,200 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.mybank.corebusiness.api.rest.CallException;
+
+/**
+ * Fixed set of single-threaded lanes postings are routed through.
+ * The lane is chosen by a hash of the account IBAN, so postings to the same account
+ * are serialized without any global lock while postings to different accounts
+ * run in parallel.
+ */
+public class PostingLanes {
+
+    /**
+     * Starts the lanes.
+     * @param laneCount Number of lanes (threads).
+     * @param queueCapacity Maximum number of postings waiting in each lane.
+     */
+    public PostingLanes(int laneCount, int queueCapacity) {
+        List<Lane> lanes = new ArrayList<>();
+        for (int i = 0; i < laneCount; i++) lanes.add(new Lane(i, queueCapacity));
+        mLanes = Collections.unmodifiableList(lanes);
+        log.info("Posting lanes started: " + laneCount + " lanes, " + queueCapacity + " queued postings per lane");
+    }
+
+    /**
+     * Runs a task in the lane of an account and waits for its result.
+     * Tasks already running in the lane of the account run straight away.
+     * @param iban The account the task works on.
+     * @param task The work to do.
+     * @return The result of the task.
+     * @throws CallException The exception raised by the task or on lane overload.
+     */
+    public <T> T run(String iban, Callable<T> task) throws CallException {
+        Lane lane = getLane(iban);
+        if (mCurrentLane.get() == lane) return lane.call(task);
+        return await(submit(iban, task));
+    }
+
+    /**
+     * Queues a task in the lane of an account, without waiting for it.
+     * @param iban The account the task works on.
+     * @param task The work to do.
+     * @return The pending result of the task, to be collected by {@link #await(Future)}.
+     * @throws CallException On lane overload.
+     */
+    public <T> Future<T> submit(String iban, Callable<T> task) throws CallException {
+        try {
+            return getLane(iban).submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new CallException("Transaction not accepted: too many postings in progress for this account, try again later");
+        }
+    }
+
+    /**
+     * Waits for the result of a task queued by {@link #submit(String, Callable)}.
+     * @return The result of the task.
+     * @throws CallException The exception raised by the task.
+     */
+    public <T> T await(Future<T> result) throws CallException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CallException("Transaction interrupted, its outcome is unknown");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CallException) throw (CallException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Provides the lane postings on a given account are routed to.
+     */
+    public Lane getLane(String iban) {
+        return mLanes.get(Math.floorMod(iban.trim().hashCode(), mLanes.size()));
+    }
+
+    /**
+     * Provides all the lanes, for monitoring.
+     */
+    public List<Lane> getLanes() {
+        return mLanes;
+    }
+
+    /**
+     * Stops the lanes once the already queued postings are done.
+     */
+    public void shutdown() {
+        for (Lane lane : mLanes) lane.mExecutor.shutdown();
+        for (Lane lane : mLanes) {
+            try {
+                lane.mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            log.info("Posting lane " + lane.getIndex() + " stopped after " + lane.getProcessedCount() + " postings, " +
+                     "average latency " + lane.getAverageLatencyMicros() + "us");
+        }
+    }
+
+    /**
+     * Single-threaded executor of postings.
+     */
+    public class Lane {
+
+        private Lane(int index, int queueCapacity) {
+            mIndex = index;
+            mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                               r -> {
+                                                   Thread thread = new Thread(r, "posting-lane-" + index);
+                                                   thread.setDaemon(true);
+                                                   return thread;
+                                               });
+        }
+
+        /** Order number of this lane. */
+        public int getIndex() { return mIndex; }
+
+        /** Number of postings waiting to be processed. */
+        public int getQueueDepth() { return mExecutor.getQueue().size(); }
+
+        /** Number of postings processed so far. */
+        public long getProcessedCount() { return mProcessed.get(); }
+
+        /** Average time in microseconds from submission to completion (queue wait included). */
+        public long getAverageLatencyMicros() {
+            long processed = mProcessed.get();
+            return processed == 0 ? 0 : mTotalLatencyNanos.get() / processed / 1000;
+        }
+
+        /** Average time in microseconds taken by the processing itself. */
+        public long getAverageProcessingMicros() {
+            long processed = mProcessed.get();
+            return processed == 0 ? 0 : mTotalProcessingNanos.get() / processed / 1000;
+        }
+
+        /** Longest time in microseconds from submission to completion. */
+        public long getMaxLatencyMicros() { return mMaxLatencyNanos.get() / 1000; }
+
+        private <T> Future<T> submit(Callable<T> task) {
+            long submitted = System.nanoTime();
+            return mExecutor.submit(() -> {
+                mCurrentLane.set(this);
+                try {
+                    return call(task);
+                } finally {
+                    mCurrentLane.remove();
+                    long latency = System.nanoTime() - submitted;
+                    mTotalLatencyNanos.addAndGet(latency);
+                    mMaxLatencyNanos.accumulateAndGet(latency, Math::max);
+                    mProcessed.incrementAndGet();
+                }
+            });
+        }
+
+        private <T> T call(Callable<T> task) throws CallException {
+            long started = System.nanoTime();
+            try {
+                return task.call();
+            } catch (CallException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            } finally {
+                mTotalProcessingNanos.addAndGet(System.nanoTime() - started);
+            }
+        }
+
+        private final int mIndex;
+        private final ThreadPoolExecutor mExecutor;
+        private final AtomicLong mProcessed = new AtomicLong();
+        private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+        private final AtomicLong mTotalProcessingNanos = new AtomicLong();
+        private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+    }
+
+    /** The lanes, indexed by the hash of the account IBAN. */
+    private final List<Lane> mLanes;
+
+    /** The lane the current thread belongs to, if any. */
+    private final ThreadLocal<Lane> mCurrentLane = new ThreadLocal<>();
+
+    private static Logger log = Logger.getLogger(PostingLanes.class.getName());
+}
@@ -0,0 +1,83 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of unique transaction references with no database lookup.
+ * Each reference is built from a time-stamp, the node identifier and a sequence number:
+ * 42 bits of milliseconds since 2020-01-01 UTC, 10 bits of node and 12 bits of sequence,
+ * written as 16 upper case hexadecimal digits. References of a node sort by generation time.
+ * References provided by clients must not have that form, see {@link #isGenerated(String)}, so generated ones
+ * never collide with them.
+ * Thread-safe and lock-free.
+ */
+public class ReferenceGenerator {
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+
+    /** Highest valid node identifier. */
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    /**
+     * @param nodeId Identifier of this node, unique among all nodes generating references (0 to {@link #MAX_NODE_ID}).
+     */
+    public ReferenceGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) throw new IllegalArgumentException("Node identifier must be from 0 to " + MAX_NODE_ID + ", received " + nodeId);
+        mNodeId = nodeId;
+    }
+
+    /**
+     * Provides a new unique reference.
+     */
+    public String next() {
+        // Time-stamp and sequence, packed together so that a sequence overflow borrows the next millisecond.
+        long current;
+        long next;
+        do {
+            current = mLastTimeAndSequence.get();
+            long now = System.currentTimeMillis() - EPOCH;
+            next = now > (current >>> SEQUENCE_BITS) ? now << SEQUENCE_BITS : current + 1; // Clock going backwards keeps the last time-stamp.
+        } while (!mLastTimeAndSequence.compareAndSet(current, next));
+
+        long time = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        long id = (time << (NODE_BITS + SEQUENCE_BITS)) | ((long) mNodeId << SEQUENCE_BITS) | sequence;
+        return toHex(id);
+    }
+
+    /**
+     * Whether a reference has the form of generated ones: 16 upper case hexadecimal digits.
+     */
+    public static boolean isGenerated(String reference) {
+        if (reference.length() != 16) return false;
+        for (int i = 0; i < 16; i++) {
+            char c = reference.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'A' || c > 'F')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a value as a fixed-width upper case hexadecimal string, so that string order is numeric order.
+     */
+    private static String toHex(long value) {
+        char[] digits = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            digits[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        return new String(digits);
+    }
+
+    /** Origin of time-stamps: 2020-01-01T00:00:00Z. */
+    private static final long EPOCH = 1577836800000L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** Identifier of this node. */
+    private final int mNodeId;
+
+    /** Last generated time-stamp (high bits) and sequence (low bits). */
+    private final AtomicLong mLastTimeAndSequence = new AtomicLong();
+}
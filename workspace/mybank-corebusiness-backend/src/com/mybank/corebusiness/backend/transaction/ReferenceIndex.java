@@ -0,0 +1,156 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+
+/**
+ * Memory-bounded probabilistic index of the transaction references already stored (Bloom filter).
+ * A negative answer is certain: the reference is not stored. A positive answer may be false,
+ * so it must be confirmed against the datastore.
+ * Thread-safe.
+ */
+public class ReferenceIndex {
+
+    /**
+     * Creates an empty index.
+     * @param expectedReferences Number of references the index is sized for. Beyond it the false positive rate grows.
+     * @param falsePositiveRate Wished rate of false positive answers once the expected number of references is reached.
+     */
+    public ReferenceIndex(long expectedReferences, double falsePositiveRate) {
+        long bitCount = (long) Math.ceil(-expectedReferences * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bitCount + 63) / 64));
+        mBits = new AtomicLongArray(wordCount);
+        mBitCount = (long) wordCount * 64;
+        mHashCount = Math.max(1, (int) Math.round((double) mBitCount / expectedReferences * Math.log(2)));
+    }
+
+    /**
+     * Fills the index in with all the references currently in a datastore.
+     * @return The number of references loaded.
+     */
+    public long load(PersistenceApi datastore) {
+        long loaded = 0;
+        String lastReference = "";
+        while (true) {
+            List<Object> page = datastore.loadNamed(Queries.TRANSACTION_REFERENCES_AFTER, QueryParameters.with("reference", lastReference), 0, LOAD_PAGE_SIZE - 1);
+            if (page == null || page.isEmpty()) break;
+            for (Object reference : page) add((String) reference);
+            loaded += page.size();
+            lastReference = (String) page.get(page.size() - 1);
+            if (page.size() < LOAD_PAGE_SIZE) break;
+        }
+        log.info("Reference index loaded with " + loaded + " references, " + getMemoryBytes() / 1024 + "KB, " + mHashCount + " hashes");
+        return loaded;
+    }
+
+    /**
+     * Registers a stored reference.
+     */
+    public void add(String reference) {
+        long hash1 = hash(reference, SEED_1);
+        long hash2 = hash(reference, SEED_2) | 1; // Odd, so every probe differs.
+        for (int i = 0; i < mHashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, mBitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long current;
+            do {
+                current = mBits.get(word);
+                if ((current & mask) != 0) break;
+            } while (!mBits.compareAndSet(word, current, current | mask));
+        }
+        mCount.incrementAndGet();
+    }
+
+    /**
+     * Indicates whether a reference may be stored.
+     * @return False if the reference is certainly not stored. True if it is probably stored.
+     */
+    public boolean mightContain(String reference) {
+        mQueries.incrementAndGet();
+        long hash1 = hash(reference, SEED_1);
+        long hash2 = hash(reference, SEED_2) | 1; // Odd, so every probe differs.
+        for (int i = 0; i < mHashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, mBitCount);
+            if ((mBits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) return false;
+        }
+        mPositives.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Notifies that a positive answer turned out to be false once checked against the datastore.
+     */
+    public void recordFalsePositive() {
+        mFalsePositives.incrementAndGet();
+    }
+
+    /** Number of references registered. */
+    public long getCount() { return mCount.get(); }
+
+    /** Memory taken by the index, in bytes. */
+    public long getMemoryBytes() { return mBitCount / 8; }
+
+    /** Expected rate of false positive answers with the current number of references. */
+    public double getEstimatedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) mHashCount * mCount.get() / mBitCount), mHashCount);
+    }
+
+    /** Rate of false positive answers observed so far, among all the queries. */
+    public double getObservedFalsePositiveRate() {
+        long queries = mQueries.get();
+        return queries == 0 ? 0 : (double) mFalsePositives.get() / queries;
+    }
+
+    /** Number of queries answered positively (so checked against the datastore). */
+    public long getPositiveCount() { return mPositives.get(); }
+
+    /** Number of queries answered so far. */
+    public long getQueryCount() { return mQueries.get(); }
+
+    /**
+     * 64 bits hash of a string (FNV-1a on UTF-16 units with final avalanche mixing).
+     */
+    private static long hash(String value, long seed) {
+        long hash = seed;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final long SEED_1 = 0xCBF29CE484222325L;
+    private static final long SEED_2 = 0x9E3779B97F4A7C15L;
+
+    /** Number of transactions read at once while loading. */
+    private static final int LOAD_PAGE_SIZE = 10000;
+
+    /** The bit set. */
+    private final AtomicLongArray mBits;
+
+    /** Number of bits in the bit set. */
+    private final long mBitCount;
+
+    /** Number of bits set per reference. */
+    private final int mHashCount;
+
+    // Statistics.
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mQueries = new AtomicLong();
+    private final AtomicLong mPositives = new AtomicLong();
+    private final AtomicLong mFalsePositives = new AtomicLong();
+
+    private static Logger log = Logger.getLogger(ReferenceIndex.class.getName());
+}
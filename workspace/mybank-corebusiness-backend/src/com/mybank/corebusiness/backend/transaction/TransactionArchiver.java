@@ -0,0 +1,149 @@
+package com.mybank.corebusiness.backend.transaction;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+import com.mybank.corebusiness.backend.persistence.ReplicaFeed;
+
+/**
+ * Moves transactions past a given age from the live store to the archive store, in batches, in background.
+ * Each batch is copied into the archive store before being deleted from the live one, so a transaction is
+ * always found in one of them at least (in both for a while, or after an interrupted batch).
+ * Readers of both stores learn from {@link #isArchived(long)} whether the archive store has to be read,
+ * checking it again on every read while {@link #isStarted()}.
+ */
+public class TransactionArchiver {
+
+    /**
+     * Prepares the archiver. Nothing is moved until {@link #start()}.
+     * @param live The store transactions are moved from.
+     * @param archive The store transactions are moved to.
+     * @param ageMs Age (by transaction date) from which transactions are moved.
+     * @param intervalMs Time between runs.
+     * @param batchSize Maximum number of transactions moved at once.
+     * @param replicaFeed The feed of the read replica of the live store, told about the transactions moved. Null if no replica.
+     */
+    public TransactionArchiver(PersistenceApi live, PersistenceApi archive, long ageMs, long intervalMs, int batchSize, ReplicaFeed replicaFeed) {
+        mLive = live;
+        mArchive = archive;
+        mReplicaFeed = replicaFeed;
+        mAgeMs = ageMs;
+        mIntervalMs = intervalMs;
+        mBatchSize = batchSize;
+
+        // Latest transaction date already archived.
+        List<Object> latest = archive.loadNamed(Queries.TRANSACTIONS_LATEST_DATE, null, null, null);
+        if (latest != null && !latest.isEmpty() && latest.get(0) != null) mArchivedUntil = (Long) latest.get(0);
+        log.info("Transaction archiver ready: older than " + TimeUnit.MILLISECONDS.toDays(ageMs) + " days, every " + intervalMs + "ms, batches of " + batchSize +
+                 (mArchivedUntil != Long.MIN_VALUE ? ", archived until " + mArchivedUntil : ", nothing archived yet"));
+    }
+
+    /**
+     * Starts moving transactions periodically.
+     */
+    public void start() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transaction-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                archive(System.currentTimeMillis() - mAgeMs);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Transactions not archived, next run retries", e); // E.g. database not available.
+            }
+        }, mIntervalMs, mIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves all the transactions dated before a given time, batch by batch.
+     * @param cutoff Transactions dated before this time are moved.
+     * @return Number of transactions moved.
+     */
+    public long archive(long cutoff) {
+        long moved = 0;
+        while (mExecutor == null || !mExecutor.isShutdown()) {
+            List<Object> batch = mLive.loadNamed(Queries.TRANSACTIONS_BEFORE, QueryParameters.with("cutoff", cutoff), 0, mBatchSize - 1);
+            if (batch == null || batch.isEmpty()) break;
+            List<String> references = new ArrayList<>();
+            for (Object transaction : batch) references.add(((Transaction) transaction).getReference());
+
+            // Readers go to the archive store from now on for this range, before anything is moved.
+            long latestDate = ((Transaction) batch.get(batch.size() - 1)).getDateEpoch();
+            if (latestDate > mArchivedUntil) mArchivedUntil = latestDate;
+
+            // Copy, skipping those copied already by an interrupted batch, then delete.
+            Set<Object> copied = new HashSet<>(mArchive.loadNamed(Queries.TRANSACTION_REFERENCES_IN, QueryParameters.with("references", references), null, null));
+            List<Object> toCopy = new ArrayList<>();
+            for (Object transaction : batch) if (!copied.contains(((Transaction) transaction).getReference())) toCopy.add(transaction);
+            mArchive.saveAll(toCopy);
+            mLive.updateNamed(Queries.TRANSACTIONS_DELETE_BY_REFERENCES, QueryParameters.with("references", references));
+            if (mReplicaFeed != null) for (String reference : references) mReplicaFeed.changed(Transaction.class, reference);
+
+            moved += batch.size();
+            mArchivedCount.addAndGet(batch.size());
+            if (batch.size() < mBatchSize) break;
+        }
+        if (moved > 0) log.info(moved + " transactions archived, dated before " + cutoff);
+        return moved;
+    }
+
+    /**
+     * Indicates whether transactions from a given date onwards may be in the archive store.
+     */
+    public boolean isArchived(long since) {
+        return since <= mArchivedUntil;
+    }
+
+    /**
+     * Indicates whether transactions are being moved periodically, so any of them may leave the live store at any time.
+     */
+    public boolean isStarted() {
+        return mExecutor != null && !mExecutor.isShutdown();
+    }
+
+    /** Number of transactions moved since started. */
+    public long getArchivedCount() { return mArchivedCount.get(); }
+
+    /**
+     * Stops moving transactions once the batch in progress is done.
+     */
+    public void shutdown() {
+        if (mExecutor == null) return;
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Transaction archiver stopped after " + mArchivedCount.get() + " transactions archived");
+    }
+
+    private final PersistenceApi mLive;
+    private final PersistenceApi mArchive;
+    private final ReplicaFeed mReplicaFeed;
+    private final long mAgeMs;
+    private final long mIntervalMs;
+    private final int mBatchSize;
+    private ScheduledExecutorService mExecutor;
+
+    /** Latest date of the transactions in the archive store. */
+    private volatile long mArchivedUntil = Long.MIN_VALUE;
+
+    private final AtomicLong mArchivedCount = new AtomicLong();
+
+    private static Logger log = Logger.getLogger(TransactionArchiver.class.getName());
+}
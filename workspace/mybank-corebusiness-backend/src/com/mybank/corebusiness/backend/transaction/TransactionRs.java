@@ -1,40 +1,59 @@
 package com.mybank.corebusiness.backend.transaction;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.CookieParam;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
+import com.mybank.corebusiness.api.rest.BinaryCodec;
 import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.api.transaction.Channels;
 import com.mybank.corebusiness.api.transaction.Transaction;
 import com.mybank.corebusiness.api.transaction.TransactionApi;
 import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
 import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
 import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
 import com.mybank.corebusiness.backend.Ctx;
 import com.mybank.corebusiness.backend.common.AuthMiddleware;
 import com.mybank.corebusiness.backend.common.AuthMiddlewareApi;
+import com.mybank.corebusiness.backend.rest.AdmissionGate;
+import com.mybank.corebusiness.backend.rest.GsonUtil;
 
 /**
  * REST web service entry point for transaction management. 
+ * Entities in JSON, or in the compact binary format of {@link BinaryCodec} for the clients asking for it.
  */
 @Path(TransactionApi.SERVICE_VERSION + "/" + TransactionApi.SERVICE_PATH)
-@Consumes(MediaType.APPLICATION_JSON)
-@Produces(MediaType.APPLICATION_JSON)
+@Consumes({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
+@Produces({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
 public class TransactionRs {
 
     /**
-     * @see TransactionApi#createTransaction(Transaction)
+     * @see TransactionApi#createTransaction(Transaction, String)
      */
     @POST
     @Path(TransactionApi.RES_TRANSACTION)
-    public String createTransaction(Transaction transaction, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken) throws CallException {
+    public void createTransaction(Transaction transaction, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken,
+                                  @HeaderParam(TransactionApi.HEADER_IDEMPOTENCY_KEY) String idempotencyKey, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
@@ -44,8 +63,27 @@ public class TransactionRs {
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        return transactionService.createTransaction(transaction);
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, Ctx.get().getAdmissionGate(Ctx.GATE_TRANSACTION), () -> transactionService.createTransaction(transaction, idempotencyKey));
+    }
+
+    /**
+     * @see TransactionApi#createTransactions(ArrayList)
+     */
+    @POST
+    @Path(TransactionApi.RES_BATCH)
+    public void createTransactions(ArrayList<Transaction> transactions, @CookieParam(AuthMiddlewareApi.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
+        
+        // Context.
+        AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
+        TransactionApi transactionService = Ctx.get().getTransactionService();
+        Ctx.get().setBaseUrl(uri.getBaseUri().toString());
+
+        // Authorize request.
+        authMiddleware.checkAuthToken(jwttoken);
+        
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, Ctx.get().getAdmissionGate(Ctx.GATE_BATCH), () -> transactionService.createTransactions(transactions));
     }
 
     /**
@@ -53,7 +91,65 @@ public class TransactionRs {
      */
     @POST
     @Path(TransactionApi.RES_QUERY)
-    public ArrayList<Transaction> queryTransactions(TransactionQuery query, @CookieParam(AuthMiddleware.JWTTOKEN) String jwttoken) throws CallException {
+    public void queryTransactions(TransactionQuery query, @CookieParam(AuthMiddleware.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
+        
+        // Context.
+        AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
+        TransactionApi transactionService = Ctx.get().getTransactionService();
+        Ctx.get().setBaseUrl(uri.getBaseUri().toString());
+
+        // Authorize request.
+        authMiddleware.checkAuthToken(jwttoken);
+        
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, Ctx.get().getAdmissionGate(Ctx.GATE_QUERY), () -> transactionService.queryTransactions(query));
+    }
+
+    /**
+     * Provides the transactions as newline-delimited JSON, written while read from the database.
+     * @see TransactionApi#streamTransactions(TransactionQuery, java.util.function.Consumer)
+     */
+    @POST
+    @Path(TransactionApi.RES_EXPORT)
+    @Produces(TransactionApi.MEDIA_NDJSON)
+    public void streamTransactions(TransactionQuery query, @CookieParam(AuthMiddleware.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
+        
+        // Context.
+        AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
+        TransactionApi transactionService = Ctx.get().getTransactionService();
+        Ctx.get().setBaseUrl(uri.getBaseUri().toString());
+
+        // Authorize request.
+        authMiddleware.checkAuthToken(jwttoken);
+        
+        // Process request in background, writing each transaction as soon as it is read.
+        Ctx.get().getRequestExecutor().execute(response, Ctx.get().getAdmissionGate(Ctx.GATE_EXPORT), () -> (StreamingOutput) output -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            try {
+                transactionService.streamTransactions(query, transaction -> {
+                    try {
+                        GsonUtil.getInstance().toJson(transaction, Transaction.class, writer);
+                        writer.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (CallException e) {
+                // Checked before anything is written: still answered as an error.
+                throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.TEXT_PLAIN).entity(e.getMessage()).build());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        });
+    }
+
+    /**
+     * @see TransactionApi#summarizeTransactions(TransactionQuery)
+     */
+    @POST
+    @Path(TransactionApi.RES_SUMMARY)
+    public void summarizeTransactions(TransactionQuery query, @CookieParam(AuthMiddleware.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
@@ -63,8 +159,8 @@ public class TransactionRs {
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        return transactionService.queryTransactions(query);
+        // Process request in background.
+        Ctx.get().getRequestExecutor().execute(response, Ctx.get().getAdmissionGate(Ctx.GATE_QUERY), () -> transactionService.summarizeTransactions(query));
     }
 
     /**
@@ -72,7 +168,7 @@ public class TransactionRs {
      */
     @POST
     @Path(TransactionApi.RES_STATUS)
-    public TransactionStatusResponse getTransactionStatus(TransactionStatusRequest statusRequest, @CookieParam(AuthMiddleware.JWTTOKEN) String jwttoken) throws CallException {
+    public void getTransactionStatus(TransactionStatusRequest statusRequest, @CookieParam(AuthMiddleware.JWTTOKEN) String jwttoken, @Suspended AsyncResponse response) throws CallException {
         
         // Context.
         AuthMiddlewareApi authMiddleware = Ctx.get().getAuthMiddleware();
@@ -82,8 +178,10 @@ public class TransactionRs {
         // Authorize request.
         authMiddleware.checkAuthToken(jwttoken);
         
-        // Process request.
-        return transactionService.getTransactionStatus(statusRequest);
+        // Process request in background, through the gate of its channel. Unknown channels go with the lowest priority.
+        AdmissionGate gate = Ctx.get().getAdmissionGate(Ctx.GATE_STATUS_PREFIX + (statusRequest != null ? statusRequest.getChannel() : null));
+        if (gate == null) gate = Ctx.get().getAdmissionGate(Ctx.GATE_STATUS_PREFIX + Channels.CHANNEL_INTERNAL.name().split("_", 2)[1]);
+        Ctx.get().getRequestExecutor().execute(response, gate, () -> transactionService.getTransactionStatus(statusRequest));
     }
     
     @Context
@@ -1,22 +1,41 @@
 package com.mybank.corebusiness.backend.transaction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
-import java.util.UUID;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import com.mybank.corebusiness.api.account.AccountApi;
+import com.mybank.corebusiness.api.account.BankAccount;
 import com.mybank.corebusiness.api.rest.CallException;
 import com.mybank.corebusiness.api.transaction.Channels;
+import com.mybank.corebusiness.api.transaction.DailyAggregate;
 import com.mybank.corebusiness.api.transaction.Statuses;
 import com.mybank.corebusiness.api.transaction.Transaction;
 import com.mybank.corebusiness.api.transaction.TransactionApi;
+import com.mybank.corebusiness.api.transaction.TransactionCursor;
 import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
 import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
 import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+import com.mybank.corebusiness.api.transaction.TransactionSummary;
 import com.mybank.corebusiness.backend.Ctx;
 import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+import com.mybank.corebusiness.backend.persistence.UnitOfWork;
 
 /**
  * Business logic for transaction management.
@@ -25,46 +44,230 @@ public class TransactionService implements TransactionApi {
 
     @Override
     public String createTransaction(Transaction transaction) throws CallException {
-        // Context.
-        AccountApi accountCli = Ctx.get().getAccountClient();
-        PersistenceApi datastore = Ctx.get().getPersistenceLive();
+        // Check incoming content.
+        checkTransaction(transaction);
+        
+        // Postings to the same account are serialized through its lane. Waiting for them to be durable happens outside the lane.
+        PostingLanes lanes = Ctx.get().getPostingLanes();
+        return lanes.await(lanes.run(transaction.getAccountIban(), () -> inUnitOfWork(() -> postTransaction(transaction))));
+    }
 
+    @Override
+    public String createTransaction(Transaction transaction, String idempotencyKey) throws CallException {
+        if (idempotencyKey == null || idempotencyKey.isEmpty()) return createTransaction(transaction);
+        
         // Check incoming content.
+        if (idempotencyKey.length() > IDEMPOTENCY_KEY_MAX_LENGTH) throw new CallException("Invalid request: idempotency key longer than " + IDEMPOTENCY_KEY_MAX_LENGTH + " characters");
+        checkTransaction(transaction);
+        
+        // Run once per key, retries get the same outcome.
+        String fingerprint = transaction.getAccountIban().trim() + "|" + transaction.getAmount() + "|" + transaction.getFee() + "|" + 
+                             transaction.getReference() + "|" + transaction.getDateEpoch() + "|" + transaction.getDescription();
+        return mIdempotencyCache.execute(idempotencyKey, fingerprint, () -> createTransaction(transaction));
+    }
+
+    @Override
+    public ArrayList<TransactionResult> createTransactions(ArrayList<Transaction> transactions) throws CallException {
+        // Context.
+        PostingLanes lanes = Ctx.get().getPostingLanes();
+        
+        // Check incoming content.
+        if (transactions == null) throw new CallException("Invalid request: transactions not provided");
+        if (transactions.size() > mBatchMaxSize) throw new CallException("Invalid request: no more than " + mBatchMaxSize + " transactions can be sent together");
+        
+        // Group valid transactions by account, keeping their order.
+        TransactionResult[] results = new TransactionResult[transactions.size()];
+        Map<String, List<Integer>> indexesByAccount = new LinkedHashMap<>();
+        Set<String> references = new HashSet<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            try {
+                checkTransaction(transaction);
+                if (transaction.getReference() != null && !references.add(transaction.getReference())) throw new CallException("Invalid transaction: provided reference is repeated");
+                indexesByAccount.computeIfAbsent(transaction.getAccountIban().trim(), iban -> new ArrayList<>()).add(i);
+            } catch (CallException e) {
+                results[i] = newResult(null, e.getMessage());
+            }
+        }
+        
+        // Postings of each account go through its lane, different accounts in parallel.
+        Map<List<Integer>, Future<List<TransactionResult>>> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> accountIndexes : indexesByAccount.entrySet()) {
+            List<Transaction> accountTransactions = new ArrayList<>();
+            for (int i : accountIndexes.getValue()) accountTransactions.add(transactions.get(i));
+            try {
+                pending.put(accountIndexes.getValue(), lanes.submit(accountIndexes.getKey(), () -> inUnitOfWork(() -> postTransactions(accountIndexes.getKey(), accountTransactions))));
+            } catch (CallException e) {
+                for (int i : accountIndexes.getValue()) results[i] = newResult(null, e.getMessage());
+            }
+        }
+        
+        // Collect outcomes.
+        for (Map.Entry<List<Integer>, Future<List<TransactionResult>>> accountPending : pending.entrySet()) {
+            List<Integer> indexes = accountPending.getKey();
+            try {
+                List<TransactionResult> accountResults = lanes.await(accountPending.getValue());
+                for (int j = 0; j < indexes.size(); j++) results[indexes.get(j)] = accountResults.get(j);
+            } catch (CallException e) {
+                for (int i : indexes) results[i] = newResult(null, e.getMessage());
+            }
+        }
+        
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Checks the content of a transaction to be created, as far as it can be done without accessing any data.
+     * @throws CallException On invalid transaction.
+     */
+    private void checkTransaction(Transaction transaction) throws CallException {
+        if (transaction == null) throw new CallException("Invalid transaction: not provided");
         if (transaction.getAccountIban() == null || transaction.getAccountIban().isEmpty()) throw new CallException("Invalid transaction: account IBAN not provided");
+        if (transaction.getReference() != null && ReferenceGenerator.isGenerated(transaction.getReference())) throw new CallException("Invalid transaction: provided reference has the form of generated ones");
         if (transaction.getFee() != null && transaction.getFee() < 0) throw new CallException("Invalid transaction: fee cannot be negative");
         if (transaction.getFee() != null && Math.abs(transaction.getAmount()) < transaction.getFee()) throw new CallException("Invalid transaction: fee cannot be greater than amount");
+    }
+
+    /**
+     * Applies an already validated transaction on its account and stores it.
+     * Runs in the posting lane of the account.
+     * @return The eventual reference of the stored transaction, available once the transaction is durable.
+     */
+    private Future<String> postTransaction(Transaction transaction) throws CallException {
+        // Context.
+        PersistenceApi datastore = Ctx.get().getPersistenceLive();
+        AccountApi accountCli = Ctx.get().getAccountClient(datastore);
+        PostingJournal journal = Ctx.get().getPostingJournal();
+
+        // Check account.
         if (!accountCli.checkAccount(transaction.getAccountIban())) throw new CallException("Invalid transaction: account IBAN does not exist");
         
         // Check provided reference is not used yet.
-        if (transaction.getReference() != null && 0 < datastore.count(Transaction.class, "reference = '" + transaction.getReference() + "'")) {
+        if (transaction.getReference() != null && isReferenceUsed(datastore, transaction.getReference())) {
             throw new CallException("Invalid transaction: provided reference is not available");
         }
         
         // Calculate net amount.
         long netAmmount = subtractFeeToAmount(transaction.getAmount(), transaction.getFee() != null ? transaction.getFee() : 0L);
-        long amountBefore = accountCli.getBalance(transaction.getAccountIban());
-        
-        // Check the final balance is acceptable.
-        long amountAfter = amountBefore + netAmmount; 
-        if (amountAfter < 0) throw new CallException("Transaction not accepted: account would reach balance below 0");
-        
-        // Apply transaction.
-        accountCli.setBalance(transaction.getAccountIban(), amountAfter);
-        String newReference = transaction.getReference() != null ? transaction.getReference() : generateNewReference(datastore);
+        Future<String> durable = CompletableFuture.completedFuture(newReference(transaction));
         Long applicableDate = transaction.getDateEpoch() != null ? transaction.getDateEpoch() : System.currentTimeMillis(); // Set server time if not received.
-        transaction.setReference(newReference);
         transaction.setDateEpoch(applicableDate);
-        datastore.save(Transaction.class, transaction);
+        
+        // Apply transaction.
+        if (Ctx.get().isAccountRemote()) {
+            // Split deployment: the balance is owned by the remote account service.
+            long amountBefore = accountCli.getBalance(transaction.getAccountIban());
+            
+            // Check the final balance is acceptable.
+            long amountAfter = amountBefore + netAmmount; 
+            if (amountAfter < 0) throw new CallException("Transaction not accepted: account would reach balance below 0");
+            
+            accountCli.setBalance(transaction.getAccountIban(), amountAfter);
+            try {
+                Ctx.get().getPostingEngine().store(datastore, transaction.getAccountIban(), Collections.singletonList(transaction));
+            } catch (CallException e) {
+                accountCli.setBalance(transaction.getAccountIban(), amountBefore); // Not stored, e.g. reference taken meanwhile by another node.
+                throw e;
+            }
+        } else if (journal != null) {
+            // Journaled: accepted against the balance plus the postings not applied yet, applied on the datastore later on.
+            // The balance is read from the datastore, not from the cache: another node may have changed it.
+            Long balance = Ctx.get().getAccountCache().load(datastore, transaction.getAccountIban().trim());
+            if (balance == null) throw new CallException("Invalid transaction: account IBAN does not exist");
+            long amountAfter = balance + journal.getPendingNetAmount(transaction.getAccountIban()) + netAmmount;
+            if (amountAfter < 0) throw new CallException("Transaction not accepted: account would reach balance below 0");
+            durable = journal.append(transaction, netAmmount);
+        } else {
+            // Co-located account service: balance update and transaction insertion in one database transaction.
+            Ctx.get().getPostingEngine().post(datastore, transaction, netAmmount);
+        }
+        if (Ctx.get().getReferenceIndex() != null) Ctx.get().getReferenceIndex().add(transaction.getReference());
         
         log.info("Transaction created '" + transaction.getReference() + "' for account '" + transaction.getAccountIban() + "'");
-        return newReference;
+        return durable;
     }
 
-    @Override
-    public ArrayList<Transaction> queryTransactions(TransactionQuery query) throws CallException {
+    /**
+     * Assigns a new reference to a transaction, unless provided.
+     * Provided references never have the form of generated ones, so no lookup is needed.
+     * @return The reference of the transaction.
+     */
+    private String newReference(Transaction transaction) {
+        if (transaction.getReference() == null) transaction.setReference(Ctx.get().getReferenceGenerator().next());
+        return transaction.getReference();
+    }
+
+    /**
+     * Applies already validated transactions on one account and stores them.
+     * They are accepted or rejected one by one, in order, but stored all at once.
+     * Runs in the posting lane of the account.
+     * @param iban The account all the transactions apply on.
+     * @return The outcome of each transaction, in the same order.
+     */
+    private List<TransactionResult> postTransactions(String iban, List<Transaction> transactions) throws CallException {
         // Context.
         PersistenceApi datastore = Ctx.get().getPersistenceLive();
+        AccountApi accountCli = Ctx.get().getAccountClient(datastore);
+        List<TransactionResult> results = new ArrayList<>();
+        
+        // Split deployment: the balance is owned by the remote account service, one by one.
+        if (Ctx.get().isAccountRemote()) {
+            for (Transaction transaction : transactions) {
+                try {
+                    results.add(newResult(Ctx.get().getPostingLanes().await(postTransaction(transaction)), null));
+                } catch (CallException e) {
+                    results.add(newResult(null, e.getMessage()));
+                }
+            }
+            return results;
+        }
+        
+        // Check account.
+        if (!accountCli.checkAccount(iban)) throw new CallException("Invalid transaction: account IBAN does not exist");
+        
+        // Accept transactions from the current balance, retrying if the balance is changed meanwhile from outside the lane.
+        // Journaled postings not applied yet count as well.
+        PostingJournal journal = Ctx.get().getPostingJournal();
+        for (int attempt = 1; ; attempt++) {
+            long balanceBefore = accountCli.getBalance(iban);
+            long pendingNetAmount = journal != null ? journal.getPendingNetAmount(iban) : 0;
+            long totalNetAmount = 0;
+            List<Transaction> accepted = new ArrayList<>();
+            results.clear();
+            for (Transaction transaction : transactions) {
+                // Check provided reference is not used yet.
+                if (transaction.getReference() != null && isReferenceUsed(datastore, transaction.getReference())) {
+                    results.add(newResult(null, "Invalid transaction: provided reference is not available"));
+                    continue;
+                }
+                
+                // Check the final balance is acceptable.
+                long netAmmount = subtractFeeToAmount(transaction.getAmount(), transaction.getFee() != null ? transaction.getFee() : 0L);
+                if (balanceBefore + pendingNetAmount + totalNetAmount + netAmmount < 0) {
+                    results.add(newResult(null, "Transaction not accepted: account would reach balance below 0"));
+                    continue;
+                }
+                
+                // Accept.
+                newReference(transaction);
+                if (transaction.getDateEpoch() == null) transaction.setDateEpoch(System.currentTimeMillis()); // Set server time if not received.
+                totalNetAmount += netAmmount;
+                accepted.add(transaction);
+                results.add(newResult(transaction.getReference(), null));
+            }
+            
+            // Apply transactions.
+            if (accepted.isEmpty() || Ctx.get().getPostingEngine().postAll(datastore, iban, balanceBefore, totalNetAmount, accepted)) {
+                if (Ctx.get().getReferenceIndex() != null) for (Transaction transaction : accepted) Ctx.get().getReferenceIndex().add(transaction.getReference());
+                log.info(accepted.size() + " transactions created for account '" + iban + "', " + (transactions.size() - accepted.size()) + " rejected");
+                return results;
+            }
+            if (attempt == BATCH_ATTEMPTS) throw new CallException("Transactions not accepted: account balance changed while processing, try again later");
+        }
+    }
 
+    @Override
+    public ArrayList<Transaction> queryTransactions(TransactionQuery query) throws CallException {
         // Check incoming content.
         if (query.getAccountIban() == null || query.getAccountIban().isEmpty()) throw new CallException("Invalid request: account IBAN not provided");
         if (query.getSince() > query.getUntil()) throw new CallException("Invalid request: initial time range is greater than final time range");
@@ -72,26 +275,249 @@ public class TransactionService implements TransactionApi {
         if (query.getPageSize() <= 0) throw new CallException("Invalid request: page size must be greater than 0");
         // Note: account IBAN not checked for existence against account service, no transactions will be found, ok.
         
+        TransactionCursor cursor = null;
+        if (query.getCursor() != null && !query.getCursor().isEmpty()) {
+            try {
+                cursor = TransactionCursor.parse(query.getCursor());
+            } catch (IllegalArgumentException e) {
+                throw new CallException("Invalid request: malformed cursor");
+            }
+        }
+        
         // Load from database the available transactions.
-        int first = query.getPageNumber() * query.getPageSize();
-        int last = first + query.getPageSize() - 1;
-        String orderBy = query.isSortByAmount() ? "amount" : "dateEpoch";
-        String orderDirection = query.isSortDescending() ? "DESC" : "ASC";
-        String where = "accountIban = '" + query.getAccountIban().trim() + "' " + 
-                       (query.getSince() > 0 ? "AND dateEpoch >= " + query.getSince() + " " : "") +
-                       (query.getUntil() > 0 ? "AND dateEpoch <= " + query.getUntil() : "");
-        ArrayList<Transaction> transactionResult = new ArrayList<>();
-        for (Object transactionObj : datastore.loadSome(Transaction.class, first, last, orderBy + " " + orderDirection, where)) {
-            transactionResult.add((Transaction) transactionObj);
+        // With a cursor the page starts right after it (keyset), otherwise at the offset of the page number.
+        Transaction after = null;
+        if (cursor != null) {
+            after = new Transaction();
+            after.setDateEpoch(cursor.getDateEpoch());
+            after.setAmount(cursor.getAmount());
+            after.setReference(cursor.getReference());
+        }
+        int first = cursor != null ? 0 : query.getPageNumber() * query.getPageSize();
+        return new ArrayList<>(loadTransactions(query, after, first, query.getPageSize()));
+    }
+
+    /**
+     * Loads a page of the transactions meeting a query, in the requested order.
+     * The archive store is read as well when the time range reaches archived transactions, both stores merged.
+     * Journaled postings not applied yet are merged as well, so they are found as soon as accepted.
+     * @param after The transaction the page starts right after (keyset), or null to start from the first one.
+     * @param first Position of the first transaction of the page, from the start.
+     * @param count Maximum number of transactions in the page.
+     * @throws CallException When merging, if the page is too far from the start: it has to be reached with a cursor then.
+     */
+    private List<Transaction> loadTransactions(TransactionQuery query, Transaction after, int first, int count) throws CallException {
+        // Context.
+        TransactionArchiver archiver = Ctx.get().getTransactionArchiver();
+        PersistenceApi datastore = Ctx.get().getPersistenceRead(BankAccount.class, query.getAccountIban().trim());
+        
+        // Query for the requested order, from the start or after a position.
+        boolean byAmount = query.isSortByAmount();
+        String queryName;
+        if (after != null) {
+            queryName = byAmount ? (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_ASC)
+                                 : (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_ASC);
+        } else {
+            queryName = byAmount ? (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_AMOUNT_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_AMOUNT_ASC)
+                                 : (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_DATE_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_DATE_ASC);
+        }
+        long since = query.getSince() > 0 ? query.getSince() : Long.MIN_VALUE;
+        QueryParameters parameters = QueryParameters.with("iban", query.getAccountIban().trim())
+                                                    .and("since", since)
+                                                    .and("until", query.getUntil() > 0 ? query.getUntil() : Long.MAX_VALUE);
+        if (after != null) parameters.and("key", byAmount ? after.getAmount() : after.getDateEpoch()).and("reference", after.getReference());
+        Comparator<Transaction> ascending = Comparator.comparingLong((Transaction t) -> byAmount ? t.getAmount() : t.getDateEpoch())
+                                                      .thenComparing(Transaction::getReference);
+        Comparator<Transaction> order = query.isSortDescending() ? ascending.reversed() : ascending;
+        
+        // Journaled postings not applied yet, taken before reading the stores: one applied meanwhile is read twice, never missed.
+        // Each of them may push one stored transaction into the page, so the stores are read from as many positions before.
+        List<Transaction> pending = getPendingTransactions(query, after, order);
+        int start = first - Math.min(first, pending.size());
+        
+        // Live store (or its replica) first: transactions are archived before being deleted from it, so if a transaction
+        // is not found here anymore, the archive store is known to be read afterwards.
+        // When merging, each store provides everything up to the end of the page, so pages far from the start are refused.
+        boolean archived = archiver.isArchived(since);
+        if (archived) checkMergeDepth(first, count);
+        List<Object> live = datastore.loadNamed(queryName, parameters, archived ? 0 : start, first + count - 1);
+        if (!archived && archiver.isArchived(since)) {
+            archived = true;
+            checkMergeDepth(first, count);
+            live = datastore.loadNamed(queryName, parameters, 0, first + count - 1);
+        }
+        List<Transaction> transactions = new ArrayList<>();
+        for (Object transactionObj : live) transactions.add((Transaction) transactionObj);
+        
+        // Merge with the archive store, in the same order. Transactions being archived may be in both.
+        if (archived) {
+            Set<String> references = new HashSet<>();
+            for (Transaction transaction : transactions) references.add(transaction.getReference());
+            for (Object transactionObj : Ctx.get().getPersistenceArchive().loadNamed(queryName, parameters, 0, first + count - 1)) {
+                if (references.add(((Transaction) transactionObj).getReference())) transactions.add((Transaction) transactionObj);
+            }
+            transactions.sort(order);
+            transactions = transactions.subList(Math.min(start, transactions.size()), Math.min(first + count, transactions.size()));
+        }
+        return pending.isEmpty() ? transactions : mergePage(transactions, start, pending, order, first, count);
+    }
+
+    /**
+     * Refuses a page by page number whose merge would hold too many transactions in memory.
+     */
+    private void checkMergeDepth(int first, int count) throws CallException {
+        if (first > 0 && (long) first + count > mMergeMaxSize) {
+            throw new CallException("Invalid request: pages reaching archived transactions beyond the first " + mMergeMaxSize + " are only available by cursor");
+        }
+    }
+
+    /**
+     * Merges transactions not stored yet into stored ones, and provides a page of the result.
+     * @param stored Stored transactions, in order, from a given position onwards up to the end of the page at least.
+     * @param start Position of the first stored transaction, from the start. No more positions before the page than added transactions.
+     * @param added Transactions not stored yet, all of them, in order. Those also stored are skipped.
+     * @param first Position of the first transaction of the page, from the start.
+     * @param count Maximum number of transactions in the page.
+     */
+    static List<Transaction> mergePage(List<Transaction> stored, int start, List<Transaction> added, Comparator<Transaction> order, int first, int count) {
+        Set<String> references = new HashSet<>();
+        for (Transaction transaction : stored) references.add(transaction.getReference());
+        List<Transaction> merged = new ArrayList<>(stored);
+        int position = start; // Of the first transaction merged, from the start.
+        for (Transaction transaction : added) {
+            if (references.contains(transaction.getReference())) continue;
+            if (start > 0 && (stored.isEmpty() || order.compare(transaction, stored.get(0)) < 0)) position++; // Ahead of those read.
+            else merged.add(transaction);
+        }
+        merged.sort(order);
+        return merged.subList(Math.min(first - position, merged.size()), Math.min(first - position + count, merged.size()));
+    }
+
+    /**
+     * Provides the journaled postings of the account of a query not applied yet that meet the query, in its order.
+     * @param after The transaction they must come after, or null.
+     */
+    private List<Transaction> getPendingTransactions(TransactionQuery query, Transaction after, Comparator<Transaction> order) {
+        PostingJournal journal = Ctx.get().getPostingJournal();
+        if (journal == null) return Collections.emptyList();
+        long since = query.getSince() > 0 ? query.getSince() : Long.MIN_VALUE;
+        long until = query.getUntil() > 0 ? query.getUntil() : Long.MAX_VALUE;
+        List<Transaction> pending = new ArrayList<>();
+        for (Transaction transaction : journal.getPendingTransactions(query.getAccountIban())) {
+            if (transaction.getDateEpoch() < since || transaction.getDateEpoch() > until) continue;
+            if (after != null && order.compare(transaction, after) <= 0) continue;
+            pending.add(transaction);
         }
+        pending.sort(order);
+        return pending;
+    }
+
+    @Override
+    public long streamTransactions(TransactionQuery query, Consumer<Transaction> consumer) throws CallException {
+        // Check incoming content.
+        if (query == null || query.getAccountIban() == null || query.getAccountIban().isEmpty()) throw new CallException("Invalid request: account IBAN not provided");
+        if (query.getSince() > query.getUntil()) throw new CallException("Invalid request: initial time range is greater than final time range");
+
+        // Context.
+        PersistenceApi datastore = Ctx.get().getPersistenceRead(BankAccount.class, query.getAccountIban().trim());
+        PostingJournal journal = Ctx.get().getPostingJournal();
         
-        return transactionResult;
+        // Reaching archived transactions, or journaled postings not applied yet: page by page from everything merged,
+        // each page after the last transaction of the previous one. Also while archiving, as the archived range may
+        // grow in the middle of the stream: each page checks again which stores to read.
+        TransactionArchiver archiver = Ctx.get().getTransactionArchiver();
+        if (archiver.isStarted() || archiver.isArchived(query.getSince() > 0 ? query.getSince() : Long.MIN_VALUE) ||
+            (journal != null && journal.hasPending(query.getAccountIban()))) {
+            long count = 0;
+            Transaction after = null;
+            while (true) {
+                List<Transaction> page = loadTransactions(query, after, 0, mStreamChunkSize);
+                for (Transaction transaction : page) consumer.accept(transaction);
+                count += page.size();
+                if (page.size() < mStreamChunkSize) return count;
+                after = page.get(page.size() - 1);
+            }
+        }
+        
+        // Read from database chunk by chunk, each one continuing after the last transaction of the previous one.
+        boolean byAmount = query.isSortByAmount();
+        String queryName = byAmount ? (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_AMOUNT_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_AMOUNT_ASC)
+                                    : (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_DATE_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_DATE_ASC);
+        String continuedQueryName = byAmount ? (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_AMOUNT_ASC)
+                                             : (query.isSortDescending() ? Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_DESC : Queries.TRANSACTIONS_BY_ACCOUNT_AFTER_DATE_ASC);
+        QueryParameters parameters = QueryParameters.with("iban", query.getAccountIban().trim())
+                                                    .and("since", query.getSince() > 0 ? query.getSince() : Long.MIN_VALUE)
+                                                    .and("until", query.getUntil() > 0 ? query.getUntil() : Long.MAX_VALUE);
+        return datastore.forEachNamed(queryName, continuedQueryName, parameters,
+                                      (last, next) -> next.and("key", byAmount ? ((Transaction) last).getAmount() : ((Transaction) last).getDateEpoch())
+                                                          .and("reference", ((Transaction) last).getReference()),
+                                      mStreamChunkSize, transactionObj -> consumer.accept((Transaction) transactionObj));
+    }
+
+    @Override
+    public TransactionSummary summarizeTransactions(TransactionQuery query) throws CallException {
+        // Check incoming content.
+        if (query == null || query.getAccountIban() == null || query.getAccountIban().isEmpty()) throw new CallException("Invalid request: account IBAN not provided");
+        if (query.getSince() > query.getUntil()) throw new CallException("Invalid request: initial time range is greater than final time range");
+
+        // Whole days within the range, from their daily aggregates (kept in the live store only, never archived).
+        // The partial days at both ends are added up from their transactions, as is the whole range when it holds no
+        // whole day or ends within the first day of 1970 (time-stamps up to 0 cannot be requested).
+        String iban = query.getAccountIban().trim();
+        long since = query.getSince() > 0 ? query.getSince() : Long.MIN_VALUE;
+        long until = query.getUntil() > 0 ? query.getUntil() : Long.MAX_VALUE;
+        long firstDay = since == Long.MIN_VALUE ? since / DailyAggregate.DAY_MS : Math.floorDiv(since + DailyAggregate.DAY_MS - 1, DailyAggregate.DAY_MS);
+        long lastDay = until == Long.MAX_VALUE ? until / DailyAggregate.DAY_MS : Math.floorDiv(until + 1, DailyAggregate.DAY_MS) - 1;
+        DailyAggregate totals = new DailyAggregate();
+        if (firstDay > lastDay || lastDay < 0) {
+            sumTransactions(iban, since, until, totals);
+        } else {
+            List<Object> rows = Ctx.get().getPersistenceLive().loadNamed(Queries.DAILY_AGGREGATE_TOTALS,
+                                                                         QueryParameters.with("iban", iban).and("since", firstDay).and("until", lastDay), null, null);
+            Object[] row = rows != null && !rows.isEmpty() ? (Object[]) rows.get(0) : new Object[5];
+            totals.setCredits(toLong(row[0]));
+            totals.setDebits(toLong(row[1]));
+            totals.setFees(toLong(row[2]));
+            totals.setCreditCount(toLong(row[3]));
+            totals.setDebitCount(toLong(row[4]));
+            if (since != Long.MIN_VALUE && since < firstDay * DailyAggregate.DAY_MS) sumTransactions(iban, since, firstDay * DailyAggregate.DAY_MS - 1, totals);
+            if (until != Long.MAX_VALUE && (lastDay + 1) * DailyAggregate.DAY_MS <= until) sumTransactions(iban, (lastDay + 1) * DailyAggregate.DAY_MS, until, totals);
+        }
+
+        TransactionSummary summary = new TransactionSummary();
+        summary.setAccountIban(query.getAccountIban());
+        summary.setSince(query.getSince());
+        summary.setUntil(query.getUntil());
+        summary.setCredits(totals.getCredits());
+        summary.setDebits(totals.getDebits());
+        summary.setFees(totals.getFees());
+        summary.setCreditCount(totals.getCreditCount());
+        summary.setDebitCount(totals.getDebitCount());
+        return summary;
+    }
+
+    /**
+     * Adds up the transactions of an account within a time range, from both stores.
+     */
+    private void sumTransactions(String iban, long since, long until, DailyAggregate totals) throws CallException {
+        TransactionQuery range = new TransactionQuery();
+        range.setAccountIban(iban);
+        range.setSince(since);
+        range.setUntil(until);
+        streamTransactions(range, totals::add);
+    }
+
+    /**
+     * Provides a sum read from database, of whatever numeric type. 0 if nothing was added.
+     */
+    private static long toLong(Object sum) {
+        return sum != null ? ((Number) sum).longValue() : 0;
     }
 
     @Override
     public TransactionStatusResponse getTransactionStatus(TransactionStatusRequest statusRequest) throws CallException {
         // Context.
-        PersistenceApi datastore = Ctx.get().getPersistenceLive();
+        PersistenceApi datastore = Ctx.get().getPersistenceRead(Transaction.class, statusRequest.getReference());
 
         // Check incoming content.
         if (statusRequest.getReference() == null || statusRequest.getReference().isEmpty()) throw new CallException("Invalid status request: reference not provided");
@@ -101,7 +527,19 @@ public class TransactionService implements TransactionApi {
         //
         // Business rules:
         //
-        Transaction transaction = (Transaction) datastore.load(Transaction.class, statusRequest.getReference());
+        // Journaled and not applied yet first: once applied, it is found in the datastore afterwards.
+        PostingJournal journal = Ctx.get().getPostingJournal();
+        Transaction transaction = journal != null ? journal.getPendingTransaction(statusRequest.getReference()) : null;
+        if (transaction == null) transaction = (Transaction) datastore.load(Transaction.class, statusRequest.getReference());
+        if (transaction == null) transaction = (Transaction) Ctx.get().getPersistenceArchive().load(Transaction.class, statusRequest.getReference()); // Archived.
+        
+        // Case of journaled transaction that could not be applied.
+        if (transaction == null && journal != null && journal.getFailure(statusRequest.getReference()) != null) {
+            TransactionStatusResponse response = new TransactionStatusResponse();
+            response.setReference(statusRequest.getReference());
+            response.setStatus(Statuses.STATUS_FAILED.name().split("_", 2)[1]);
+            return response;
+        }
         
         // Case of unknown transaction reference.
         if (transaction == null) {
@@ -145,19 +583,46 @@ public class TransactionService implements TransactionApi {
     }
 
     /**
-     * Generates a random transaction reference that is not already used
-     * as a transaction unique identifier.
+     * Runs a task within a unit of work on the live datastore, so all of its operations share one connection context.
      */
-    private String generateNewReference(PersistenceApi datastore) {
-        while (true) {
-            // Generate candidate.
-            String reference = UUID.randomUUID().toString().split("-", 2)[0].toUpperCase();
-            
-            // Check not repeated.
-            if (0 == datastore.count(Transaction.class, "reference = '" + reference + "'")) return reference;
+    private <T> T inUnitOfWork(Callable<T> task) throws Exception {
+        UnitOfWork work = Ctx.get().getPersistenceLive().beginUnitOfWork();
+        try {
+            return task.call();
+        } finally {
+            work.close();
         }
     }
-    
+
+    /**
+     * Indicates whether a transaction reference is already used.
+     * The datastore is only accessed when the reference index cannot discard it. Without index, when other nodes
+     * store transactions too, the datastore is always accessed, and a reference taken by another node in between
+     * is still refused by the database on insert.
+     */
+    private boolean isReferenceUsed(PersistenceApi datastore, String reference) {
+        ReferenceIndex referenceIndex = Ctx.get().getReferenceIndex();
+        if (referenceIndex != null && !referenceIndex.mightContain(reference)) return false;
+        PostingJournal journal = Ctx.get().getPostingJournal();
+        if (journal != null && journal.getPendingTransaction(reference) != null) return true;
+        if (0 < datastore.countNamed(Queries.TRANSACTIONS_COUNT_BY_REFERENCE, QueryParameters.with("reference", reference))) return true;
+        if (0 < Ctx.get().getPersistenceArchive().countNamed(Queries.TRANSACTIONS_COUNT_BY_REFERENCE, QueryParameters.with("reference", reference))) return true;
+        if (referenceIndex != null) referenceIndex.recordFalsePositive();
+        return false;
+    }
+
+    /**
+     * Creates the outcome of the processing of a transaction.
+     * @param reference The reference of the stored transaction. Null if not stored.
+     * @param error Reason why the transaction was not stored. Null if stored.
+     */
+    private TransactionResult newResult(String reference, String error) {
+        TransactionResult result = new TransactionResult();
+        result.setReference(reference);
+        result.setError(error);
+        return result;
+    }
+
     /**
      * Provides the time-stamp in milliseconds from epoch of the previous midnight,
      * i.e. the time-stamp when the current day started (server's local time).
@@ -196,5 +661,24 @@ public class TransactionService implements TransactionApi {
                           : amount - fee;
     }
 
+    /** Maximum number of transactions to be created together. */
+    private final int mBatchMaxSize = Ctx.getConfigInt(Ctx.CFG_BATCH_MAX, 10000);
+    
+    /** Number of transactions read at once from the database when streaming. */
+    private final int mStreamChunkSize = Ctx.getConfigInt(Ctx.CFG_STREAM_CHUNK, 1000);
+    
+    /** Maximum number of transactions up to the end of a page by page number when merging live and archived ones. */
+    private final int mMergeMaxSize = Ctx.getConfigInt(Ctx.CFG_ARCHIVE_MERGE_MAX, 10000);
+    
+    /** Outcomes of transactions created with an idempotency key. */
+    private final IdempotencyCache mIdempotencyCache = new IdempotencyCache(Ctx.getConfigInt(Ctx.CFG_IDEMPOTENCY_MAX, 100000),
+                                                                            Ctx.getConfigLong(Ctx.CFG_IDEMPOTENCY_TTL_SECONDS, 24 * 3600) * 1000);
+    
+    /** Maximum length of idempotency keys. */
+    private static final int IDEMPOTENCY_KEY_MAX_LENGTH = 255;
+    
+    /** Number of times a set of transactions is tried to be applied on an account whose balance is being changed. */
+    private static final int BATCH_ATTEMPTS = 3;
+
     private static Logger log = Logger.getLogger(TransactionService.class.getName());
 }
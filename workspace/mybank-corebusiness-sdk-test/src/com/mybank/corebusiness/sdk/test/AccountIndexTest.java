@@ -0,0 +1,75 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.mybank.corebusiness.backend.account.AccountIndex;
+
+/**
+ * Tests of the off-heap index of existing accounts: removals within clusters of colliding slots,
+ * growth of the table and IBANs kept apart because they cannot be packed.
+ * Runs in-process, no server required.
+ */
+public class AccountIndexTest {
+
+    /**
+     * Random additions and removals on a small table, so slots collide and removals shift entries back,
+     * give the same answers as a plain set.
+     */
+    @Test
+    public void sameAsSet() {
+        AccountIndex index = new AccountIndex(10);
+        Set<String> expected = new HashSet<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            String iban = "ES" + random.nextInt(700);
+            if (random.nextBoolean()) assertEquals(expected.add(iban), index.add(iban), "Add " + iban);
+            else assertEquals(expected.remove(iban), index.remove(iban), "Remove " + iban);
+            if (i % 1000 == 0) {
+                for (int n = 0; n < 700; n++) assertEquals(expected.contains("ES" + n), index.contains("ES" + n), "Contains ES" + n);
+            }
+        }
+        assertEquals(expected.size(), index.getCount());
+    }
+
+    /**
+     * The table grows beyond the expected number of accounts, keeping all of them.
+     */
+    @Test
+    public void growth() {
+        AccountIndex index = new AccountIndex(10);
+        long initialBytes = index.getMemoryBytes();
+        for (int i = 0; i < 100000; i++) assertTrue(index.add("ES" + i));
+        assertTrue(index.getMemoryBytes() > initialBytes);
+        assertEquals(100000, index.getCount());
+        for (int i = 0; i < 100000; i++) assertTrue(index.contains("ES" + i), "Contains ES" + i);
+        assertFalse(index.contains("ES100000"));
+    }
+
+    /**
+     * IBANs that cannot be packed are registered and unregistered as well.
+     */
+    @Test
+    public void notPacked() {
+        AccountIndex index = new AccountIndex(10);
+        String[] ibans = { "ES 12", "ES-12", "ÉS12", "ES12345678901234567890123456789012345678901" };
+        for (String iban : ibans) {
+            assertTrue(index.add(iban));
+            assertFalse(index.add(iban));
+        }
+        assertTrue(index.add("ES12"));
+        assertEquals(ibans.length + 1, index.getCount());
+        for (String iban : ibans) assertTrue(index.contains(iban));
+        for (String iban : ibans) assertTrue(index.remove(iban));
+        for (String iban : ibans) assertFalse(index.contains(iban));
+        assertTrue(index.contains("ES12"));
+        assertEquals(1, index.getCount());
+    }
+}
@@ -0,0 +1,125 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.rest.BinaryCodec;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+
+/**
+ * Tests of the binary wire format: values read back as written, and malformed entities refused
+ * as such (list elements of another type, lists of lists, values cut short).
+ * Runs in-process, no server required.
+ */
+public class BinaryCodecTest {
+
+    /**
+     * Entities, lists and plain values are read back as written, null fields and elements included.
+     */
+    @Test
+    public void roundTrip() throws IOException {
+        Gson gson = new Gson(); // Compares the fields of entities with no equals().
+        Transaction transaction = new Transaction();
+        transaction.setReference("REF1");
+        transaction.setAccountIban("ESBIN0001");
+        transaction.setDateEpoch(-1L);
+        transaction.setAmount(Long.MIN_VALUE);
+        transaction.setDescription("Payment á 💶");
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban("ESBIN0001");
+        query.setSortDescending(true);
+        query.setUntil(Long.MAX_VALUE);
+        query.setPageSize(50);
+        query.setCursor("cursor");
+        TransactionStatusResponse status = new TransactionStatusResponse();
+        status.setStatus("FAILED");
+        status.setFee(0L);
+        BankAccount account = new BankAccount();
+        account.setAccountIban("ESBIN0001");
+        account.setBalance(25);
+        account.setVersion(3);
+        for (Object value : Arrays.asList(transaction, query, status, account)) {
+            assertEquals(gson.toJson(value), gson.toJson(readBack(value, value.getClass(), value.getClass())));
+        }
+
+        List<Transaction> transactions = Arrays.asList(transaction, null, new Transaction());
+        Type listType = new TypeToken<List<Transaction>>() {}.getType();
+        assertEquals(gson.toJson(transactions), gson.toJson(readBack(transactions, List.class, listType)));
+        assertEquals("text", readBack("text", String.class, String.class));
+        assertEquals(-7L, readBack(-7L, long.class, long.class));
+        assertEquals(true, readBack(true, Boolean.class, Boolean.class));
+    }
+
+    /**
+     * A value or a list element of another type than the expected one is refused.
+     */
+    @Test
+    public void otherType() {
+        Type listType = new TypeToken<List<Transaction>>() {}.getType();
+        assertThrows(StreamCorruptedException.class, () -> readBack(new TransactionQuery(), Transaction.class, Transaction.class));
+        assertThrows(StreamCorruptedException.class, () -> readBack(Arrays.asList(new Transaction(), new TransactionQuery()), List.class, listType));
+        assertThrows(StreamCorruptedException.class, () -> readBack(Arrays.asList("text"), List.class, listType));
+        assertThrows(StreamCorruptedException.class, () -> readBack(new Transaction(), List.class, listType));
+    }
+
+    /**
+     * Lists of lists are refused, however deep, rather than overflowing the stack.
+     */
+    @Test
+    public void listsOfLists() {
+        byte[] nested = new byte[200000];
+        for (int i = 0; i < nested.length; i += 2) {
+            nested[i] = 4; // List.
+            nested[i + 1] = 1; // Of one element.
+        }
+        assertThrows(StreamCorruptedException.class, () -> BinaryCodec.read(List.class, List.class, new ByteArrayInputStream(nested)));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.write(Collections.singletonList(new ArrayList<>()), new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Values cut short are refused, and unknown fields skipped.
+     */
+    @Test
+    public void malformed() throws IOException {
+        Transaction transaction = new Transaction();
+        transaction.setReference("REF1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCodec.write(transaction, out);
+        byte[] bytes = out.toByteArray();
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] cut = Arrays.copyOf(bytes, length);
+            assertThrows(EOFException.class, () -> BinaryCodec.read(Transaction.class, new ByteArrayInputStream(cut)));
+        }
+
+        // Transaction with reference "R" and an unknown field 9 (number 5).
+        byte[] unknownField = { 10, 1 << 3 | 2, 1, 'R', 9 << 3, 10, 0 };
+        assertEquals("R", ((Transaction) BinaryCodec.read(Transaction.class, new ByteArrayInputStream(unknownField))).getReference());
+    }
+
+    /**
+     * Writes a value and reads it back.
+     */
+    private static Object readBack(Object value, Class<?> type, Type genericType) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCodec.write(value, out);
+        return BinaryCodec.read(type, genericType, new ByteArrayInputStream(out.toByteArray()));
+    }
+}
@@ -0,0 +1,362 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.junit.Test;
+
+import com.google.gson.reflect.TypeToken;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.backend.rest.CompressionFilter;
+import com.mybank.corebusiness.sdk.CompressionClientFilter;
+import com.mybank.corebusiness.sdk.GsonUtil;
+
+/**
+ * Tests of response compression: the encoding picked out of Accept-Encoding, entities up to the threshold
+ * sent as they are with their length, larger ones compressed while written, flushed lines reaching the client,
+ * the client asking for and decoding compressed entities, and the bytes and time it takes for pages of transactions.
+ * Runs in-process on the service and client filters, no server required (2048 bytes threshold by default).
+ */
+public class CompressionFilterTest {
+
+    /**
+     * gzip is preferred, deflate taken otherwise, and encodings with a zero quality are refused.
+     */
+    @Test
+    public void chooseEncoding() {
+        assertNull(acceptedEncoding(null));
+        assertNull(acceptedEncoding("identity"));
+        assertEquals("gzip", acceptedEncoding("gzip, deflate"));
+        assertEquals("gzip", acceptedEncoding("deflate, gzip"));
+        assertEquals("gzip", acceptedEncoding("br, X-GZIP;q=0.5"));
+        assertEquals("deflate", acceptedEncoding("deflate"));
+        assertEquals("deflate", acceptedEncoding("gzip;q=0, deflate"));
+        assertEquals("deflate", acceptedEncoding("gzip; q=0.000, deflate;q=1"));
+        assertNull(acceptedEncoding("gzip;q=0.0, deflate; q = 0"));
+    }
+
+    /**
+     * Entities up to the threshold are sent as they are, keeping their Content-Length.
+     */
+    @Test
+    public void belowThreshold() throws IOException {
+        for (int length : new int[] { 0, 100, THRESHOLD }) {
+            Written written = write("gzip", entity(length), true);
+            assertArrayEquals(entity(length), written.bytes, "Length " + length);
+            assertNull(written.headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+            assertEquals(Integer.toString(length), written.headers.getFirst(HttpHeaders.CONTENT_LENGTH));
+            assertEquals(HttpHeaders.ACCEPT_ENCODING, written.headers.getFirst(HttpHeaders.VARY));
+        }
+    }
+
+    /**
+     * Entities beyond the threshold are compressed with the accepted encoding and sent without a length,
+     * as it is not known anymore. The client reads them back the same.
+     */
+    @Test
+    public void aboveThreshold() throws IOException {
+        for (String encoding : new String[] { "gzip", "deflate" }) {
+            for (int length : new int[] { THRESHOLD + 1, 100000 }) {
+                byte[] entity = entity(length);
+                Written written = write(encoding, entity, true);
+                assertEquals(encoding, written.headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+                assertFalse(written.headers.containsKey(HttpHeaders.CONTENT_LENGTH));
+                assertEquals(HttpHeaders.ACCEPT_ENCODING, written.headers.getFirst(HttpHeaders.VARY));
+                if (length > THRESHOLD * 4) assertTrue(written.bytes.length < length / 4, "Compressed " + written.bytes.length);
+                assertArrayEquals(entity, read(encoding, written.bytes), encoding + " " + length);
+            }
+        }
+    }
+
+    /**
+     * Entities are not compressed for clients accepting no encoding, nor again when already encoded.
+     */
+    @Test
+    public void notCompressed() throws IOException {
+        byte[] entity = entity(100000);
+        Written written = write(null, entity, false);
+        assertArrayEquals(entity, written.bytes);
+        assertFalse(written.headers.containsKey(HttpHeaders.CONTENT_ENCODING));
+        assertFalse(written.headers.containsKey(HttpHeaders.VARY));
+
+        MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+        headers.putSingle(HttpHeaders.CONTENT_ENCODING, "br");
+        written = write("gzip", entity, headers, false);
+        assertArrayEquals(entity, written.bytes);
+        assertEquals("br", written.headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    /**
+     * Once compressing, each flush sends all that was written so far, so the client can read streamed lines
+     * as they are produced.
+     */
+    @Test
+    public void flushedLines() throws IOException {
+        for (String encoding : new String[] { "gzip", "deflate" }) {
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            Map<String, Object> properties = new HashMap<>();
+            properties.put(PROP_ENCODING, encoding);
+            write(properties, new MultivaluedHashMap<>(), sent, out -> {
+                for (int i = 0; i < 200; i++) {
+                    byte[] line = ("{\"reference\":\"REF" + (100000 + i) + "\",\"amount\":" + i + "}\n").getBytes(StandardCharsets.UTF_8);
+                    out.write(line);
+                    out.flush();
+                    lines.write(line);
+                    if (lines.size() <= THRESHOLD) continue;
+
+                    // All lines so far can be read out of the bytes sent so far.
+                    InputStream in = decoder(encoding, new ByteArrayInputStream(sent.toByteArray()));
+                    byte[] received = new byte[lines.size()];
+                    new DataInputStream(in).readFully(received);
+                    assertArrayEquals(lines.toByteArray(), received, encoding + " line " + i);
+                }
+            });
+            assertArrayEquals(lines.toByteArray(), read(encoding, sent.toByteArray()));
+        }
+    }
+
+    /**
+     * The client asks for gzip or deflate unless the request says otherwise, and decodes what is answered,
+     * dropping the headers of the encoded entity. Entities not encoded, or with unknown encodings, are left alone.
+     */
+    @Test
+    public void client() throws IOException {
+        CompressionClientFilter filter = new CompressionClientFilter();
+        MultivaluedMap<String, Object> requestHeaders = new MultivaluedHashMap<>();
+        filter.filter(proxy(ClientRequestContext.class, (name, args) -> name.equals("getHeaders") ? requestHeaders : null));
+        assertEquals("gzip, deflate", requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING));
+        requestHeaders.putSingle(HttpHeaders.ACCEPT_ENCODING, "identity");
+        filter.filter(proxy(ClientRequestContext.class, (name, args) -> name.equals("getHeaders") ? requestHeaders : null));
+        assertEquals("identity", requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING));
+
+        byte[] entity = entity(10000);
+        for (String encoding : new String[] { "gzip", "x-gzip", " Deflate " }) {
+            byte[] encoded = write(encoding.trim().toLowerCase().replace("x-", ""), entity, true).bytes;
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+            headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+            headers.putSingle(HttpHeaders.CONTENT_LENGTH, Integer.toString(encoded.length));
+            assertArrayEquals(entity, clientRead(headers, encoded), encoding);
+            assertFalse(headers.containsKey(HttpHeaders.CONTENT_ENCODING));
+            assertFalse(headers.containsKey(HttpHeaders.CONTENT_LENGTH));
+        }
+        for (String encoding : new String[] { null, "br" }) {
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+            if (encoding != null) headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+            assertArrayEquals(entity, clientRead(headers, entity));
+            assertEquals(encoding, headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+        }
+    }
+
+    /**
+     * Pages of transactions, as listed by a query, written through the service filter and read back through the client
+     * one with each encoding: pages of 100 transactions or more are sent in under a fifth of their bytes.
+     * Bytes sent and times of each way are logged.
+     */
+    @Test
+    public void transactionPages() throws IOException {
+        Type listType = new TypeToken<List<Transaction>>() {}.getType();
+        for (int pageSize : PAGE_SIZES) {
+            byte[] json = GsonUtil.getInstance().toJson(newTransactions(pageSize), listType).getBytes(StandardCharsets.UTF_8);
+            for (String encoding : new String[] { null, "gzip", "deflate" }) {
+                long start = System.nanoTime();
+                Written written = null;
+                for (int i = 0; i < ROUNDS; i++) written = write(encoding, json, true);
+                long writeNanos = System.nanoTime() - start;
+
+                String sentEncoding = (String) written.headers.getFirst(HttpHeaders.CONTENT_ENCODING);
+                start = System.nanoTime();
+                byte[] received = null;
+                for (int i = 0; i < ROUNDS; i++) {
+                    MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+                    if (sentEncoding != null) headers.putSingle(HttpHeaders.CONTENT_ENCODING, sentEncoding);
+                    received = clientRead(headers, written.bytes);
+                }
+                long readNanos = System.nanoTime() - start;
+
+                String name = pageSize + " transactions, " + (sentEncoding != null ? sentEncoding : "not encoded");
+                assertArrayEquals(json, received, name);
+                if (encoding != null && pageSize >= 100) assertTrue(written.bytes.length * 5 < json.length, name + ": " + written.bytes.length + " of " + json.length + " bytes");
+                log.info(name + ": " + written.bytes.length + " of " + json.length + " bytes, " +
+                         "write " + writeNanos / ROUNDS / 1000 + " us, read " + readNanos / ROUNDS / 1000 + " us");
+            }
+        }
+    }
+
+    /**
+     * The encoding the service filter takes note of for a request with the given Accept-Encoding header.
+     */
+    private static String acceptedEncoding(String acceptEncoding) {
+        Map<String, Object> properties = new HashMap<>();
+        new CompressionFilter().filter(proxy(ContainerRequestContext.class, (name, args) -> {
+            if (name.equals("getHeaderString")) return args[0].equals(HttpHeaders.ACCEPT_ENCODING) ? acceptEncoding : null;
+            if (name.equals("setProperty")) properties.put((String) args[0], args[1]);
+            return null;
+        }));
+        return (String) properties.get(PROP_ENCODING);
+    }
+
+    /**
+     * Writes an entity through the service filter, as the entity providers do: the Content-Length first,
+     * when known, then the bytes in pieces of several sizes.
+     */
+    private static Written write(String encoding, byte[] entity, boolean contentLength) throws IOException {
+        return write(encoding, entity, new MultivaluedHashMap<>(), contentLength);
+    }
+
+    private static Written write(String encoding, byte[] entity, MultivaluedMap<String, Object> headers, boolean contentLength) throws IOException {
+        Map<String, Object> properties = new HashMap<>();
+        if (encoding != null) properties.put(PROP_ENCODING, encoding);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        write(properties, headers, sent, out -> {
+            if (contentLength) headers.putSingle(HttpHeaders.CONTENT_LENGTH, Integer.toString(entity.length));
+            int offset = 0;
+            for (int piece = 1; offset < entity.length; piece = piece * 3 % 5000 + 1) {
+                int length = Math.min(piece, entity.length - offset);
+                if (length == 1) out.write(entity[offset]);
+                else out.write(entity, offset, length);
+                offset += length;
+            }
+        });
+        Written written = new Written();
+        written.bytes = sent.toByteArray();
+        written.headers = headers;
+        return written;
+    }
+
+    private static void write(Map<String, Object> properties, MultivaluedMap<String, Object> headers, OutputStream sent, Writer writer) throws IOException {
+        OutputStream[] out = { sent };
+        new CompressionFilter().aroundWriteTo(proxy(WriterInterceptorContext.class, (name, args) -> {
+            switch (name) {
+                case "getProperty": return properties.get(args[0]);
+                case "getHeaders": return headers;
+                case "getOutputStream": return out[0];
+                case "setOutputStream": out[0] = (OutputStream) args[0]; return null;
+                case "proceed": writer.write(out[0]); return null;
+                default: throw new UnsupportedOperationException(name);
+            }
+        }));
+    }
+
+    /**
+     * Reads an entity through the client filter.
+     */
+    private static byte[] clientRead(MultivaluedMap<String, String> headers, byte[] entity) throws IOException {
+        InputStream[] in = { new ByteArrayInputStream(entity) };
+        return (byte[]) new CompressionClientFilter().aroundReadFrom(proxy(ReaderInterceptorContext.class, (name, args) -> {
+            switch (name) {
+                case "getHeaders": return headers;
+                case "getInputStream": return in[0];
+                case "setInputStream": in[0] = (InputStream) args[0]; return null;
+                case "proceed": return readAll(in[0]);
+                default: throw new UnsupportedOperationException(name);
+            }
+        }));
+    }
+
+    private static byte[] read(String encoding, byte[] encoded) throws IOException {
+        return readAll(decoder(encoding, new ByteArrayInputStream(encoded)));
+    }
+
+    private static InputStream decoder(String encoding, InputStream in) throws IOException {
+        return encoding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        for (int read; (read = in.read(buffer)) != -1;) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    /**
+     * JSON alike, so it compresses as entities do.
+     */
+    private static byte[] entity(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) text.append("{\"reference\":\"REF").append(100000 + i).append("\",\"amount\":").append(i % 1000).append("},");
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+
+    /**
+     * Transactions as listed by a query: same account, descriptions alike.
+     */
+    private static List<Transaction> newTransactions(int count) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setReference("REF" + (100000 + i));
+            transaction.setAccountIban("ESZIP0000001");
+            transaction.setDateEpoch(1500000000000L + i * 60000L);
+            transaction.setAmount(i % 2 == 0 ? -(i % 1000) : i % 1000);
+            transaction.setFee(i % 3 == 0 ? 1L : null);
+            transaction.setDescription("Card payment at store " + (i % 20));
+            transactions.add(transaction);
+        }
+        return transactions;
+    }
+
+    /**
+     * Context of a filter, answering the calls it makes by method name.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> handler.handle(method.getName(), args));
+    }
+
+    private interface Handler {
+        Object handle(String name, Object[] args) throws IOException;
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static class Written {
+        byte[] bytes;
+        MultivaluedMap<String, Object> headers;
+    }
+
+    /** Request property the service filter keeps the accepted encoding in. */
+    private static final String PROP_ENCODING = CompressionFilter.class.getName() + ".encoding";
+
+    /** Default size from which entities are compressed: larger than it. */
+    private static final int THRESHOLD = 2048;
+
+    /** Transactions per page. */
+    private static final int[] PAGE_SIZES = { 10, 100, 1000 };
+
+    /** Times each page is written and read. */
+    private static final int ROUNDS = 50;
+
+    private static Logger log = Logger.getLogger(CompressionFilterTest.class.getName());
+}
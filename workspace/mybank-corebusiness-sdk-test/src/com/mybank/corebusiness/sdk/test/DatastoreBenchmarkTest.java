@@ -0,0 +1,128 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.backend.persistence.HibernateDatastore;
+import com.mybank.corebusiness.backend.persistence.HibernateDatastore.Stores;
+import com.mybank.corebusiness.backend.persistence.JdbcDatastore;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+
+/**
+ * Side by side run of the JPA and plain JDBC datastores on the hot operations: loading an account,
+ * posting a transaction (balance update and insert), checking a reference and paged transaction queries.
+ * Both run the same workload on their own accounts and must end up with the expected, same results;
+ * the time of each kind of operation on each datastore is logged.
+ * Runs in-process on the live store, no server required.
+ */
+public class DatastoreBenchmarkTest {
+
+    /**
+     * Same workload on both datastores, same results, timings logged.
+     */
+    @Test
+    public void hotOperations() {
+        PersistenceApi hibernate = HibernateDatastore.get(Stores.LIVE);
+        PersistenceApi jdbc = JdbcDatastore.get(Stores.LIVE);
+        String run = Long.toString(System.currentTimeMillis() % 100000);
+        assertEquals(run("JPA", hibernate, "BH" + run), run("JDBC", jdbc, "BJ" + run));
+    }
+
+    /**
+     * Runs the workload on a datastore, checking the outcome and logging the time of each kind of operation.
+     * @param name Name of the datastore in the log.
+     * @param prefix Prefix of the IBANs and references, unique per run.
+     * @return Balances and pages found, without IBANs nor references, comparable between datastores.
+     */
+    private List<Object> run(String name, PersistenceApi datastore, String prefix) {
+        List<Object> results = new ArrayList<>();
+        List<Object> accounts = new ArrayList<>();
+        for (int a = 0; a < ACCOUNTS; a++) {
+            BankAccount account = new BankAccount();
+            account.setAccountIban(prefix + a);
+            account.setBalance(1000000);
+            accounts.add(account);
+        }
+        datastore.saveAll(accounts);
+
+        // Account loads.
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) assertNotNull(datastore.load(BankAccount.class, prefix + (i % ACCOUNTS)));
+        logTime(name, "account loads", start);
+
+        // Postings: balance update and transaction insert together.
+        long[] balances = new long[ACCOUNTS];
+        Arrays.fill(balances, 1000000);
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setReference(prefix + "-" + i);
+            transaction.setAccountIban(prefix + (i % ACCOUNTS));
+            transaction.setDateEpoch(1500000000000L + i * 1000L);
+            transaction.setAmount(i % 2 == 0 ? -(i % 100) : i % 100);
+            transaction.setFee(i % 3 == 0 ? 1L : null);
+            long net = transaction.getAmount() - (transaction.getFee() != null ? transaction.getFee() : 0);
+            assertEquals(1L, datastore.updateNamedAndSave(Queries.ACCOUNT_ADD_BALANCE_IF_COVERED,
+                                                         QueryParameters.with("iban", transaction.getAccountIban()).and("net", net),
+                                                         transaction));
+            balances[i % ACCOUNTS] += net;
+        }
+        logTime(name, "postings", start);
+
+        // Reference checks, half of them used.
+        long used = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) used += datastore.countNamed(Queries.TRANSACTIONS_COUNT_BY_REFERENCE, QueryParameters.with("reference", prefix + "-" + (i * 2)));
+        logTime(name, "reference checks", start);
+        assertEquals(OPERATIONS / 2, used);
+
+        // Pages of 20 transactions, newest first.
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            QueryParameters parameters = QueryParameters.with("iban", prefix + (i % ACCOUNTS)).and("since", 0L).and("until", Long.MAX_VALUE);
+            List<Object> page = datastore.loadNamed(Queries.TRANSACTIONS_BY_ACCOUNT_DATE_DESC, parameters, (i % 3) * 20, (i % 3) * 20 + 19);
+            assertEquals(20, page.size());
+            for (int t = 1; t < page.size(); t++) assertTrue(((Transaction) page.get(t - 1)).getDateEpoch() > ((Transaction) page.get(t)).getDateEpoch());
+            if (i < ACCOUNTS) for (Object transaction : page) results.add(((Transaction) transaction).getDateEpoch() + "/" + ((Transaction) transaction).getAmount());
+        }
+        logTime(name, "transaction pages", start);
+
+        // Balances.
+        for (int a = 0; a < ACCOUNTS; a++) {
+            long balance = ((BankAccount) datastore.load(BankAccount.class, prefix + a)).getBalance();
+            assertEquals(balances[a], balance);
+            results.add(balance);
+        }
+        return results;
+    }
+
+    /**
+     * Logs the total and per operation time of a kind of operation.
+     * @param start Value of {@link System#nanoTime()} before the operations.
+     */
+    private static void logTime(String name, String operations, long start) {
+        long elapsed = System.nanoTime() - start;
+        log.info(name + " " + operations + ": " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, " + elapsed / OPERATIONS / 1000 + " us each");
+    }
+
+    /** Accounts of each run. */
+    private static final int ACCOUNTS = 50;
+
+    /** Operations of each kind in each run. */
+    private static final int OPERATIONS = 5000;
+
+    private static Logger log = Logger.getLogger(DatastoreBenchmarkTest.class.getName());
+}
@@ -0,0 +1,168 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
+import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
+import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+import com.mybank.corebusiness.api.transaction.TransactionSummary;
+import com.mybank.corebusiness.sdk.GsonUtil;
+
+/**
+ * Side by side run of the reflective Gson adapters and the streaming ones of the API DTOs:
+ * both must write the same JSON and read it back the same. Time and allocation per DTO each way are logged.
+ * Runs in-process, no server required.
+ */
+public class GsonBenchmarkTest {
+
+    /**
+     * Same JSON both ways, same objects read back, timings logged.
+     */
+    @Test
+    public void dtoAdapters() {
+        Gson reflective = new Gson();
+        Gson streaming = GsonUtil.getInstance();
+        List<Transaction> transactions = newTransactions();
+        Type listType = new TypeToken<List<Transaction>>() {}.getType();
+
+        // Same JSON, including missing and unknown fields.
+        String json = reflective.toJson(transactions, listType);
+        assertEquals(json, streaming.toJson(transactions, listType));
+        assertEquals(json, streaming.toJson(streaming.fromJson(json, listType), listType));
+        assertEquals(json, reflective.toJson(streaming.fromJson(json, listType), listType));
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban("ESGSON0000001");
+        query.setSortDescending(true);
+        query.setSince(1500000000000L);
+        query.setPageSize(50);
+        assertEquals(reflective.toJson(query), streaming.toJson(query));
+        assertEquals(reflective.toJson(query), streaming.toJson(streaming.fromJson(reflective.toJson(query), TransactionQuery.class)));
+        TransactionStatusResponse status = new TransactionStatusResponse();
+        status.setReference("REF1");
+        status.setStatus("PENDING");
+        status.setAmount(-1200L);
+        assertEquals(reflective.toJson(status), streaming.toJson(status));
+        BankAccount account = streaming.fromJson("{\"accountIban\":\"ESGSON0000001\",\"balance\":\"25\",\"unknown\":{\"a\":[1,2]},\"version\":3}", BankAccount.class);
+        assertEquals(reflective.toJson(reflective.fromJson("{\"accountIban\":\"ESGSON0000001\",\"balance\":25,\"version\":3}", BankAccount.class)), streaming.toJson(account));
+
+        // Warm up.
+        run(null, reflective, transactions, listType);
+        run(null, streaming, transactions, listType);
+
+        // Measure.
+        run("Reflective", reflective, transactions, listType);
+        run("Streaming", streaming, transactions, listType);
+    }
+
+    /**
+     * Every field declared by each DTO, with a value, is written and read back by the streaming adapters as by the
+     * reflective ones: a field added to a DTO but not to its adapter is caught here.
+     */
+    @Test
+    public void everyDeclaredField() throws ReflectiveOperationException {
+        Gson reflective = new Gson();
+        Gson streaming = GsonUtil.getInstance();
+        for (Class<?> dtoClass : Arrays.asList(Transaction.class, TransactionQuery.class, TransactionResult.class, TransactionStatusRequest.class,
+                                               TransactionStatusResponse.class, TransactionSummary.class, BankAccount.class)) {
+            Object dto = dtoClass.newInstance();
+            int index = 0;
+            for (Field field : dtoClass.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) continue;
+                field.setAccessible(true);
+                field.set(dto, newValue(field, ++index));
+            }
+            String json = reflective.toJson(dto);
+            assertEquals(json, streaming.toJson(dto), dtoClass.getSimpleName() + " written");
+            assertEquals(json, reflective.toJson(streaming.fromJson(json, dtoClass)), dtoClass.getSimpleName() + " read");
+        }
+    }
+
+    /**
+     * Provides a value for a DTO field, not the default one of its type.
+     * @param index Position of the field, so every field gets a different value.
+     */
+    private static Object newValue(Field field, int index) {
+        Class<?> type = field.getType();
+        if (type == String.class) return field.getName() + " " + index;
+        if (type == long.class || type == Long.class) return 1500000000000L + index;
+        if (type == int.class || type == Integer.class) return 100 + index;
+        if (type == boolean.class || type == Boolean.class) return true;
+        throw new AssertionError("DTO field type not covered by the test: " + field);
+    }
+
+    /**
+     * Writes and reads the transactions back, logging the time and allocation of each way.
+     * @param name Name of the adapters in the log, null to only warm up.
+     */
+    private static void run(String name, Gson gson, List<Transaction> transactions, Type listType) {
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        String json = null;
+        for (int i = 0; i < ROUNDS; i++) json = gson.toJson(transactions, listType);
+        long writeNanos = System.nanoTime() - start;
+        long allocatedWriting = getAllocatedBytes() - allocatedBefore;
+
+        allocatedBefore = getAllocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) gson.fromJson(json, listType);
+        long readNanos = System.nanoTime() - start;
+        long allocatedReading = getAllocatedBytes() - allocatedBefore;
+
+        if (name == null) return;
+        long dtos = (long) ROUNDS * transactions.size();
+        log.info("Gson " + name + ": " + dtos + " transactions each way. " +
+                 "Write " + writeNanos / dtos + " ns, " + allocatedWriting / dtos + " bytes, " +
+                 "read " + readNanos / dtos + " ns, " + allocatedReading / dtos + " bytes");
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or 0 if the JVM cannot tell.
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Transactions with and without their optional fields.
+     */
+    private static List<Transaction> newTransactions() {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setReference("REF" + i);
+            transaction.setAccountIban("ESGSON" + (i % 10));
+            transaction.setDateEpoch(1500000000000L + i * 1000L);
+            transaction.setAmount(i % 2 == 0 ? -(i % 100) : i % 100);
+            transaction.setFee(i % 3 == 0 ? 1L : null);
+            transaction.setDescription(i % 5 == 0 ? null : "Payment \"" + i + "\" á");
+            transactions.add(transaction);
+        }
+        return transactions;
+    }
+
+    /** Transactions per round. */
+    private static final int TRANSACTIONS = 1000;
+
+    /** Rounds each way. */
+    private static final int ROUNDS = 200;
+
+    private static Logger log = Logger.getLogger(GsonBenchmarkTest.class.getName());
+}
@@ -0,0 +1,96 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.backend.transaction.IdempotencyCache;
+
+/**
+ * Tests of the cache of outcomes of requests sent with an idempotency key: repetitions answered without
+ * running again, and requests in progress kept beyond the maximum number of outcomes and their time.
+ * Runs in-process, no server required.
+ */
+public class IdempotencyCacheTest {
+
+    /**
+     * Repetitions get the outcome of the first request, result or exception, and keys cannot be reused
+     * for a different request.
+     */
+    @Test
+    public void repeated() throws CallException {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000);
+        AtomicInteger runs = new AtomicInteger();
+        assertEquals("1", cache.execute("K1", "A", () -> Integer.toString(runs.incrementAndGet())));
+        assertEquals("1", cache.execute("K1", "A", () -> Integer.toString(runs.incrementAndGet())));
+        assertThrows(CallException.class, () -> cache.execute("K1", "B", () -> "other"));
+        assertThrows(CallException.class, () -> cache.execute("K2", "A", () -> { runs.incrementAndGet(); throw new CallException("Rejected"); }));
+        assertThrows(CallException.class, () -> cache.execute("K2", "A", () -> Integer.toString(runs.incrementAndGet())));
+        assertEquals(2, runs.get());
+        assertEquals(2L, cache.getReplayCount());
+    }
+
+    /**
+     * Completed outcomes are discarded beyond the maximum number, least recently used first.
+     */
+    @Test
+    public void bounded() throws CallException {
+        IdempotencyCache cache = new IdempotencyCache(3, 60000);
+        for (int i = 0; i < 10; i++) cache.execute("K" + i, "A", () -> "done");
+        assertEquals(3, cache.getSize());
+        AtomicInteger runs = new AtomicInteger();
+        cache.execute("K0", "A", () -> Integer.toString(runs.incrementAndGet()));
+        cache.execute("K9", "A", () -> Integer.toString(runs.incrementAndGet()));
+        assertEquals(1, runs.get());
+    }
+
+    /**
+     * A request in progress is neither discarded by newer ones beyond the maximum number, nor once its time
+     * is over: a repetition waits for its outcome instead of running it again.
+     */
+    @Test
+    public void inProgressKept() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(2, 1);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.execute("SLOW", "A", () -> {
+                    runs.incrementAndGet();
+                    started.countDown();
+                    release.await();
+                    return "posted";
+                });
+            } catch (CallException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        started.await();
+
+        // Newer requests beyond the maximum number, and the time of the first one over.
+        for (int i = 0; i < 5; i++) cache.execute("K" + i, "A", () -> "done");
+        Thread.sleep(20);
+        for (int i = 5; i < 10; i++) cache.execute("K" + i, "A", () -> "done");
+
+        // Repetition while in progress.
+        CompletableFuture<String> repeated = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.execute("SLOW", "A", () -> "posted again " + runs.incrementAndGet());
+            } catch (CallException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(20);
+        release.countDown();
+        assertEquals("posted", first.get());
+        assertEquals("posted", repeated.get());
+        assertEquals(1, runs.get());
+    }
+}
@@ -0,0 +1,83 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.mybank.corebusiness.backend.transaction.ReferenceGenerator;
+
+/**
+ * Uniqueness and ordering of the transaction reference generator, also from several threads at once.
+ * Runs in-process, no server required.
+ */
+public class ReferenceGeneratorTest {
+
+    /**
+     * References generated one after another are unique and sorted.
+     */
+    @Test
+    public void sortedReferences() {
+        ReferenceGenerator generator = new ReferenceGenerator(7);
+        String previous = generator.next();
+        for (int i = 0; i < 100000; i++) {
+            String reference = generator.next();
+            assertEquals(16, reference.length());
+            assertTrue(reference.compareTo(previous) > 0, "Reference '" + reference + "' not after '" + previous + "'");
+            previous = reference;
+        }
+    }
+
+    /**
+     * Generated references have their own form, which references provided by clients are refused for.
+     */
+    @Test
+    public void generatedForm() {
+        ReferenceGenerator generator = new ReferenceGenerator(ReferenceGenerator.MAX_NODE_ID);
+        for (int i = 0; i < 1000; i++) assertTrue(ReferenceGenerator.isGenerated(generator.next()));
+        for (String reference : new String[] { "", "REF_1", "0123456789abcdef", "0123456789ABCDEG", "0123456789ABCDE", "0123456789ABCDEF0" }) {
+            assertFalse(ReferenceGenerator.isGenerated(reference), reference);
+        }
+    }
+
+    /**
+     * References generated from several threads at full speed are unique, and sorted as seen by each thread.
+     */
+    @Test
+    public void concurrentReferences() throws InterruptedException {
+        ReferenceGenerator generator = new ReferenceGenerator(ReferenceGenerator.MAX_NODE_ID);
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int perThread = 500000;
+        Set<String> references = ConcurrentHashMap.newKeySet(threadCount * perThread);
+        Set<String> unsorted = ConcurrentHashMap.newKeySet();
+
+        // Warm up.
+        for (int i = 0; i < 100000; i++) generator.next();
+
+        // Generate.
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            threads.add(new Thread(() -> {
+                String previous = "";
+                for (int i = 0; i < perThread; i++) {
+                    String reference = generator.next();
+                    references.add(reference);
+                    if (reference.compareTo(previous) <= 0) unsorted.add(reference);
+                    previous = reference;
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        // No collisions, no reference before a previous one of the same thread.
+        assertEquals(threadCount * perThread, references.size());
+        assertTrue(unsorted.isEmpty(), "References not after the previous ones: " + unsorted);
+    }
+}
@@ -0,0 +1,159 @@
+package com.mybank.corebusiness.sdk.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mybank.corebusiness.api.rest.CallException;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.api.transaction.TransactionApi;
+import com.mybank.corebusiness.api.transaction.TransactionCursor;
+import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.backend.Ctx;
+import com.mybank.corebusiness.backend.persistence.PersistenceApi;
+import com.mybank.corebusiness.backend.persistence.Queries;
+import com.mybank.corebusiness.backend.persistence.QueryParameters;
+import com.mybank.corebusiness.backend.transaction.TransactionArchiver;
+
+/**
+ * Tests of the transaction archiver and of the transaction queries merging the live and archive stores.
+ * Runs in-process on the live and archive stores, no server required.
+ * Every test uses its own accounts and its own range of dates, far in the past, so archiving for one test
+ * never moves the transactions of another one still running.
+ */
+public class TransactionArchiverTest {
+
+    /**
+     * Transactions before the cutoff are moved batch by batch, those after it stay. Transactions already copied
+     * by an interrupted batch are not copied again.
+     */
+    @Test
+    public void archiveInBatches() {
+        PersistenceApi live = Ctx.get().getPersistenceLive();
+        PersistenceApi archive = Ctx.get().getPersistenceArchive();
+        String iban = "ARCA" + System.currentTimeMillis();
+        List<Transaction> transactions = createTransactions(iban, 1000, 100);
+
+        // Interrupted batch: the first ones in both stores.
+        archive.saveAll(transactions.subList(0, 3));
+
+        // Move those before the cutoff, in batches not dividing their number.
+        TransactionArchiver archiver = new TransactionArchiver(live, archive, 0, 60000, 7, null);
+        assertTrue(archiver.archive(1050) >= 50);
+        assertTrue(archiver.isArchived(1049));
+        assertEquals(references(transactions.subList(50, 100)), references(load(live, iban)));
+        assertEquals(references(transactions.subList(0, 50)), references(load(archive, iban)));
+    }
+
+    /**
+     * Pages by number, pages by cursor and streams across the boundary between the archive and the live stores
+     * provide every transaction once, in order. Also the one being archived, found in both stores.
+     */
+    @Test
+    public void queriesAcrossBoundary() throws CallException {
+        TransactionApi transactionService = Ctx.get().getTransactionService();
+        String iban = "ARCB" + System.currentTimeMillis();
+        List<Transaction> transactions = createTransactions(iban, 2000, 40);
+        assertTrue(Ctx.get().getTransactionArchiver().archive(2020) >= 20);
+        Ctx.get().getPersistenceArchive().saveAll(transactions.subList(30, 31)); // Being archived.
+
+        // Pages by number, ascending.
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban);
+        query.setPageSize(7);
+        List<Transaction> found = new ArrayList<>();
+        for (int page = 0; page < 7; page++) {
+            query.setPageNumber(page);
+            found.addAll(transactionService.queryTransactions(query));
+        }
+        assertEquals(references(transactions), references(found));
+
+        // Pages by cursor, descending.
+        query.setPageNumber(0);
+        query.setSortDescending(true);
+        found.clear();
+        List<Transaction> page;
+        do {
+            page = transactionService.queryTransactions(query);
+            found.addAll(page);
+            if (!page.isEmpty()) query.setCursor(TransactionCursor.after(page.get(page.size() - 1)));
+        } while (page.size() == query.getPageSize());
+        List<Transaction> descending = new ArrayList<>(transactions);
+        Collections.reverse(descending);
+        assertEquals(references(descending), references(found));
+
+        // Stream, ascending.
+        query.setCursor(null);
+        query.setSortDescending(false);
+        found.clear();
+        assertEquals(40, transactionService.streamTransactions(query, found::add));
+        assertEquals(references(transactions), references(found));
+
+        // Range after the boundary: live store only.
+        query.setSince(2025);
+        query.setUntil(2100);
+        query.setPageSize(100);
+        assertEquals(references(transactions.subList(25, 40)), references(transactionService.queryTransactions(query)));
+    }
+
+    /**
+     * Pages by number far from the start are refused once the archive store has to be read, the cursor reaches them.
+     */
+    @Test
+    public void deepPagesByCursorOnly() throws CallException {
+        TransactionApi transactionService = Ctx.get().getTransactionService();
+        String iban = "ARCC" + System.currentTimeMillis();
+        createTransactions(iban, 3000, 10);
+        Ctx.get().getTransactionArchiver().archive(3005);
+
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban);
+        query.setPageSize(100);
+        assertEquals(10, transactionService.queryTransactions(query).size());
+        query.setPageNumber(100);
+        assertThrows(CallException.class, () -> transactionService.queryTransactions(query));
+    }
+
+    /**
+     * Stores some transactions of an account in the live store, one per millisecond from a given date.
+     * @return The transactions, in date order.
+     */
+    private static List<Transaction> createTransactions(String iban, long firstDate, int count) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setReference(iban + "-" + i);
+            transaction.setAccountIban(iban);
+            transaction.setDateEpoch(firstDate + i);
+            transaction.setAmount(100 + i);
+            transactions.add(transaction);
+        }
+        Ctx.get().getPersistenceLive().saveAll(transactions);
+        return transactions;
+    }
+
+    /**
+     * Loads from a store all the transactions of an account, in date order.
+     */
+    private static List<Transaction> load(PersistenceApi datastore, String iban) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (Object transaction : datastore.loadNamed(Queries.TRANSACTIONS_BY_ACCOUNT_DATE_ASC,
+                                                      QueryParameters.with("iban", iban).and("since", Long.MIN_VALUE).and("until", Long.MAX_VALUE),
+                                                      null, null)) {
+            transactions.add((Transaction) transaction);
+        }
+        return transactions;
+    }
+
+    private static List<String> references(List<Transaction> transactions) {
+        List<String> references = new ArrayList<>();
+        for (Transaction transaction : transactions) references.add(transaction.getReference());
+        return references;
+    }
+}
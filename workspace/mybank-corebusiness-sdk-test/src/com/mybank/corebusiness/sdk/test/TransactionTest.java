@@ -5,18 +5,28 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
 import org.junit.Test;
 
+import com.mybank.corebusiness.api.account.AccountApi;
 import com.mybank.corebusiness.api.rest.CallException;
 import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.api.transaction.TransactionCursor;
 import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
 import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
 import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+import com.mybank.corebusiness.api.transaction.TransactionSummary;
 import com.mybank.corebusiness.sdk.AccountClient;
 import com.mybank.corebusiness.sdk.TransactionClient;
 
@@ -361,6 +371,417 @@ public class TransactionTest {
         assertThrows(CallException.class, () -> { transactionClient.createTransaction(transaction); });
     }
     
+    /**
+     * Several transactions sent together, some of them accepted and some rejected.
+     */
+    @Test
+    public void batchTransactions() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test accounts.
+        String iban1 = "ESBATCH000001";
+        String iban2 = "ESBATCH000002";
+        accountClient.createAccount(iban1);
+        accountClient.createAccount(iban2);
+        
+        // Build the batch.
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        Transaction credit1 = new Transaction(); // OK.
+        credit1.setReference("REF_BATCH_1");
+        credit1.setAccountIban(iban1);
+        credit1.setAmount(1000L);
+        credit1.setFee(10L);
+        transactions.add(credit1);
+        Transaction credit2 = new Transaction(); // OK, other account, reference generated.
+        credit2.setAccountIban(iban2);
+        credit2.setAmount(500L);
+        transactions.add(credit2);
+        Transaction debit1 = new Transaction(); // OK, reaching balance 0.
+        debit1.setAccountIban(iban1);
+        debit1.setAmount(-990L);
+        transactions.add(debit1);
+        Transaction debit2 = new Transaction(); // Rejected, negative balance.
+        debit2.setAccountIban(iban1);
+        debit2.setAmount(-1L);
+        transactions.add(debit2);
+        Transaction repeated = new Transaction(); // Rejected, reference repeated.
+        repeated.setReference("REF_BATCH_1");
+        repeated.setAccountIban(iban2);
+        repeated.setAmount(1L);
+        transactions.add(repeated);
+        Transaction unknown = new Transaction(); // Rejected, unknown account.
+        unknown.setAccountIban("ESBATCHUNKNOWN");
+        unknown.setAmount(1L);
+        transactions.add(unknown);
+        
+        // Results in the same order.
+        ArrayList<TransactionResult> results = transactionClient.createTransactions(transactions);
+        assertEquals(transactions.size(), results.size());
+        assertEquals("REF_BATCH_1", results.get(0).getReference());
+        assertNull(results.get(0).getError());
+        assertNotNull(results.get(1).getReference());
+        assertNull(results.get(1).getError());
+        assertNotNull(results.get(2).getReference());
+        assertNull(results.get(3).getReference());
+        assertNotNull(results.get(3).getError());
+        assertNull(results.get(4).getReference());
+        assertNotNull(results.get(4).getError());
+        assertNull(results.get(5).getReference());
+        assertNotNull(results.get(5).getError());
+        
+        // Only accepted transactions modified the balances.
+        assertEquals(0, (long) accountClient.getBalance(iban1));
+        assertEquals(500L, (long) accountClient.getBalance(iban2));
+        
+        // Accepted transactions were stored.
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban1);
+        query.setPageNumber(0);
+        query.setPageSize(10);
+        assertEquals(2, transactionClient.queryTransactions(query).size());
+    }
+    
+    /**
+     * A transaction retried with the same idempotency key is stored only once.
+     */
+    @Test
+    public void idempotentRetries() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test account.
+        String iban = "ESIDEMPOTENT01";
+        accountClient.createAccount(iban);
+        
+        // Same transaction sent twice with the same key, no reference provided.
+        Transaction transaction = new Transaction();
+        transaction.setAccountIban(iban);
+        transaction.setAmount(700L);
+        String reference = transactionClient.createTransaction(transaction, "KEY_IDEMPOTENT_1");
+        assertNotNull(reference);
+        Transaction retry = new Transaction();
+        retry.setAccountIban(iban);
+        retry.setAmount(700L);
+        assertEquals(reference, transactionClient.createTransaction(retry, "KEY_IDEMPOTENT_1"));
+        assertEquals(700L, (long) accountClient.getBalance(iban));
+        
+        // Rejection is replayed as well.
+        Transaction debit = new Transaction();
+        debit.setAccountIban(iban);
+        debit.setAmount(-701L);
+        CallException rejection = assertThrows(CallException.class, () -> { transactionClient.createTransaction(debit, "KEY_IDEMPOTENT_2"); });
+        CallException replayed = assertThrows(CallException.class, () -> { transactionClient.createTransaction(debit, "KEY_IDEMPOTENT_2"); });
+        assertEquals(rejection.getMessage(), replayed.getMessage());
+        
+        // Key reused for a different transaction.
+        retry.setAmount(1L);
+        assertThrows(CallException.class, () -> { transactionClient.createTransaction(retry, "KEY_IDEMPOTENT_1"); });
+        assertEquals(700L, (long) accountClient.getBalance(iban));
+    }
+    
+    /**
+     * References provided by clients cannot have the form of generated ones, so generated references never take them.
+     */
+    @Test
+    public void generatedReferencesFormReserved() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test account.
+        String iban = "ESGENERATED001";
+        accountClient.createAccount(iban);
+        
+        // Generated reference.
+        Transaction transaction = new Transaction();
+        transaction.setAccountIban(iban);
+        transaction.setAmount(1L);
+        String reference = transactionClient.createTransaction(transaction);
+        assertTrue(reference.matches("[0-9A-F]{16}"), "Reference '" + reference + "'");
+        
+        // Provided in that form: refused, alone or in a batch.
+        for (String provided : new String[] { reference, "0123456789ABCDEF", "FFFFFFFFFFFFFFFF" }) {
+            Transaction copy = new Transaction();
+            copy.setReference(provided);
+            copy.setAccountIban(iban);
+            copy.setAmount(1L);
+            assertThrows(CallException.class, () -> { transactionClient.createTransaction(copy); });
+            ArrayList<Transaction> batch = new ArrayList<>();
+            batch.add(copy);
+            assertNotNull(transactionClient.createTransactions(batch).get(0).getError());
+        }
+        
+        // Close to that form: accepted.
+        for (String provided : new String[] { "0123456789abcdef", "0123456789ABCDEG", "0123456789ABCDE" }) {
+            Transaction other = new Transaction();
+            other.setReference(provided);
+            other.setAccountIban(iban);
+            other.setAmount(1L);
+            assertEquals(provided, transactionClient.createTransaction(other));
+        }
+        assertEquals(Long.valueOf(4L), accountClient.getBalance(iban));
+    }
+    
+    /**
+     * Transactions read page by page with a cursor, in the same order as all at once.
+     */
+    @Test
+    public void cursorPagination() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test account with some transactions, two of them on the same date.
+        String iban = "ESCURSOR000001";
+        accountClient.createAccount(iban);
+        long[] dates = { 1000L, 3000L, 2000L, 2000L, 5000L };
+        for (int i = 0; i < dates.length; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setAccountIban(iban);
+            transaction.setDateEpoch(dates[i]);
+            transaction.setAmount(100L + i);
+            transactionClient.createTransaction(transaction);
+        }
+        
+        // All at once.
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban);
+        query.setSortDescending(true);
+        query.setPageSize(10);
+        ArrayList<Transaction> all = transactionClient.queryTransactions(query);
+        assertEquals(dates.length, all.size());
+        
+        // Page by page, 2 per page.
+        ArrayList<Transaction> paged = new ArrayList<>();
+        query.setPageSize(2);
+        while (true) {
+            ArrayList<Transaction> page = transactionClient.queryTransactions(query);
+            paged.addAll(page);
+            if (page.size() < 2) break;
+            query.setCursor(TransactionCursor.after(page.get(page.size() - 1)));
+        }
+        assertEquals(all.size(), paged.size());
+        for (int i = 0; i < all.size(); i++) assertEquals(all.get(i).getReference(), paged.get(i).getReference());
+        
+        // Malformed cursor.
+        query.setCursor("not a cursor");
+        assertThrows(CallException.class, () -> { transactionClient.queryTransactions(query); });
+    }
+    
+    /**
+     * All the transactions of an account are streamed, beyond any page size and across the chunks read from
+     * database (1000 transactions by default), also when a chunk ends among transactions of the same date.
+     */
+    @Test
+    public void streamTransactions() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test account with more transactions than two chunks, seven per date so chunks end within a date.
+        // References grow with the date, so they give the expected order.
+        String iban = "ESSTREAM000001";
+        accountClient.createAccount(iban);
+        int count = 2500;
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setReference(String.format("REF_STREAM_%05d", i));
+            transaction.setAccountIban(iban);
+            transaction.setDateEpoch(1000L + i / 7);
+            transaction.setAmount(10L);
+            transactions.add(transaction);
+        }
+        for (TransactionResult result : transactionClient.createTransactions(transactions)) assertNull(result.getError());
+        
+        // All of them once, in order.
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban);
+        ArrayList<Transaction> streamed = new ArrayList<>();
+        assertEquals(count, transactionClient.streamTransactions(query, streamed::add));
+        assertEquals(count, streamed.size());
+        for (int i = 0; i < count; i++) assertEquals(transactions.get(i).getReference(), streamed.get(i).getReference());
+        
+        // And in reverse order.
+        query.setSortDescending(true);
+        streamed.clear();
+        assertEquals(count, transactionClient.streamTransactions(query, streamed::add));
+        assertEquals(count, streamed.size());
+        for (int i = 0; i < count; i++) assertEquals(transactions.get(count - 1 - i).getReference(), streamed.get(i).getReference());
+        
+        // Invalid query.
+        query.setAccountIban(null);
+        assertThrows(CallException.class, () -> { transactionClient.streamTransactions(query, t -> {}); });
+    }
+    
+    /**
+     * Totals of an account over a time range, whole days and partial ones alike, match its transactions.
+     */
+    @Test
+    public void summarizeTransactions() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test account with transactions over several days, some at their very first and last milliseconds.
+        String iban = "ESSUMMARY00001";
+        accountClient.createAccount(iban);
+        long day = 24L * 60 * 60 * 1000;
+        long start = 17000 * day;
+        long[] dates = { start, start + 1000, start + day - 1, start + day, start + 2 * day + 5000, start + 3 * day - 1, start + 4 * day };
+        long[] amounts = { 500L, -100L, 300L, -50L, 200L, -25L, 1000L };
+        for (int i = 0; i < dates.length; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setAccountIban(iban);
+            transaction.setDateEpoch(dates[i]);
+            transaction.setAmount(amounts[i]);
+            transaction.setFee(i % 2 == 0 ? 1L : null);
+            transactionClient.createTransaction(transaction);
+        }
+        
+        // Whole history.
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban);
+        TransactionSummary summary = transactionClient.summarizeTransactions(query);
+        assertEquals(iban, summary.getAccountIban());
+        assertEquals(2000L, summary.getCredits());
+        assertEquals(-175L, summary.getDebits());
+        assertEquals(4L, summary.getFees());
+        assertEquals(4L, summary.getCreditCount());
+        assertEquals(3L, summary.getDebitCount());
+        
+        // Ranges starting and ending within a day: same totals as the transactions streamed.
+        long[][] ranges = { { start + 1, start + 3 * day - 2 }, { start + 1000, start + day }, { start + 500, start + 600 }, { start, start + 4 * day } };
+        for (long[] range : ranges) {
+            query.setSince(range[0]);
+            query.setUntil(range[1]);
+            long[] expected = new long[5];
+            transactionClient.streamTransactions(query, transaction -> {
+                if (transaction.getAmount() >= 0) {
+                    expected[0] += transaction.getAmount();
+                    expected[3]++;
+                } else {
+                    expected[1] += transaction.getAmount();
+                    expected[4]++;
+                }
+                if (transaction.getFee() != null) expected[2] += transaction.getFee();
+            });
+            summary = transactionClient.summarizeTransactions(query);
+            assertEquals(expected[0], summary.getCredits());
+            assertEquals(expected[1], summary.getDebits());
+            assertEquals(expected[2], summary.getFees());
+            assertEquals(expected[3], summary.getCreditCount());
+            assertEquals(expected[4], summary.getDebitCount());
+        }
+        
+        // Invalid queries.
+        query.setSince(start + day);
+        query.setUntil(start);
+        assertThrows(CallException.class, () -> { transactionClient.summarizeTransactions(query); });
+        query.setAccountIban(null);
+        assertThrows(CallException.class, () -> { transactionClient.summarizeTransactions(query); });
+    }
+    
+    @Test
+    public void binaryWireFormat() throws CallException {
+        // Service access clients, in the compact binary format.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL, true);
+        AccountClient accountClient = new AccountClient(SERVER_URL, true);
+        
+        // Create test account, with a balance and some transactions.
+        String iban = "ESBINARY000001";
+        accountClient.createAccount(iban);
+        assertTrue(accountClient.checkAccount(iban));
+        accountClient.setBalance(iban, 1000L);
+        assertEquals(Long.valueOf(1000L), accountClient.getBalance(iban));
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setAccountIban(iban);
+            transaction.setDateEpoch(1500000000000L + i);
+            transaction.setAmount(-100L * (i + 1));
+            transaction.setFee(i == 0 ? null : 5L);
+            transaction.setDescription("Binary \"" + i + "\" \u00e1");
+            transactions.add(transaction);
+        }
+        String reference = transactionClient.createTransaction(transactions.get(0));
+        assertNotNull(reference);
+        ArrayList<TransactionResult> results = transactionClient.createTransactions(new ArrayList<>(transactions.subList(1, 3)));
+        assertEquals(2, results.size());
+        for (TransactionResult result : results) assertNull(result.getError());
+        
+        // Same results as in JSON.
+        TransactionQuery query = new TransactionQuery();
+        query.setAccountIban(iban);
+        query.setPageSize(10);
+        ArrayList<Transaction> binary = transactionClient.queryTransactions(query);
+        ArrayList<Transaction> json = new TransactionClient(SERVER_URL).queryTransactions(query);
+        assertEquals(3, binary.size());
+        for (int i = 0; i < binary.size(); i++) {
+            assertEquals(json.get(i).getReference(), binary.get(i).getReference());
+            assertEquals(json.get(i).getAmount(), binary.get(i).getAmount());
+            assertEquals(json.get(i).getFee(), binary.get(i).getFee());
+            assertEquals(json.get(i).getDescription(), binary.get(i).getDescription());
+        }
+        assertEquals(Long.valueOf(1000L - 600L - 10L), accountClient.getBalance(iban));
+        TransactionStatusRequest statusRequest = new TransactionStatusRequest();
+        statusRequest.setReference(reference);
+        statusRequest.setChannel("INTERNAL");
+        assertEquals(Long.valueOf(-100L), transactionClient.getTransactionStatus(statusRequest).getAmount());
+        assertEquals(3L, transactionClient.summarizeTransactions(query).getDebitCount());
+        
+        // Errors still reported.
+        query.setAccountIban(null);
+        assertThrows(CallException.class, () -> { transactionClient.queryTransactions(query); });
+    }
+
+    /**
+     * Balances and account checks read again are only revalidated while unchanged, and read anew once changed.
+     * Any tag ("*") only holds for existing accounts.
+     */
+    @Test
+    public void conditionalAccountReads() throws CallException {
+        // Service access clients.
+        TransactionClient transactionClient = new TransactionClient(SERVER_URL);
+        AccountClient accountClient = new AccountClient(SERVER_URL);
+        
+        // Create test account.
+        String iban = "ESETAG000001";
+        accountClient.createAccount(iban);
+        
+        // Read again while unchanged: revalidated.
+        assertTrue(accountClient.checkAccount(iban));
+        assertTrue(accountClient.checkAccount(iban));
+        assertEquals(Long.valueOf(0L), accountClient.getBalance(iban));
+        assertEquals(Long.valueOf(0L), accountClient.getBalance(iban));
+        assertEquals(2L, accountClient.getRevalidatedCount());
+        
+        // Changed by this client or by a posting: read anew.
+        accountClient.setBalance(iban, 500L);
+        assertEquals(Long.valueOf(500L), accountClient.getBalance(iban));
+        Transaction transaction = new Transaction();
+        transaction.setAccountIban(iban);
+        transaction.setAmount(-200L);
+        assertNotNull(transactionClient.createTransaction(transaction));
+        assertEquals(Long.valueOf(300L), accountClient.getBalance(iban));
+        assertEquals(Long.valueOf(300L), accountClient.getBalance(iban));
+        assertEquals(3L, accountClient.getRevalidatedCount());
+        
+        // Missing accounts still reported.
+        assertEquals(false, accountClient.checkAccount("ESETAG999999"));
+        assertThrows(CallException.class, () -> { accountClient.getBalance("ESETAG999999"); });
+        
+        // Any tag: revalidated for existing accounts only.
+        WebTarget accounts = ClientBuilder.newClient().target(SERVER_URL).path(AccountApi.SERVICE_ROOT).path(AccountApi.SERVICE_VERSION)
+                                          .path(AccountApi.SERVICE_PATH).path(AccountApi.RES_ACCOUNT);
+        assertEquals(304, accounts.path(iban).request(MediaType.APPLICATION_JSON).header(HttpHeaders.IF_NONE_MATCH, "*").get().getStatus());
+        assertEquals(304, accounts.path(iban).path(AccountApi.RES_BALANCE).request(MediaType.APPLICATION_JSON).header(HttpHeaders.IF_NONE_MATCH, "*").get().getStatus());
+        assertEquals(200, accounts.path("ESETAG999999").request(MediaType.APPLICATION_JSON).header(HttpHeaders.IF_NONE_MATCH, "*").get().getStatus());
+    }
+    
     private static final String SERVER_URL = "http://localhost:8080/mybank-corebusiness-backend";
 }
 
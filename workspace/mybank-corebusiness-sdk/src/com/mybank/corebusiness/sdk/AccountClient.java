@@ -1,18 +1,26 @@
 package com.mybank.corebusiness.sdk;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.mybank.corebusiness.api.account.AccountApi;
+import com.mybank.corebusiness.api.rest.BinaryCodec;
 import com.mybank.corebusiness.api.rest.CallException;
 
 /**
  * Provides access to bank accounts service's features.
+ * Balances and account checks are kept along with their ETag, for the most recently read accounts, so
+ * asking again only revalidates them: the service answers with no entity while unchanged.
  * TODO: the account service is under construction. 
  *       To be replaced by the actual account service access client (interface will probably change). 
  */
@@ -23,6 +31,17 @@ public class AccountClient implements AccountApi {
      * @param appUrl Example: "http://localhost:8080/application"
      */
     public AccountClient(String appUrl) {
+        this(appUrl, false);
+    }
+
+    /**
+     * Base URL where the remote service is located, and format of the calls.
+     * @param appUrl Example: "http://localhost:8080/application"
+     * @param binary Whether to exchange entities in the compact binary format rather than in JSON: smaller
+     *               and cheaper to encode, for service-to-service traffic.
+     */
+    public AccountClient(String appUrl, boolean binary) {
+        mMediaType = binary ? BinaryCodec.MEDIA_TYPE : MediaType.APPLICATION_JSON;
         mServiceUrl = appUrl + "/" + 
                       AccountApi.SERVICE_ROOT + "/" + 
                       AccountApi.SERVICE_VERSION;
@@ -30,6 +49,8 @@ public class AccountClient implements AccountApi {
         // Initializing REST requests.
         mClient = ClientBuilder.newClient();
         mClient.register(GsonJerseyProvider.class);
+        mClient.register(BinaryJerseyProvider.class);
+        mClient.register(CompressionClientFilter.class);
     }
     
     @Override
@@ -39,9 +60,9 @@ public class AccountClient implements AccountApi {
                 .path(AccountApi.RES_ACCOUNT);
          
         // Remote call.
-        Response response = webTarget.request(MT)
+        Response response = webTarget.request(mMediaType)
                 .cookie(null) // TODO
-                .post(Entity.entity(iban, MT));
+                .post(Entity.entity(iban, mMediaType));
 
         // Extract return value or exception.
         if (response.getStatus() == Status.OK.getStatusCode()) {
@@ -61,18 +82,8 @@ public class AccountClient implements AccountApi {
                 .path(AccountApi.RES_ACCOUNT)
                 .path(iban);
          
-        // Remote call.
-        Response response = webTarget.request(MT)
-                .cookie(null) // TODO
-                .get();
-        
-        // Extract return value or exception.
-        if (response.getStatus() == Status.OK.getStatusCode()) {
-            return response.readEntity(Boolean.class);
-        } else {
-            String msg = response.readEntity(String.class);
-            throw new CallException(CallException.extractMsg(msg));
-        }
+        // Remote call, revalidating the value known.
+        return getValidated(webTarget, Boolean.class);
     }
 
     @Override
@@ -83,18 +94,8 @@ public class AccountClient implements AccountApi {
                 .path(iban)
                 .path(AccountApi.RES_BALANCE);
          
-        // Remote call.
-        Response response = webTarget.request(MT)
-                .cookie(null) // TODO
-                .get();
-        
-        // Extract return value or exception.
-        if (response.getStatus() == Status.OK.getStatusCode()) {
-            return response.readEntity(Long.class);
-        } else {
-            String msg = response.readEntity(String.class);
-            throw new CallException(CallException.extractMsg(msg));
-        }
+        // Remote call, revalidating the value known.
+        return getValidated(webTarget, Long.class);
     }
 
     @Override
@@ -106,9 +107,9 @@ public class AccountClient implements AccountApi {
                 .path(AccountApi.RES_BALANCE);
          
         // Remote call.
-        Response response = webTarget.request(MT)
+        Response response = webTarget.request(mMediaType)
                 .cookie(null) // TODO
-                .put(Entity.entity(balance, MT));
+                .put(Entity.entity(balance, mMediaType));
 
         // Extract return value or exception.
         if (response.getStatus() == Status.OK.getStatusCode()) {
@@ -121,12 +122,83 @@ public class AccountClient implements AccountApi {
         }
     }
 
+    /** Number of values confirmed as unchanged by the service, so not sent again. */
+    public long getRevalidatedCount() {
+        synchronized (mValidated) {
+            return mRevalidated;
+        }
+    }
+
+    /**
+     * Reads a value, or only confirms the one kept if the service still has it under the same ETag.
+     * Values come from GET requests only: their ETag identifies them.
+     */
+    private <T> T getValidated(WebTarget webTarget, Class<T> type) throws CallException {
+        // Value known, if any.
+        String key = webTarget.getUri().toString();
+        Validated known;
+        synchronized (mValidated) {
+            known = mValidated.get(key);
+        }
+        
+        // Remote call.
+        Invocation.Builder request = webTarget.request(mMediaType)
+                .cookie(null); // TODO
+        if (known != null) request.header(HttpHeaders.IF_NONE_MATCH, known.mETag);
+        Response response = request.get();
+        
+        // Extract return value or exception.
+        if (response.getStatus() == Status.NOT_MODIFIED.getStatusCode() && known != null) {
+            response.close();
+            synchronized (mValidated) {
+                mRevalidated++;
+            }
+            return type.cast(known.mValue);
+        } else if (response.getStatus() == Status.OK.getStatusCode()) {
+            T value = response.readEntity(type);
+            String eTag = response.getHeaderString(HttpHeaders.ETAG);
+            synchronized (mValidated) {
+                if (eTag != null) mValidated.put(key, new Validated(eTag, value));
+                else mValidated.remove(key);
+            }
+            return value;
+        } else {
+            String msg = response.readEntity(String.class);
+            throw new CallException(CallException.extractMsg(msg));
+        }
+    }
+
+    /**
+     * Value read along with its ETag.
+     */
+    private static class Validated {
+        Validated(String eTag, Object value) {
+            mETag = eTag;
+            mValue = value;
+        }
+        final String mETag;
+        final Object mValue;
+    }
+
     /** Base URI for all calls to remote service. */
     private String mServiceUrl;
     
     /** REST request provider used for all calls from this instance. */
     private Client mClient;
     
-    /** REST media type used for all calls. */
-    private static final String MT = MediaType.APPLICATION_JSON;
+    /** REST media type used for all calls: JSON or the compact binary format. */
+    private final String mMediaType;
+
+    /** Values read with their ETag by resource URI, least recently used first. */
+    @SuppressWarnings("serial")
+    private final Map<String, Validated> mValidated = new LinkedHashMap<String, Validated>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Validated> eldest) {
+            return size() > MAX_VALIDATED;
+        }
+    };
+    private long mRevalidated;
+
+    /** Most values kept for revalidation. */
+    private static final int MAX_VALIDATED = 1024;
 }
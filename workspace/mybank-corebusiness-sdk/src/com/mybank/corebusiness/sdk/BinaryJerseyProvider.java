@@ -0,0 +1,94 @@
+package com.mybank.corebusiness.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import com.mybank.corebusiness.api.rest.BinaryCodec;
+
+/**
+ * Entities in the compact binary format of {@link BinaryCodec}, for the clients asking for it.
+ * Malformed entities are answered as a bad request.
+ */
+@Provider
+@Produces(BinaryCodec.MEDIA_TYPE)
+@Consumes(BinaryCodec.MEDIA_TYPE)
+public class BinaryJerseyProvider implements MessageBodyWriter<Object>,
+        MessageBodyReader<Object> {
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return BinaryCodec.isReadable(type);
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+            throws IOException {
+        try {
+            return BinaryCodec.read(type, genericType, new BufferedInputStream(entityStream, BUFFER_SIZE));
+        } catch (EOFException | StreamCorruptedException e) {
+            throw new MalformedEntityException(e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return BinaryCodec.isWriteable(type);
+    }
+
+    @Override
+    public long getSize(Object object, Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object object, Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders,
+            OutputStream entityStream) throws IOException,
+            WebApplicationException {
+        OutputStream out = new BufferedOutputStream(entityStream, BUFFER_SIZE);
+        BinaryCodec.write(object, out);
+        out.flush();
+    }
+
+    /**
+     * Malformed binary entity, answered as a bad request with the decoder message.
+     * No stack trace: it says nothing about the server.
+     */
+    @SuppressWarnings("serial")
+    private static class MalformedEntityException extends WebApplicationException {
+        MalformedEntityException(String message) {
+            super(Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN).entity("Invalid request: malformed binary entity: " + message).build());
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /** Bytes read from or written into the entity stream at once. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+}
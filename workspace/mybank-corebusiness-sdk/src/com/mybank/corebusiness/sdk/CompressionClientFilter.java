@@ -0,0 +1,44 @@
+package com.mybank.corebusiness.sdk;
+
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+/**
+ * Asks for compressed responses (gzip or deflate) and decompresses them while read, transparently.
+ * The service only compresses entities beyond a size threshold, so most responses come as they are.
+ */
+public class CompressionClientFilter implements ClientRequestFilter, ReaderInterceptor {
+
+    @Override
+    public void filter(ClientRequestContext requestContext) {
+        if (!requestContext.getHeaders().containsKey(HttpHeaders.ACCEPT_ENCODING)) requestContext.getHeaders().putSingle(HttpHeaders.ACCEPT_ENCODING, ACCEPTED);
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException, WebApplicationException {
+        String encoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        if (encoding != null) {
+            encoding = encoding.trim().toLowerCase();
+            if (encoding.equals("gzip") || encoding.equals("x-gzip")) context.setInputStream(new GZIPInputStream(context.getInputStream(), BUFFER_SIZE));
+            else if (encoding.equals("deflate")) context.setInputStream(new InflaterInputStream(context.getInputStream()));
+            else return context.proceed();
+            context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+            context.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+        }
+        return context.proceed();
+    }
+
+    /** Encodings asked for, preferred first. */
+    private static final String ACCEPTED = "gzip, deflate";
+
+    /** Bytes decompressed at once. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+}
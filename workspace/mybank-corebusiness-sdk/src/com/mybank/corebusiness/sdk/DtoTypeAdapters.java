@@ -0,0 +1,361 @@
+package com.mybank.corebusiness.sdk;
+
+import java.io.IOException;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mybank.corebusiness.api.account.BankAccount;
+import com.mybank.corebusiness.api.transaction.Transaction;
+import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
+import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
+import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+import com.mybank.corebusiness.api.transaction.TransactionSummary;
+
+/**
+ * Streaming adapters of the API DTOs, so they are (de)serialized field by field without reflection.
+ * The JSON is the same as the one of the reflective adapters of Gson: fields named and ordered as declared,
+ * null fields left out, unknown fields ignored.
+ * Stateless, thread-safe.
+ */
+public class DtoTypeAdapters {
+
+    /**
+     * Registers all the adapters.
+     */
+    public static GsonBuilder register(GsonBuilder gsonBuilder) {
+        return gsonBuilder.registerTypeAdapter(Transaction.class, TRANSACTION)
+                          .registerTypeAdapter(TransactionQuery.class, TRANSACTION_QUERY)
+                          .registerTypeAdapter(TransactionResult.class, TRANSACTION_RESULT)
+                          .registerTypeAdapter(TransactionStatusRequest.class, TRANSACTION_STATUS_REQUEST)
+                          .registerTypeAdapter(TransactionStatusResponse.class, TRANSACTION_STATUS_RESPONSE)
+                          .registerTypeAdapter(TransactionSummary.class, TRANSACTION_SUMMARY)
+                          .registerTypeAdapter(BankAccount.class, BANK_ACCOUNT);
+    }
+
+    public static final TypeAdapter<Transaction> TRANSACTION = new TypeAdapter<Transaction>() {
+        @Override
+        public void write(JsonWriter out, Transaction value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "reference", value.getReference());
+            writeString(out, "accountIban", value.getAccountIban());
+            writeLong(out, "dateEpoch", value.getDateEpoch());
+            out.name("amount").value(value.getAmount());
+            writeLong(out, "fee", value.getFee());
+            writeString(out, "description", value.getDescription());
+            out.endObject();
+        }
+
+        @Override
+        public Transaction read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Transaction value = new Transaction();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "reference": value.setReference(readString(in)); break;
+                    case "accountIban": value.setAccountIban(readString(in)); break;
+                    case "dateEpoch": value.setDateEpoch(readLong(in)); break;
+                    case "amount": value.setAmount(readLong(in, 0)); break;
+                    case "fee": value.setFee(readLong(in)); break;
+                    case "description": value.setDescription(readString(in)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<TransactionQuery> TRANSACTION_QUERY = new TypeAdapter<TransactionQuery>() {
+        @Override
+        public void write(JsonWriter out, TransactionQuery value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "accountIban", value.getAccountIban());
+            out.name("sortByAmount").value(value.isSortByAmount());
+            out.name("sortDescending").value(value.isSortDescending());
+            out.name("since").value(value.getSince());
+            out.name("until").value(value.getUntil());
+            out.name("pageNumber").value(value.getPageNumber());
+            out.name("pageSize").value(value.getPageSize());
+            writeString(out, "cursor", value.getCursor());
+            out.endObject();
+        }
+
+        @Override
+        public TransactionQuery read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            TransactionQuery value = new TransactionQuery();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "accountIban": value.setAccountIban(readString(in)); break;
+                    case "sortByAmount": value.setSortByAmount(readBoolean(in)); break;
+                    case "sortDescending": value.setSortDescending(readBoolean(in)); break;
+                    case "since": value.setSince(readLong(in, 0)); break;
+                    case "until": value.setUntil(readLong(in, 0)); break;
+                    case "pageNumber": value.setPageNumber(readInt(in)); break;
+                    case "pageSize": value.setPageSize(readInt(in)); break;
+                    case "cursor": value.setCursor(readString(in)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<TransactionResult> TRANSACTION_RESULT = new TypeAdapter<TransactionResult>() {
+        @Override
+        public void write(JsonWriter out, TransactionResult value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "reference", value.getReference());
+            writeString(out, "error", value.getError());
+            out.endObject();
+        }
+
+        @Override
+        public TransactionResult read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            TransactionResult value = new TransactionResult();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "reference": value.setReference(readString(in)); break;
+                    case "error": value.setError(readString(in)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<TransactionStatusRequest> TRANSACTION_STATUS_REQUEST = new TypeAdapter<TransactionStatusRequest>() {
+        @Override
+        public void write(JsonWriter out, TransactionStatusRequest value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "reference", value.getReference());
+            writeString(out, "channel", value.getChannel());
+            out.endObject();
+        }
+
+        @Override
+        public TransactionStatusRequest read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            TransactionStatusRequest value = new TransactionStatusRequest();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "reference": value.setReference(readString(in)); break;
+                    case "channel": value.setChannel(readString(in)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<TransactionStatusResponse> TRANSACTION_STATUS_RESPONSE = new TypeAdapter<TransactionStatusResponse>() {
+        @Override
+        public void write(JsonWriter out, TransactionStatusResponse value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "reference", value.getReference());
+            writeString(out, "status", value.getStatus());
+            writeLong(out, "amount", value.getAmount());
+            writeLong(out, "fee", value.getFee());
+            out.endObject();
+        }
+
+        @Override
+        public TransactionStatusResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            TransactionStatusResponse value = new TransactionStatusResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "reference": value.setReference(readString(in)); break;
+                    case "status": value.setStatus(readString(in)); break;
+                    case "amount": value.setAmount(readLong(in)); break;
+                    case "fee": value.setFee(readLong(in)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<TransactionSummary> TRANSACTION_SUMMARY = new TypeAdapter<TransactionSummary>() {
+        @Override
+        public void write(JsonWriter out, TransactionSummary value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "accountIban", value.getAccountIban());
+            out.name("since").value(value.getSince());
+            out.name("until").value(value.getUntil());
+            out.name("credits").value(value.getCredits());
+            out.name("debits").value(value.getDebits());
+            out.name("fees").value(value.getFees());
+            out.name("creditCount").value(value.getCreditCount());
+            out.name("debitCount").value(value.getDebitCount());
+            out.endObject();
+        }
+
+        @Override
+        public TransactionSummary read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            TransactionSummary value = new TransactionSummary();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "accountIban": value.setAccountIban(readString(in)); break;
+                    case "since": value.setSince(readLong(in, 0)); break;
+                    case "until": value.setUntil(readLong(in, 0)); break;
+                    case "credits": value.setCredits(readLong(in, 0)); break;
+                    case "debits": value.setDebits(readLong(in, 0)); break;
+                    case "fees": value.setFees(readLong(in, 0)); break;
+                    case "creditCount": value.setCreditCount(readLong(in, 0)); break;
+                    case "debitCount": value.setDebitCount(readLong(in, 0)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    public static final TypeAdapter<BankAccount> BANK_ACCOUNT = new TypeAdapter<BankAccount>() {
+        @Override
+        public void write(JsonWriter out, BankAccount value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "accountIban", value.getAccountIban());
+            out.name("balance").value(value.getBalance());
+            out.name("version").value(value.getVersion());
+            out.endObject();
+        }
+
+        @Override
+        public BankAccount read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            BankAccount value = new BankAccount();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "accountIban": value.setAccountIban(readString(in)); break;
+                    case "balance": value.setBalance(readLong(in, 0)); break;
+                    case "version": value.setVersion(readLong(in, 0)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+    };
+
+    /**
+     * Writes a field holding text, unless null.
+     */
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) out.name(name).value(value);
+    }
+
+    /**
+     * Writes a field holding an optional number, unless null.
+     */
+    private static void writeLong(JsonWriter out, String name, Long value) throws IOException {
+        if (value != null) out.name(name).value(value.longValue());
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static Long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextLong();
+    }
+
+    /**
+     * Reads a number, a null value taken as the default one (the field is left as initialized by the reflective adapters).
+     */
+    private static long readLong(JsonReader in, long defaultValue) throws IOException {
+        Long value = readLong(in);
+        return value != null ? value : defaultValue;
+    }
+
+    private static int readInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+
+    private static boolean readBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        return in.nextBoolean();
+    }
+}
@@ -4,26 +4,53 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * JSON entities through Gson, for the clients and, through a subclass, for the server.
+ * Entities are encoded in UTF-8 straight into a byte buffer taken from a pool. Entities fitting in it are
+ * written at once, larger ones are streamed (chunked) as the buffer fills up. On the server, those written
+ * at once are given their Content-Length. Not on the clients: their connector sets it on its own and refuses it as a header.
+ * Malformed JSON is answered as a bad request.
+ */
 @Provider
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
 public class GsonJerseyProvider implements MessageBodyWriter<Object>,
         MessageBodyReader<Object> {
 
-    private static final String UTF_8 = "UTF-8";
+    /**
+     * Provider for the clients.
+     */
+    public GsonJerseyProvider() {
+        this(false);
+    }
+
+    /**
+     * @param contentLength Whether the Content-Length header is set on entities written at once.
+     */
+    protected GsonJerseyProvider(boolean contentLength) {
+        mContentLength = contentLength;
+    }
 
     @Override
     public boolean isReadable(Class<?> type, Type genericType,
@@ -36,16 +63,15 @@ public class GsonJerseyProvider implements MessageBodyWriter<Object>,
             Annotation[] annotations, MediaType mediaType,
             MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
             throws IOException {
-        InputStreamReader streamReader = new InputStreamReader(entityStream,
-                UTF_8);
+        // The reader decodes the stream block by block, Gson reads it block by block.
+        Reader streamReader = new InputStreamReader(entityStream, StandardCharsets.UTF_8);
         try {
             return GsonUtil.getInstance().fromJson(streamReader, genericType);
-        } catch (com.google.gson.JsonSyntaxException e) {
-            // Log exception
+        } catch (JsonSyntaxException e) {
+            throw new MalformedJsonException(e.getMessage());
         } finally {
             streamReader.close();
         }
-        return null;
     }
 
     @Override
@@ -57,7 +83,7 @@ public class GsonJerseyProvider implements MessageBodyWriter<Object>,
     @Override
     public long getSize(Object object, Class<?> type, Type genericType,
             Annotation[] annotations, MediaType mediaType) {
-        return -1;
+        return -1; // Set as a header by writeTo() when known.
     }
 
     @Override
@@ -66,11 +92,173 @@ public class GsonJerseyProvider implements MessageBodyWriter<Object>,
             MultivaluedMap<String, Object> httpHeaders,
             OutputStream entityStream) throws IOException,
             WebApplicationException {
-        OutputStreamWriter writer = new OutputStreamWriter(entityStream, UTF_8);
+        EntityBuffer buffer = BUFFERS.poll();
+        if (buffer == null) buffer = new EntityBuffer();
+        buffer.start(entityStream, mContentLength ? httpHeaders : null);
         try {
-            GsonUtil.getInstance().toJson(object, genericType, writer);
+            GsonUtil.getInstance().toJson(object, genericType, buffer);
+            buffer.finish();
         } finally {
-            writer.close();
+            buffer.release();
+            BUFFERS.offer(buffer); // Dropped if the pool is full.
+        }
+    }
+
+    /**
+     * UTF-8 encoder of an entity into a byte buffer, spilling into the entity stream whenever full.
+     * Not thread-safe: one entity at a time.
+     */
+    private static class EntityBuffer extends Writer {
+
+        /**
+         * @param headers Headers to set the Content-Length into, null for none.
+         */
+        void start(OutputStream out, MultivaluedMap<String, Object> headers) {
+            mOut = out;
+            mHeaders = headers;
+            mCount = 0;
+            mStreaming = false;
+            mHighSurrogate = 0;
+        }
+
+        /**
+         * Writes what is left in the buffer, with the Content-Length if nothing was written yet and headers were given.
+         */
+        void finish() throws IOException {
+            if (mHighSurrogate != 0) {
+                mHighSurrogate = 0;
+                writeByte('?');
+            }
+            if (!mStreaming && mHeaders != null) mHeaders.putSingle(HttpHeaders.CONTENT_LENGTH, Integer.toString(mCount));
+            mOut.write(mBytes, 0, mCount);
+            mCount = 0;
+        }
+
+        void release() {
+            mOut = null;
+            mHeaders = null;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            char ch = (char) c;
+            if (ch < 0x80 && mHighSurrogate == 0) {
+                if (mCount == mBytes.length) spill();
+                mBytes[mCount++] = (byte) ch;
+            } else {
+                encode(ch);
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                char ch = chars[i];
+                if (ch < 0x80 && mHighSurrogate == 0 && mCount < mBytes.length) mBytes[mCount++] = (byte) ch;
+                else write(ch);
+            }
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                char ch = text.charAt(i);
+                if (ch < 0x80 && mHighSurrogate == 0 && mCount < mBytes.length) mBytes[mCount++] = (byte) ch;
+                else write(ch);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Written by finish() only: the Content-Length is not known before.
+        }
+
+        @Override
+        public void close() {
+            // The entity stream is closed by its owner.
+        }
+
+        /**
+         * Encodes a character other than a plain ASCII one, surrogate pairs into one code point.
+         * Unpaired surrogates are written as '?', as the standard encoder does.
+         */
+        private void encode(char ch) throws IOException {
+            if (mHighSurrogate != 0) {
+                char high = mHighSurrogate;
+                mHighSurrogate = 0;
+                if (Character.isLowSurrogate(ch)) {
+                    int codePoint = Character.toCodePoint(high, ch);
+                    writeByte(0xF0 | (codePoint >> 18));
+                    writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                    writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                    writeByte(0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                writeByte('?');
+            }
+            if (ch < 0x80) {
+                writeByte(ch);
+            } else if (ch < 0x800) {
+                writeByte(0xC0 | (ch >> 6));
+                writeByte(0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch)) {
+                mHighSurrogate = ch;
+            } else if (Character.isLowSurrogate(ch)) {
+                writeByte('?');
+            } else {
+                writeByte(0xE0 | (ch >> 12));
+                writeByte(0x80 | ((ch >> 6) & 0x3F));
+                writeByte(0x80 | (ch & 0x3F));
+            }
         }
+
+        private void writeByte(int b) throws IOException {
+            if (mCount == mBytes.length) spill();
+            mBytes[mCount++] = (byte) b;
+        }
+
+        /**
+         * Writes the full buffer into the entity stream: from now on the entity is streamed, its length unknown.
+         */
+        private void spill() throws IOException {
+            mStreaming = true;
+            mOut.write(mBytes, 0, mCount);
+            mCount = 0;
+        }
+
+        private final byte[] mBytes = new byte[BUFFER_SIZE];
+        private int mCount;
+        private OutputStream mOut;
+        private MultivaluedMap<String, Object> mHeaders;
+        private boolean mStreaming;
+        private char mHighSurrogate;
     }
-}
\ No newline at end of file
+
+    /**
+     * Malformed JSON entity, answered as a bad request with the parser message.
+     * No stack trace: it says nothing about the server.
+     */
+    @SuppressWarnings("serial")
+    private static class MalformedJsonException extends WebApplicationException {
+        MalformedJsonException(String message) {
+            super(Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN).entity("Invalid request: malformed JSON: " + message).build());
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /** Whether entities written at once are given their Content-Length. */
+    private final boolean mContentLength;
+
+    /** Largest entity written at once. Larger ones are streamed. */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Most entity buffers kept for reuse. */
+    private static final int BUFFER_POOL_SIZE = 256;
+
+    /** Entity buffers not in use. Pooled rather than kept by each thread, as request threads may be virtual ones. */
+    private static final BlockingQueue<EntityBuffer> BUFFERS = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+}
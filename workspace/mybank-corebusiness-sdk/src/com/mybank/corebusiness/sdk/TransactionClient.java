@@ -1,22 +1,32 @@
 package com.mybank.corebusiness.sdk;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import com.mybank.corebusiness.api.rest.BinaryCodec;
 import com.mybank.corebusiness.api.rest.CallException;
 import com.mybank.corebusiness.api.transaction.Transaction;
 import com.mybank.corebusiness.api.transaction.TransactionApi;
 import com.mybank.corebusiness.api.transaction.TransactionQuery;
+import com.mybank.corebusiness.api.transaction.TransactionResult;
 import com.mybank.corebusiness.api.transaction.TransactionStatusRequest;
 import com.mybank.corebusiness.api.transaction.TransactionStatusResponse;
+import com.mybank.corebusiness.api.transaction.TransactionSummary;
 
 /**
  * Provides access to transaction service's features. 
@@ -28,6 +38,17 @@ public class TransactionClient implements TransactionApi {
      * @param appUrl Example: "http://localhost:8080/application"
      */
     public TransactionClient(String appUrl) {
+        this(appUrl, false);
+    }
+
+    /**
+     * Base URL where the remote service is located, and format of the calls.
+     * @param appUrl Example: "http://localhost:8080/application"
+     * @param binary Whether to exchange entities in the compact binary format rather than in JSON: smaller
+     *               and cheaper to encode, for service-to-service traffic.
+     */
+    public TransactionClient(String appUrl, boolean binary) {
+        mMediaType = binary ? BinaryCodec.MEDIA_TYPE : MediaType.APPLICATION_JSON;
         mServiceUrl = appUrl + "/" + 
                       TransactionApi.SERVICE_ROOT + "/" + 
                       TransactionApi.SERVICE_VERSION;
@@ -35,18 +56,26 @@ public class TransactionClient implements TransactionApi {
         // Initializing REST requests.
         mClient = ClientBuilder.newClient();
         mClient.register(GsonJerseyProvider.class);
+        mClient.register(BinaryJerseyProvider.class);
+        mClient.register(CompressionClientFilter.class);
     }
     
     @Override
     public String createTransaction(Transaction transaction) throws CallException {
+        return createTransaction(transaction, null);
+    }
+
+    @Override
+    public String createTransaction(Transaction transaction, String idempotencyKey) throws CallException {
         // Build full URL for the request.
         WebTarget webTarget = mClient.target(mServiceUrl).path(TransactionApi.SERVICE_PATH)
                 .path(TransactionApi.RES_TRANSACTION);
 
         // Remote call.
-        Response response = webTarget.request(MT)
+        Response response = webTarget.request(mMediaType)
                 .cookie(null) // TODO
-                .post(Entity.entity(transaction, MT));
+                .header(TransactionApi.HEADER_IDEMPOTENCY_KEY, idempotencyKey)
+                .post(Entity.entity(transaction, mMediaType));
 
         // Extract return value or exception.
         if (response.getStatus() == Status.OK.getStatusCode()) {
@@ -57,6 +86,26 @@ public class TransactionClient implements TransactionApi {
         }
     }
 
+    @Override
+    public ArrayList<TransactionResult> createTransactions(ArrayList<Transaction> transactions) throws CallException {
+        // Build full URL for the request.
+        WebTarget webTarget = mClient.target(mServiceUrl).path(TransactionApi.SERVICE_PATH)
+                .path(TransactionApi.RES_BATCH);
+
+        // Remote call.
+        Response response = webTarget.request(mMediaType)
+                .cookie(null) // TODO
+                .post(Entity.entity(new GenericEntity<ArrayList<Transaction>>(transactions) {}, mMediaType));
+
+        // Extract return value or exception.
+        if (response.getStatus() == Status.OK.getStatusCode()) {
+            return response.readEntity(new GenericType<ArrayList<TransactionResult>>() {});
+        } else {
+            String msg = response.readEntity(String.class);
+            throw new CallException(CallException.extractMsg(msg));
+        }
+    }
+
     @Override
     public ArrayList<Transaction> queryTransactions(TransactionQuery query) throws CallException {
         // Build full URL for the request.
@@ -64,9 +113,9 @@ public class TransactionClient implements TransactionApi {
                 .path(TransactionApi.RES_QUERY);
 
         // Remote call.
-        Response response = webTarget.request(MT)
+        Response response = webTarget.request(mMediaType)
                 .cookie(null) // TODO
-                .post(Entity.entity(query, MT));
+                .post(Entity.entity(query, mMediaType));
 
         // Extract return value or exception.
         if (response.getStatus() == Status.OK.getStatusCode()) {
@@ -77,6 +126,38 @@ public class TransactionClient implements TransactionApi {
         }
     }
 
+    @Override
+    public long streamTransactions(TransactionQuery query, Consumer<Transaction> consumer) throws CallException {
+        // Build full URL for the request.
+        WebTarget webTarget = mClient.target(mServiceUrl).path(TransactionApi.SERVICE_PATH)
+                .path(TransactionApi.RES_EXPORT);
+
+        // Remote call.
+        Response response = webTarget.request(TransactionApi.MEDIA_NDJSON, MediaType.TEXT_PLAIN)
+                .cookie(null) // TODO
+                .post(Entity.entity(query, mMediaType));
+
+        // Extract return value or exception.
+        if (response.getStatus() == Status.OK.getStatusCode()) {
+            // One transaction per line, provided as soon as received.
+            long count = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.readEntity(InputStream.class), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    consumer.accept(GsonUtil.getInstance().fromJson(line, Transaction.class));
+                    count++;
+                }
+            } catch (IOException e) {
+                throw new CallException("Transaction stream interrupted after " + count + " transactions: " + e.getMessage());
+            }
+            return count;
+        } else {
+            String msg = response.readEntity(String.class);
+            throw new CallException(CallException.extractMsg(msg));
+        }
+    }
+
     @Override
     public TransactionStatusResponse getTransactionStatus(TransactionStatusRequest statusRequest) throws CallException {
         // Build full URL for the request.
@@ -84,9 +165,9 @@ public class TransactionClient implements TransactionApi {
                 .path(TransactionApi.RES_STATUS);
                 
         // Remote call.
-        Response response = webTarget.request(MT)
+        Response response = webTarget.request(mMediaType)
                 .cookie(null) // TODO
-                .post(Entity.entity(statusRequest, MT));
+                .post(Entity.entity(statusRequest, mMediaType));
         
         // Extract return value or exception.
         if (response.getStatus() == Status.OK.getStatusCode()) {
@@ -97,12 +178,32 @@ public class TransactionClient implements TransactionApi {
         }
     }
 
+    @Override
+    public TransactionSummary summarizeTransactions(TransactionQuery query) throws CallException {
+        // Build full URL for the request.
+        WebTarget webTarget = mClient.target(mServiceUrl).path(TransactionApi.SERVICE_PATH)
+                .path(TransactionApi.RES_SUMMARY);
+
+        // Remote call.
+        Response response = webTarget.request(mMediaType)
+                .cookie(null) // TODO
+                .post(Entity.entity(query, mMediaType));
+
+        // Extract return value or exception.
+        if (response.getStatus() == Status.OK.getStatusCode()) {
+            return response.readEntity(TransactionSummary.class);
+        } else {
+            String msg = response.readEntity(String.class);
+            throw new CallException(CallException.extractMsg(msg));
+        }
+    }
+
     /** Base URI for all calls to remote service. */
     private String mServiceUrl;
     
     /** REST request provider used for all calls from this instance. */
     private Client mClient;
     
-    /** REST media type used for all calls. */
-    private static final String MT = MediaType.APPLICATION_JSON;
+    /** REST media type used for all calls: JSON or the compact binary format. */
+    private final String mMediaType;
 }